@@ -0,0 +1,152 @@
+package org.amplexus.app.ozstock2.helper;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.amplexus.app.ozstock2.values.StockPriceQuote;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Compares GoogleQuoteParser with the StringBuilder + JSONArray parsing FinanceService did before it, on a desktop JVM.
+ *
+ * Not part of the app - run it with "gradle benchQuoteParser", or by hand with the app's source, android.jar and a real
+ * org.json (eg com.vaadin.external.google:android-json - android.jar's org.json only has stubs) on the classpath:
+ *
+ *   java org.amplexus.app.ozstock2.helper.GoogleQuoteParserBenchmark bench/resources/google-quotes-100.json [iterations]
+ *
+ * bench/resources/google-quotes-100.json is 100 ASX quotes laid out the way google's info endpoint sent them (without
+ * infotype=infoquoteall). It is synthetic - the endpoint is gone, so there was no live response left to record.
+ *
+ * Each parser is warmed up, then timed in five rounds - the median round is reported. Allocation is measured per parse
+ * where the JVM can count the bytes a thread allocates (HotSpot can). Run the JVM with -Xint for figures closer to an
+ * older device, whose VM doesn't compile as aggressively.
+ *
+ * @author craig
+ */
+public class GoogleQuoteParserBenchmark {
+
+	private static final int DEFAULT_ITERATIONS = 20000 ;
+	private static final int ROUNDS = 5 ;
+
+	private interface Parser {
+		int parse(byte[] payload) throws Exception ;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1) {
+			System.err.println("usage: GoogleQuoteParserBenchmark <payload file> [iterations]") ;
+			System.exit(1) ;
+		}
+		final byte[] payload = readFully(new FileInputStream(args[0])) ;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS ;
+		System.out.println("payload: " + args[0] + ", " + payload.length + " bytes, " + iterations + " iterations") ;
+
+		run("StringBuilder + JSONArray", iterations, payload, new Parser() {
+			public int parse(byte[] p) throws Exception {
+				return parseWithJsonArray(p) ;
+			}
+		}) ;
+		run("GoogleQuoteParser LAST_PRICE_ONLY", iterations, payload, new Parser() {
+			public int parse(byte[] p) throws Exception {
+				return parseWithGoogleQuoteParser(p, QuoteFieldSet.LAST_PRICE_ONLY) ;
+			}
+		}) ;
+		run("GoogleQuoteParser BASIC", iterations, payload, new Parser() {
+			public int parse(byte[] p) throws Exception {
+				return parseWithGoogleQuoteParser(p, QuoteFieldSet.BASIC) ;
+			}
+		}) ;
+	}
+
+	/**
+	 * The parsing FinanceService did before GoogleQuoteParser: read the whole response a line at a time, strip the
+	 * leading "//" and build a JSONArray.
+	 */
+	static int parseWithJsonArray(byte[] payload) throws Exception {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(payload))) ;
+		StringBuilder builder = new StringBuilder() ;
+		String line ;
+		while((line = reader.readLine()) != null)
+			builder.append(line) ;
+		String stockPrices = builder.toString().substring(2) ;
+
+		ArrayList<StockPriceQuote> quoteList = new ArrayList<StockPriceQuote>() ;
+		JSONArray jsonArray = new JSONArray(stockPrices) ;
+		for(int i = 0; i < jsonArray.length(); i++) {
+			JSONObject jsonObject = jsonArray.getJSONObject(i) ;
+			StockPriceQuote quote = new StockPriceQuote() ;
+			quote.setTicker(jsonObject.getString("t")) ;
+			quote.setLastPrice(jsonObject.getDouble("l")) ;
+			quoteList.add(quote) ;
+		}
+		return quoteList.size() ;
+	}
+
+	static int parseWithGoogleQuoteParser(byte[] payload, int fieldSet) throws IOException {
+		final ArrayList<StockPriceQuote> quoteList = new ArrayList<StockPriceQuote>() ;
+		new GoogleQuoteParser().parse(new InputStreamReader(new ByteArrayInputStream(payload), "UTF-8"), fieldSet, new QuoteProvider.QuoteHandler() {
+			public void onQuote(StockPriceQuote quote) {
+				quoteList.add(quote) ;
+			}
+		}) ;
+		return quoteList.size() ;
+	}
+
+	private static void run(String name, int iterations, byte[] payload, Parser parser) throws Exception {
+		int quotes = 0 ;
+		for(int i = 0; i < iterations; i++)
+			quotes = parser.parse(payload) ;
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean() ;
+		long allocatedBefore = allocatedBytes(threads) ;
+		long[] roundNanos = new long[ROUNDS] ;
+		int perRound = Math.max(1, iterations / ROUNDS) ;
+		for(int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime() ;
+			for(int i = 0; i < perRound; i++)
+				parser.parse(payload) ;
+			roundNanos[round] = (System.nanoTime() - start) / perRound ;
+		}
+		long allocatedAfter = allocatedBytes(threads) ;
+		Arrays.sort(roundNanos) ;
+
+		String allocated = allocatedBefore < 0 || allocatedAfter < 0 ? "n/a" : String.valueOf((allocatedAfter - allocatedBefore) / (perRound * ROUNDS)) ;
+		System.out.println(String.format("%-34s %4d quotes  median %9.1f us/parse  min %9.1f us  %8s bytes allocated/parse",
+				name, quotes, roundNanos[ROUNDS / 2] / 1000.0, roundNanos[0] / 1000.0, allocated)) ;
+	}
+
+	/**
+	 * @return the bytes allocated by this thread so far, or -1 if the JVM can't tell us
+	 */
+	private static long allocatedBytes(ThreadMXBean threads) {
+		if(! (threads instanceof com.sun.management.ThreadMXBean))
+			return -1 ;
+		com.sun.management.ThreadMXBean hotSpotThreads = (com.sun.management.ThreadMXBean) threads ;
+		if(! hotSpotThreads.isThreadAllocatedMemorySupported() || ! hotSpotThreads.isThreadAllocatedMemoryEnabled())
+			return -1 ;
+		return hotSpotThreads.getThreadAllocatedBytes(Thread.currentThread().getId()) ;
+	}
+
+	private static byte[] readFully(InputStream is) throws IOException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream() ;
+			byte[] buffer = new byte[8192] ;
+			int n ;
+			while((n = is.read(buffer)) != -1)
+				bytes.write(buffer, 0, n) ;
+			return bytes.toByteArray() ;
+		} finally {
+			is.close() ;
+		}
+	}
+}
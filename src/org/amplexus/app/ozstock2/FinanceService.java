@@ -1,22 +1,31 @@
 package org.amplexus.app.ozstock2;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.amplexus.app.ozstock2.helper.BusinessLogicHelper;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.StatusLine;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import org.amplexus.app.ozstock2.helper.CircuitBreaker;
+import org.amplexus.app.ozstock2.helper.GoogleQuoteProvider;
+import org.amplexus.app.ozstock2.helper.HttpClientHelper;
+import org.amplexus.app.ozstock2.helper.MarketHours;
+import org.amplexus.app.ozstock2.helper.QuoteFetchMetrics;
+import org.amplexus.app.ozstock2.helper.QuoteFieldSet;
+import org.amplexus.app.ozstock2.helper.QuoteProvider;
+import org.amplexus.app.ozstock2.helper.StubQuoteServer;
+import org.amplexus.app.ozstock2.helper.TickHistory;
+import org.amplexus.app.ozstock2.values.StockPriceQuote;
+import org.apache.http.conn.ConnectTimeoutException;
 
 import android.app.IntentService;
 import android.content.Context;
@@ -30,7 +39,15 @@ import android.util.Log;
 /**
  * Handles downloading stock prices from google finance.
  * 
- * Once downloaded, the stock prices are stored in a shared preference file.
+ * The quotes come from a QuoteProvider. By default that's google, but setting the quoteProvider preference to "stub" 
+ * fetches them from a StubQuoteServer running inside the app instead - handy for exercising and timing the refresh 
+ * without a network.
+ * 
+ * Every block of quotes is fetched with connect and read timeouts and retried a few times with jittered exponential 
+ * backoff. If whole refreshes keep failing, a circuit breaker stops us calling the provider for a while and requests are 
+ * answered from the cached prices in PRICE_QUOTE instead.
+ * 
+ * Once downloaded, the stock prices are stored in the PRICE_QUOTE table.
  * 
  * Once downloaded, a broadcast message is sent to all receivers interested in knowing the latest stock prices have been downloaded.
  * 
@@ -139,9 +156,8 @@ import android.util.Log;
 	  type    * Type (i.e. 'Company')
 	  vo      * Volume (float with multiplier, like '3.54M') 
  * 
- * TODO: Only pull down the stock data i'm interested in, not all the other ebitda guff etc.
- * TODO: Implement timeout mechanism
- * TODO: Handle google's max 100 tickers limitation.
+ * Only the fields in the request's QuoteFieldSet are fetched - by default just the last price - and google is only asked 
+ * for infotype=infoquoteall when a request wants more than QuoteFieldSet.BASIC.
  * 
  * @author craig
  *
@@ -153,13 +169,45 @@ public class FinanceService extends IntentService {
 	public static final String ACTION_NOTIFY = "org.amplexus.app.ozstock2.intent.action.ACTION_FINANCE_SERVICE_NOTIFY" ;
 
 	public static final String REQUEST_EXTRA_FORCE_REFRESH = "ozstock.force" ; 		// consumer is requesting force refresh
+	public static final String REQUEST_EXTRA_FIELD_SET = "ozstock.fields" ;			// the QuoteFieldSet fields the consumer wants
 	public static final String RESPONSE_EXTRA_STATUS = "ozstock.status" ;			// the indicator of refresh success
+	public static final String RESPONSE_EXTRA_REQUEST_COUNT = "ozstock.requests" ;	// the number of requests this broadcast answers
+	public static final String RESPONSE_EXTRA_CACHED = "ozstock.cached" ;			// true if the provider wasn't called and cached prices stand
+
+	private static final String REQUEST_EXTRA_SEQUENCE = "ozstock.seq" ;			// assigned to each request as it is queued
 	
-	private static final String	GOOGLE_URL_PREFIX = "http://www.google.com/finance/info?infotype=infoquoteall&q=" ;
-	private static final String	GOOGLE_URL_SEPARATOR = "," ;						// Tickers are separated by commas
-	private static final int	GOOGLE_MAX_STOCKS_PER_REQUEST = 100 ;				// Google won't let us send more than 100 tickers at a time
+	public static final String QUOTE_PROVIDER_GOOGLE = GoogleQuoteProvider.NAME ;	// Values of the quoteProvider preference
+	public static final String QUOTE_PROVIDER_STUB = StubQuoteServer.NAME ;
+
+	private static final int	MAX_CONCURRENT_REQUESTS = 4 ;						// Upper bound on the number of blocks of quotes downloaded at once
+
+	private static final int	MAX_FETCH_ATTEMPTS = 3 ;							// Tries at each block of quotes before giving up on it
+	private static final int	RETRY_BASE_DELAY_MILLIS = 500 ;						// Backoff before the first retry - doubled for each retry after that
+	private static final int	RETRY_MAX_DELAY_MILLIS = 8 * 1000 ;					// Upper bound on the backoff
+
+	private static final int	CIRCUIT_FAILURE_THRESHOLD = 3 ;						// Consecutive failed refreshes before we stop calling a provider
+	private static final long	CIRCUIT_COOL_DOWN_MILLIS = 5 * 60 * 1000 ;			// How long we leave a failing provider alone
+
+	/*
+	 * Outlives any one instance of the service, which is destroyed whenever its queue empties
+	 */
+	private static final HashMap<String, CircuitBreaker> sCircuitBreakers = new HashMap<String, CircuitBreaker>() ;
 
     private BusinessLogicHelper mBusinessLogicHelper ;								// Persistent store of stock holdings
+    private ExecutorService mQuoteExecutor ;										// Downloads blocks of quotes in parallel
+    private QuoteProvider mQuoteProvider ;											// Where the quotes come from
+    private final Random mRandom = new Random() ;									// Jitters the retry backoff
+
+    /*
+     * Request coalescing - see onStartCommand()
+     */
+    private final Object mRequestLock = new Object() ;
+    private long mLatestSequence ;													// The sequence number of the most recently queued request
+    private long mAnsweredSequence ;												// Every request up to and including this one has been answered
+    private long mForcedSequence ;													// The sequence number of the most recent request for a forced refresh, 0 if none
+    private int mPendingFieldSet ;													// The QuoteFieldSet fields wanted by the unanswered requests
+    private int mRequestFieldSet ;													// The QuoteFieldSet fields being fetched by the current request
+    private long mRequestSequence ;													// The last request queued when the current request started
 	
 	public FinanceService() {
 		this("FinanceService") ;
@@ -170,73 +218,132 @@ public class FinanceService extends IntentService {
 		mBusinessLogicHelper = new BusinessLogicHelper(this) ;
 	}
 
+	@Override
+	public void onCreate() {
+		super.onCreate() ;
+		mQuoteExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS) ;
+	}
+
+	@Override
+	public void onDestroy() {
+		mQuoteExecutor.shutdownNow() ;
+		super.onDestroy() ;
+	}
+
+	/**
+	 * Numbers each request as it is queued so requests can be coalesced.
+	 * 
+	 * The activities and alarm receivers all fire requests at us independently, and an IntentService would otherwise run 
+	 * them one after another - so a forced refresh landing just behind an alarm would cost two full round trips. Instead:
+	 * 
+	 * - Any request that arrives while a fetch is in flight attaches to it: when the fetch finishes, every request queued so 
+	 *   far is marked as answered and is then dropped from the queue without doing any work.
+	 * - A queued forced refresh merges with whatever request runs next, which then fetches regardless of how recently prices 
+	 *   were last fetched. Once the forced request has been answered, requests left queued behind it aren't forced.
+	 * - Likewise the fields wanted by every queued request are merged, so one fetch covers them all. A request that arrives
+	 *   mid-fetch wanting fields the fetch isn't getting is left queued to run its own fetch.
+	 * 
+	 * Every request is answered by exactly one ACTION_NOTIFY broadcast. RESPONSE_EXTRA_REQUEST_COUNT says how many requests 
+	 * a broadcast answers.
+	 */
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		if(intent != null) {
+			synchronized(mRequestLock) {
+				intent.putExtra(REQUEST_EXTRA_SEQUENCE, ++mLatestSequence) ;
+				if(intent.getBooleanExtra(REQUEST_EXTRA_FORCE_REFRESH, false))
+					mForcedSequence = mLatestSequence ;
+				mPendingFieldSet |= intent.getIntExtra(REQUEST_EXTRA_FIELD_SET, QuoteFieldSet.LAST_PRICE_ONLY) ;
+			}
+		}
+		return super.onStartCommand(intent, flags, startId) ;
+	}
+
 	/**
 	 * Handles requests for updating stock quotes.
 	 *
 	 * Does the following:
 	 * 
-	 * - Checks to see if it's too soon to refresh stock prices and aborts (without error) if so - though this can be overridden by a "force refresh" flag 
+	 * - Drops the request if it was already answered by a fetch that was in flight when it arrived
+	 * - Checks to see if it's too soon to refresh stock prices, or the market is closed, and aborts (without error) if so - though this can be overridden by a "force refresh" flag 
 	 * - Gets a list of all the stock codes from the database whose prices we want to download.
-	 * - Generates a URL to query google
-	 * - Sends the HTTP request to google
-	 * - Parses the JSON response from google
-	 * - Stores the stock prices in a shared preference file.
+	 * - Splits the stock codes into blocks of at most QuoteProvider.getMaxTickersPerRequest() and fetches each block from 
+	 *   the QuoteProvider, in parallel
+	 * - Merges the quotes from every block that succeeded
+	 * - Stores the changed stock prices in the PRICE_QUOTE table.
+	 * - Records every price in the intraday TickHistory
 	 * - Sends a broadcast message indicating stock prices are updated
 	 * 
 	 * @param intent the input request
-	 * 
-	 * TODO: Break the data up into 100 stock blocks because Google doesn't like > 100 stocks. 
 	 */
 	@Override
 	protected void onHandleIntent(Intent intent) {
 
 		Log.i(TAG, "onHandleIntent() Starting") ;
 		
+		/*
+		 * Requests queued behind a fetch were answered by it. Otherwise merge any queued forced refresh and the fields 
+		 * wanted by the queued requests into this one.
+		 */
+		long sequence = intent.getLongExtra(REQUEST_EXTRA_SEQUENCE, 0L) ;
+		boolean forceRefreshRequested ;
+		long queuedSequence ;
+		synchronized(mRequestLock) {
+			if(sequence > 0 && sequence <= mAnsweredSequence) {
+				Log.i(TAG, "onHandleIntent(): request " + sequence + " was answered by the refresh in flight when it arrived") ;
+				return ;
+			}
+			forceRefreshRequested = mForcedSequence > mAnsweredSequence ;	// Only while the forced request itself is unanswered
+			queuedSequence = mLatestSequence ;
+			mRequestFieldSet = mPendingFieldSet | QuoteFieldSet.LAST_PRICE_ONLY ;
+			mRequestSequence = queuedSequence ;
+		}
+		boolean fullQuote = !QuoteFieldSet.contains(QuoteFieldSet.BASIC, mRequestFieldSet) ;
+		
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this) ;
+		mQuoteProvider = getQuoteProvider(prefs) ;
+		if(mQuoteProvider == null) {
+			answerRequests(false, Long.MAX_VALUE) ;
+			return ;			
+		}
+
 		ConnectivityManager cm = (ConnectivityManager)getSystemService(Context.CONNECTIVITY_SERVICE);
 		 
 		NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
-		boolean isConnected = activeNetwork.isConnectedOrConnecting();
-		if(!isConnected) {
+		boolean isConnected = activeNetwork != null && activeNetwork.isConnectedOrConnecting();
+		if(!isConnected && ! QUOTE_PROVIDER_STUB.equals(mQuoteProvider.getName())) {
 			Log.e(TAG, "onHandleIntent(): Error: We don't have any network connectivity") ;
 
-			Intent broadcastIntent = new Intent() ;
-			broadcastIntent.setAction(FinanceService.ACTION_NOTIFY);
-			broadcastIntent.addCategory(Intent.CATEGORY_DEFAULT);
-			broadcastIntent.putExtra(RESPONSE_EXTRA_STATUS, false) ;
-			sendBroadcast(broadcastIntent);
-			
+			answerRequests(false, Long.MAX_VALUE) ;
 			return ;			
 		}
 		
-		boolean forceRefreshRequested = intent.getBooleanExtra(FinanceService.REQUEST_EXTRA_FORCE_REFRESH, false) ;
-		Log.i(TAG, "onHandleIntent(): force refresh requested = " + forceRefreshRequested ) ;
+		Log.i(TAG, "onHandleIntent(): force refresh requested = " + forceRefreshRequested + ", fields = 0x" + Integer.toHexString(mRequestFieldSet)) ;
 
 		/*
-		 * If we last updated really recently, then nothing to do - unless user is forcing an update.
+		 * If we last updated really recently, or the market's closed and we already have the closing prices, then nothing 
+		 * to do - unless user is forcing an update.
 		 * Just pretend we succeeded and the consuming activity will pick up the previously fetched prices.
+		 * 
+		 * The extended fields are only as fresh as the last full fetch, so a request for them goes by that instead.
 		 */
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this) ;
-		long lastPriceTimeMillis = prefs.getLong(MainActivity.SHARED_PREFS_LAST_PRICE_TIME_ATTR, 0L) ;
+		long lastPriceTimeMillis = prefs.getLong(fullQuote ? MainActivity.SHARED_PREFS_LAST_FULL_QUOTE_TIME_ATTR : MainActivity.SHARED_PREFS_LAST_PRICE_TIME_ATTR, 0L) ;
 		int priceFetchIntervalMins = prefs.getInt(MainActivity.SHARED_PREFS_PRICE_FETCH_INTERVAL_MINS_ATTR, MainActivity.DEFAULT_PRICE_FETCH_INTERVAL_MINS) ;
 		long priceFetchIntervalMillis = priceFetchIntervalMins * 60 * 1000 ;
 
 		/*
-		 * It's too soon if the last fetch + fetch interval > now.
-		 * 
-		 * Added a 10 second buffer due to the inexact nature of inexact repeating otherwise the alarm is skipped because it's out by a few seconds.
+		 * It's too soon if the market is open and the last fetch + fetch interval > now, or if the market is closed and 
+		 * we've fetched since the close.
 		 */
-		long lastFetchedMillisAgo = Calendar.getInstance().getTimeInMillis() - lastPriceTimeMillis ;
-		boolean refreshDue = lastFetchedMillisAgo > priceFetchIntervalMillis - (10 * 1000) ;
+		boolean refreshDue = MarketHours.getInstance(this).isRefreshDue(Calendar.getInstance().getTimeInMillis(), lastPriceTimeMillis, priceFetchIntervalMillis) ;
 		
 		if( ! refreshDue && ! forceRefreshRequested) {
-			Log.w(TAG, "onHandleIntent(): Prices were already fetched " + ((Calendar.getInstance().getTimeInMillis() - lastPriceTimeMillis) / 1000) + " seconds ago - no need to fetch prices from google.") ;
-
-			Intent broadcastIntent = new Intent() ;
-			broadcastIntent.setAction(ACTION_NOTIFY);
-			broadcastIntent.addCategory(Intent.CATEGORY_DEFAULT);
-			broadcastIntent.putExtra(RESPONSE_EXTRA_STATUS, true) ;
-			sendBroadcast(broadcastIntent);
-			
+			Log.w(TAG, "onHandleIntent(): Prices were already fetched " + ((Calendar.getInstance().getTimeInMillis() - lastPriceTimeMillis) / 1000) + " seconds ago and the market is closed or it's too soon - no need to fetch prices.") ;
+
+			/*
+			 * Only answer the requests that were queued when we started - any forced refresh that arrived since still needs to run
+			 */
+			answerRequests(true, queuedSequence) ;
 			return ;
 		}
 		
@@ -252,146 +359,260 @@ public class FinanceService extends IntentService {
 		 * If there are no stocks in any portfolio, then nothing to do - but this is NOT an error.
 		 */
 		if(stockList.size() == 0) {
-			Log.w(TAG, "onHandleIntent(): There are no stocks in any portfolio - no need to fetch prices from google.") ;
-
-			Intent broadcastIntent = new Intent() ;
-			broadcastIntent.setAction(FinanceService.ACTION_NOTIFY);
-			broadcastIntent.addCategory(Intent.CATEGORY_DEFAULT);
-			broadcastIntent.putExtra(RESPONSE_EXTRA_STATUS, true) ;
-			sendBroadcast(broadcastIntent);
-			
+			Log.w(TAG, "onHandleIntent(): There are no stocks in any portfolio - no need to fetch prices.") ;
+
+			answerRequests(true, Long.MAX_VALUE) ;
 			return ;
 		}
 		
 		/*
-		 * Generate a URL that we send to Google to retrieve the quotes
+		 * If the provider has been failing, leave it alone for a while and let the cached prices stand
 		 */
-		String url = toGoogleQuoteURL(stockList) ;
-		
+		CircuitBreaker circuitBreaker = getCircuitBreaker(mQuoteProvider.getName()) ;
+		if(!circuitBreaker.allowRequest()) {
+			Log.w(TAG, "onHandleIntent(): " + mQuoteProvider.getName() + " keeps failing - serving cached prices until its circuit breaker closes") ;
+			QuoteFetchMetrics.cachedRefreshes.incrementAndGet() ;
+
+			answerRequests(true, true, Long.MAX_VALUE) ;
+			return ;
+		}
+
 		/*
-		 * Invoke the URL and wait for the response in JSON format
+		 * Fetch the quotes in blocks of at most getMaxTickersPerRequest() tickers, in parallel
 		 */
-		String stockPrices = readGoogleStockPrices(url) ;
+		QuoteFetchMetrics.refreshes.incrementAndGet() ;
+		long startMillis = Calendar.getInstance().getTimeInMillis() ;
+		ArrayList<StockPriceQuote> quoteList = new ArrayList<StockPriceQuote>() ;
+		int failedChunks = fetchStockPrices(stockList, mRequestFieldSet, quoteList) ;
+		Log.i(TAG, "onHandleIntent(): Number of quotes fetched from " + mQuoteProvider.getName() + " is: " + quoteList.size() + " in " + (Calendar.getInstance().getTimeInMillis() - startMillis) + "ms") ;
 
-		Log.i(TAG, "onHandleIntent(): Unparsed JSON result is " + stockPrices) ;
-		
-		if(stockPrices.length() == 0) {
-			Log.e(TAG, "onHandleIntent(): Error: stockprice list returned from google is empty. Either a code bug or comms error occurred.") ;
-
-			Intent broadcastIntent = new Intent() ;
-			broadcastIntent.setAction(FinanceService.ACTION_NOTIFY);
-			broadcastIntent.addCategory(Intent.CATEGORY_DEFAULT);
-			broadcastIntent.putExtra(RESPONSE_EXTRA_STATUS, false) ;
-			sendBroadcast(broadcastIntent);
-			
+		if(quoteList.size() == 0) {
+			Log.e(TAG, "onHandleIntent(): Error: stockprice list returned from " + mQuoteProvider.getName() + " is empty. Either a code bug or comms error occurred.") ;
+
+			QuoteFetchMetrics.failedRefreshes.incrementAndGet() ;
+			if(circuitBreaker.recordFailure())
+				QuoteFetchMetrics.circuitOpened.incrementAndGet() ;
+
+			answerRequests(false, Long.MAX_VALUE) ;
 			return ;
 		}
+		circuitBreaker.recordSuccess() ;
+
+		/*
+		 * Store the quotes in the PRICE_QUOTE table. Only the prices that changed are rewritten.
+		 * 
+		 * If some of the blocks failed, their tickers simply keep their previously fetched prices.
+		 */
+		if(failedChunks > 0)
+			Log.w(TAG, "onHandleIntent(): " + failedChunks + " block(s) of quotes failed to download - keeping their previous prices") ;
+
+		long quoteTimeMillis = Calendar.getInstance().getTimeInMillis() ;
+		int changedCount = mBusinessLogicHelper.writePriceQuotes(quoteList, mRequestFieldSet, quoteTimeMillis, mQuoteProvider.getName()) ;
+		Log.i(TAG, "onHandleIntent(): " + changedCount + " of " + quoteList.size() + " quotes written") ;
 
 		/*
-		 * Remove the slashes at the beginning of the JSON result
+		 * Every quote - changed or not - is a tick in today's price history
 		 */
-		stockPrices = stockPrices.substring(2) ;
+		TickHistory tickHistory = TickHistory.getInstance(this) ;
+		tickHistory.record(quoteList, quoteTimeMillis) ;
+		tickHistory.checkpoint() ;
 
 		/*
-		 * Download quotes from google and store in shared preferences file.
+		 * Update the lastPriceTime in the application prefs
 		 */
-		try {
-			SharedPreferences lastPricePrefs = getSharedPreferences(MainActivity.SHARED_PREFS_LAST_PRICE_FILENAME, MODE_PRIVATE) ;
-
-			SharedPreferences.Editor lastPriceEditor = lastPricePrefs.edit();
-			lastPriceEditor.clear() ;
-
-			JSONArray jsonArray = new JSONArray(stockPrices) ;
-			Log.i(TAG, "onHandleIntent(): Number of quotes fetched from google is: " + jsonArray.length()) ;
-			for (int i = 0; i < jsonArray.length(); i++) {
-				JSONObject jsonObject = jsonArray.getJSONObject(i) ;
-				String ticker = jsonObject.getString("t") ;
-				float price = (float)jsonObject.getDouble("l") ;
-				lastPriceEditor.putFloat(ticker, price) ;
-//				Log.i(TAG, "onHandleIntent(): google-finance: retrieved quote " + ticker + "=" + price) ;
-			}
-			
-			lastPriceEditor.commit() ;
+		SharedPreferences.Editor prefsEditor = prefs.edit();
+		prefsEditor.putLong(MainActivity.SHARED_PREFS_LAST_PRICE_TIME_ATTR, Calendar.getInstance().getTimeInMillis()) ;
+		if(fullQuote)
+			prefsEditor.putLong(MainActivity.SHARED_PREFS_LAST_FULL_QUOTE_TIME_ATTR, Calendar.getInstance().getTimeInMillis()) ;
+		prefsEditor.commit() ;
 
-			/*
-			 * Update the lastPriceTime in the application prefs
-			 */
-			SharedPreferences.Editor prefsEditor = prefs.edit();
-			prefsEditor.putLong(MainActivity.SHARED_PREFS_LAST_PRICE_TIME_ATTR, Calendar.getInstance().getTimeInMillis()) ;
-			prefsEditor.commit() ;
-
-			Log.i(TAG, "onHandleIntent(): Prices downloaded successfully, broadcasting results") ;
-
-			Intent broadcastIntent = new Intent() ;
-			broadcastIntent.setAction(FinanceService.ACTION_NOTIFY);
-			broadcastIntent.addCategory(Intent.CATEGORY_DEFAULT);
-			broadcastIntent.putExtra(RESPONSE_EXTRA_STATUS, true) ;
-			sendBroadcast(broadcastIntent);
-			
-		} catch (Exception e) {
-			Log.i(TAG, "onHandleIntent(): Error parsing JSON", e) ;
-			
-			Intent broadcastIntent = new Intent() ;
-			broadcastIntent.setAction(FinanceService.ACTION_NOTIFY);
-			broadcastIntent.addCategory(Intent.CATEGORY_DEFAULT);
-			broadcastIntent.putExtra(RESPONSE_EXTRA_STATUS, false) ;
-			sendBroadcast(broadcastIntent);
-			
-			return ;
+		Log.i(TAG, "onHandleIntent(): Prices downloaded successfully, broadcasting results") ;
+
+		answerRequests(true, Long.MAX_VALUE) ;
+	}
+
+	/**
+	 * Marks requests as answered and sends the single broadcast that answers them.
+	 * 
+	 * @param success the indicator of refresh success
+	 * @param sequence answers every request queued up to and including this one - Long.MAX_VALUE answers every request 
+	 * queued so far, including those that arrived while we were fetching
+	 */
+	private void answerRequests(boolean success, long sequence) {
+		answerRequests(success, false, sequence) ;
+	}
+
+	/**
+	 * Marks requests as answered and sends the single broadcast that answers them.
+	 * 
+	 * @param success the indicator of refresh success
+	 * @param cached true if the provider wasn't called and the cached prices stand
+	 * @param sequence answers every request queued up to and including this one
+	 */
+	private void answerRequests(boolean success, boolean cached, long sequence) {
+		int requestCount ;
+		synchronized(mRequestLock) {
+			long answeredSequence = Math.min(sequence, mLatestSequence) ;
+			if((mPendingFieldSet & ~mRequestFieldSet) != 0) {
+				/*
+				 * A request that arrived mid-fetch wants fields we didn't fetch - leave it queued. The requests queued before
+				 * we started were all merged into mRequestFieldSet, so they're answered.
+				 */
+				answeredSequence = Math.min(answeredSequence, Math.max(mAnsweredSequence, mRequestSequence)) ;
+			}
+			requestCount = (int)(answeredSequence - mAnsweredSequence) ;
+			mAnsweredSequence = answeredSequence ;
+			if(mAnsweredSequence == mLatestSequence)
+				mPendingFieldSet = 0 ;
 		}
+		if(requestCount > 1) {
+			Log.i(TAG, "answerRequests(): coalesced " + requestCount + " requests into one refresh") ;
+			QuoteFetchMetrics.coalescedRequests.addAndGet(requestCount - 1) ;
+		}
+		Log.i(TAG, "answerRequests(): " + QuoteFetchMetrics.summary()) ;
+
+		Intent broadcastIntent = new Intent() ;
+		broadcastIntent.setAction(FinanceService.ACTION_NOTIFY);
+		broadcastIntent.addCategory(Intent.CATEGORY_DEFAULT);
+		broadcastIntent.putExtra(RESPONSE_EXTRA_STATUS, success) ;
+		broadcastIntent.putExtra(RESPONSE_EXTRA_REQUEST_COUNT, requestCount) ;
+		broadcastIntent.putExtra(RESPONSE_EXTRA_CACHED, cached) ;
+		sendBroadcast(broadcastIntent);
 	}
 	
 	/**
-	 * Takes the list of stock codes and generates a URL that can be used to query their stock prices on google finance.
+	 * Chooses the QuoteProvider named by the quoteProvider preference, defaulting to google, and applies the timeout 
+	 * preferences to it.
+	 * 
+	 * @param prefs the application prefs
+	 * @return the provider, or null if the stub server could not be started
+	 */
+	private QuoteProvider getQuoteProvider(SharedPreferences prefs) {
+		GoogleQuoteProvider provider ;
+		String providerName = prefs.getString(MainActivity.SHARED_PREFS_QUOTE_PROVIDER_ATTR, QUOTE_PROVIDER_GOOGLE) ;
+		if(QUOTE_PROVIDER_STUB.equals(providerName)) {
+			try {
+				StubQuoteServer server = StubQuoteServer.getInstance() ;
+				server.setLatency(prefs.getInt(MainActivity.SHARED_PREFS_STUB_QUOTE_LATENCY_MILLIS_ATTR, 0), prefs.getInt(MainActivity.SHARED_PREFS_STUB_QUOTE_JITTER_MILLIS_ATTR, 0)) ;
+				provider = new GoogleQuoteProvider(QUOTE_PROVIDER_STUB, server.getUrl()) ;
+			} catch (IOException e) {
+				Log.e(TAG, "getQuoteProvider(): Error: failed to start the stub quote server", e) ;
+				return null ;
+			}
+		} else {
+			provider = new GoogleQuoteProvider() ;
+		}
+		provider.setTimeouts(prefs.getInt(MainActivity.SHARED_PREFS_CONNECT_TIMEOUT_MILLIS_ATTR, HttpClientHelper.DEFAULT_CONNECT_TIMEOUT_MILLIS), 
+				prefs.getInt(MainActivity.SHARED_PREFS_READ_TIMEOUT_MILLIS_ATTR, HttpClientHelper.DEFAULT_READ_TIMEOUT_MILLIS)) ;
+		return provider ;
+	}
+
+	/**
+	 * @param providerName the QuoteProvider name
+	 * @return the circuit breaker for the provider, created on first use
+	 */
+	private static CircuitBreaker getCircuitBreaker(String providerName) {
+		synchronized(sCircuitBreakers) {
+			CircuitBreaker circuitBreaker = sCircuitBreakers.get(providerName) ;
+			if(circuitBreaker == null) {
+				circuitBreaker = new CircuitBreaker(providerName, CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_COOL_DOWN_MILLIS) ;
+				sCircuitBreakers.put(providerName, circuitBreaker) ;
+			}
+			return circuitBreaker ;
+		}
+	}
+
+	/**
+	 * Splits the list of stock codes into blocks the QuoteProvider will accept and downloads each block concurrently on mQuoteExecutor.
+	 * 
+	 * A block that still fails to download or parse after MAX_FETCH_ATTEMPTS is logged and skipped - the quotes from the other blocks are still returned.
 	 * 
 	 * @param stockList the list of stock codes
-	 * @return
+	 * @param fieldSet the QuoteFieldSet fields to fetch
+	 * @param quoteList will be populated with the quotes from every block that succeeded
+	 * @return the number of blocks that failed
 	 */
-	private String toGoogleQuoteURL(ArrayList<String> stockList) {
-		StringBuilder builder = new StringBuilder(GOOGLE_URL_PREFIX);
-		
-		boolean firstTime = true ;
-		for(String stock : stockList) {
-			if(!firstTime)
-				builder.append(GOOGLE_URL_SEPARATOR) ;
-			firstTime = false ;
-			builder.append("ASX:" + stock) ;
+	private int fetchStockPrices(ArrayList<String> stockList, final int fieldSet, ArrayList<StockPriceQuote> quoteList) {
+		int maxTickersPerRequest = mQuoteProvider.getMaxTickersPerRequest() ;
+		ArrayList<Future<ArrayList<StockPriceQuote>>> futureList = new ArrayList<Future<ArrayList<StockPriceQuote>>>() ;
+		for(int i = 0; i < stockList.size(); i += maxTickersPerRequest) {
+			final List<String> chunk = stockList.subList(i, Math.min(i + maxTickersPerRequest, stockList.size())) ;
+			futureList.add(mQuoteExecutor.submit(new Callable<ArrayList<StockPriceQuote>>() {
+				public ArrayList<StockPriceQuote> call() throws Exception {
+					return readStockPriceChunk(chunk, fieldSet) ;
+				}
+			})) ;
 		}
-		return builder.toString() ;
+		Log.i(TAG, "fetchStockPrices(): requesting " + stockList.size() + " quotes in " + futureList.size() + " block(s)") ;
+
+		int failedChunks = 0 ;
+		for(Future<ArrayList<StockPriceQuote>> future : futureList) {
+			try {
+				quoteList.addAll(future.get()) ;
+			} catch (ExecutionException e) {
+				Log.e(TAG, "fetchStockPrices(): Failed to fetch block of quotes: " + e.getCause().getMessage(), e.getCause()) ;
+				failedChunks++ ;
+			} catch (InterruptedException e) {
+				Log.e(TAG, "fetchStockPrices(): Interrupted waiting for block of quotes", e) ;
+				future.cancel(true) ;
+				failedChunks++ ;
+			}
+		}
+		return failedChunks ;
 	}
 
 	/**
-	 * Sends the HTTP request to google finance and reads the result.
+	 * Downloads and parses the quotes for a single block of stock codes, retrying up to MAX_FETCH_ATTEMPTS times.
 	 * 
-	 * @param url
-	 * @return
+	 * @param chunk no more than getMaxTickersPerRequest() stock codes
+	 * @param fieldSet the QuoteFieldSet fields to fetch
+	 * @return the quotes returned by the QuoteProvider
+	 * @throws IOException if the quotes could not be downloaded or parsed on the last attempt
 	 */
-	public String readGoogleStockPrices(String url) {
-		StringBuilder builder = new StringBuilder();
-		HttpClient client = new DefaultHttpClient();
-		HttpGet httpGet = new HttpGet(url);
-		
-		try {
-			HttpResponse response = client.execute(httpGet);
-			StatusLine statusLine = response.getStatusLine();
-			int statusCode = statusLine.getStatusCode();
-			if (statusCode == 200) {
-				HttpEntity entity = response.getEntity();
-				InputStream content = entity.getContent();
-				BufferedReader reader = new BufferedReader(new InputStreamReader(content));
-				String line;
-				while ((line = reader.readLine()) != null) {
-					builder.append(line);
+	private ArrayList<StockPriceQuote> readStockPriceChunk(List<String> chunk, int fieldSet) throws IOException {
+		final ArrayList<StockPriceQuote> quoteList = new ArrayList<StockPriceQuote>() ;
+		QuoteProvider.QuoteHandler handler = new QuoteProvider.QuoteHandler() {
+			public void onQuote(StockPriceQuote quote) {
+				quoteList.add(quote) ;
+			}
+		} ;
+
+		for(int attempt = 1; ; attempt++) {
+			quoteList.clear() ;		// Throw away anything from a failed attempt
+			QuoteFetchMetrics.blockRequests.incrementAndGet() ;
+			try {
+				mQuoteProvider.fetchQuotes(chunk, fieldSet, handler) ;
+				return quoteList ;
+			} catch (IOException e) {
+				if(e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException)
+					QuoteFetchMetrics.blockTimeouts.incrementAndGet() ;
+				if(attempt == MAX_FETCH_ATTEMPTS) {
+					QuoteFetchMetrics.blockFailures.incrementAndGet() ;
+					throw e ;
+				}
+
+				long delayMillis = getRetryDelayMillis(attempt) ;
+				Log.w(TAG, "readStockPriceChunk(): attempt " + attempt + " failed (" + e + ") - retrying in " + delayMillis + "ms") ;
+				QuoteFetchMetrics.blockRetries.incrementAndGet() ;
+				try {
+					Thread.sleep(delayMillis) ;
+				} catch (InterruptedException ie) {
+					throw new InterruptedIOException("Interrupted waiting to retry") ;
 				}
-			} else {
-				Log.e(TAG, "readGoogleStockPrices(): Failed to download quotes: " + statusLine) ;
 			}
-		} catch (ClientProtocolException e) {
-			Log.e(TAG, "readGoogleStockPrices(): Failed to download quotes: " + e.getMessage(), e) ;
-		} catch (IOException e) {
-			Log.e(TAG, "readGoogleStockPrices(): Failed to download quotes: " + e.getMessage(), e) ;
 		}
-		return builder.toString();
+	}
+
+	/**
+	 * Exponential backoff with jitter - somewhere between half and all of RETRY_BASE_DELAY_MILLIS * 2^(attempt-1), capped at 
+	 * RETRY_MAX_DELAY_MILLIS. The jitter stops the blocks of a refresh all retrying in lock step.
+	 * 
+	 * @param attempt the attempt that just failed, starting at 1
+	 * @return the delay before the next attempt
+	 */
+	private long getRetryDelayMillis(int attempt) {
+		int delayMillis = Math.min(RETRY_MAX_DELAY_MILLIS, RETRY_BASE_DELAY_MILLIS << Math.min(attempt - 1, 16)) ;
+		return delayMillis / 2 + mRandom.nextInt(delayMillis / 2 + 1) ;
 	}
 	
-}
+}
\ No newline at end of file
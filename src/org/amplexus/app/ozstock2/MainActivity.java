@@ -1,21 +1,21 @@
 package org.amplexus.app.ozstock2;
 
 import java.util.ArrayList;
-import java.util.Map;
+import java.util.HashMap;
 
 import org.amplexus.app.ozstock2.helper.ASXHelper;
 import org.amplexus.app.ozstock2.helper.BusinessLogicHelper;
 import org.amplexus.app.ozstock2.helper.DatabaseHelper;
 import org.amplexus.app.ozstock2.helper.DatabaseOpenHelper;
+import org.amplexus.app.ozstock2.helper.RefreshScheduler;
 import org.amplexus.app.ozstock2.values.Holding;
 import org.amplexus.app.ozstock2.values.Portfolio;
+import org.amplexus.app.ozstock2.values.StockPriceQuote;
 import org.amplexus.app.ozstock2.values.StockRef;
 
 import android.app.Activity;
-import android.app.AlarmManager;
 import android.app.AlertDialog;
 import android.app.Dialog;
-import android.app.PendingIntent;
 import android.app.ProgressDialog;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -23,11 +23,9 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.database.sqlite.SQLiteDatabase;
 import android.os.AsyncTask;
 import android.os.BatteryManager;
 import android.os.Bundle;
-import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.ContextMenu;
@@ -248,9 +246,14 @@ public class MainActivity extends Activity implements OnItemClickListener {
 
 	private static final String TAG = MainActivity.class.getSimpleName();
 
-	public static final String SHARED_PREFS_LAST_PRICE_FILENAME = "LastPrice" ;
 	public static final String SHARED_PREFS_LAST_PRICE_TIME_ATTR = "lastUpdateTimeMillis";
+	public static final String SHARED_PREFS_LAST_FULL_QUOTE_TIME_ATTR = "lastFullQuoteTimeMillis";		// When fields beyond QuoteFieldSet.BASIC were last fetched
 	public static final String SHARED_PREFS_PRICE_FETCH_INTERVAL_MINS_ATTR = "priceFetchIntervalMinutes";
+	public static final String SHARED_PREFS_QUOTE_PROVIDER_ATTR = "quoteProvider";				// "google" (the default) or "stub"
+	public static final String SHARED_PREFS_STUB_QUOTE_LATENCY_MILLIS_ATTR = "stubQuoteLatencyMillis";
+	public static final String SHARED_PREFS_STUB_QUOTE_JITTER_MILLIS_ATTR = "stubQuoteJitterMillis";
+	public static final String SHARED_PREFS_CONNECT_TIMEOUT_MILLIS_ATTR = "quoteConnectTimeoutMillis";
+	public static final String SHARED_PREFS_READ_TIMEOUT_MILLIS_ATTR = "quoteReadTimeoutMillis";
 
 	public static final int DEFAULT_PRICE_FETCH_INTERVAL_MINS = 15 ;
 
@@ -292,6 +295,9 @@ public class MainActivity extends Activity implements OnItemClickListener {
     private ASXHelper mAsxHelper ;
 
 	private ArrayList<Portfolio> mPortfolioList;
+
+	private HashMap<String, Double> mLastPrices = new HashMap<String, Double>() ;				// The last fetched price of each stock
+	private long mLastPriceQuoteMillis ;														// The latest quote time we've read into mLastPrices
     
 	/**
 	 * Called when the activity is first created. This is where you should do
@@ -332,42 +338,54 @@ public class MainActivity extends Activity implements OnItemClickListener {
 	     */
 	    calibrateAlarm() ;
 
-	    /*
-		 * Check if db upgrade is required, and check if stock ref table needs seeding.
-		 */
-	    upgradeAndStockRefSeedCheck() ;
-	    
 	    /*
 	     * Instantiate backup manager 
 	     */
 //	    mBackupManager = new BackupManager(this);
 	    
 		/*
-		 * Read all portfolios from the database.
-		 */
-		mPortfolioList = mBusinessLogic.getPortfolios() ;
-		Log.i(TAG, "mPortfolioList.size=" + mPortfolioList.size()) ;
-		for(int i = 0; i < mPortfolioList.size(); i++)
-			Log.i(TAG, "mPortfolioList[" + i + "]=" + mPortfolioList.get(i).getId() + ":" + mPortfolioList.get(i).getPortfolioName()) ;
-
-		/*
-		 * Associate GridView with adapter
+		 * Associate GridView with adapter. It stays empty until the portfolios are read - see loadPortfolios()
 		 */
+		mPortfolioList = new ArrayList<Portfolio>() ;
 		mAdapter = new PortfolioIconAdapter(this, mPortfolioList) ; 
 		mGrid.setAdapter(mAdapter);
 
+	    /*
+		 * Check if db upgrade is required, and check if stock ref table needs seeding. Reads the portfolios once the
+		 * database is up to date.
+		 */
+	    upgradeAndStockRefSeedCheck() ;
+	    
 		Log.i(TAG, "onCreate() done");
 	}
 
+	/**
+	 * Reads all portfolios from the database into the grid. Not called until the database is up to date, as the first
+	 * read would otherwise run the upgrade on the UI thread.
+	 */
+	private void loadPortfolios() {
+		ArrayList<Portfolio> portfolioList = mBusinessLogic.getPortfolios() ;
+		Log.i(TAG, "loadPortfolios(): mPortfolioList.size=" + portfolioList.size()) ;
+		mAdapter.setNotifyOnChange(false) ;
+		mAdapter.clear() ;
+		for(int i = 0; i < portfolioList.size(); i++) {
+			Log.i(TAG, "mPortfolioList[" + i + "]=" + portfolioList.get(i).getId() + ":" + portfolioList.get(i).getPortfolioName()) ;
+			mAdapter.add(portfolioList.get(i)) ;
+		}
+		mAdapter.notifyDataSetChanged() ;	// Turns notify on change back on too
+	}
+
 	/**
 	 * Kicks off the db upgrade check. Once complete, this will kick off the seeding of the STOCK_REF table if required.
 	 * 
-	 * A database upgrade will be automatically triggered when we call getWritableDb(). As this can be a time consuming process, we don't
-	 * want it to occur on the UI thread. So we first getReadableDb() and find out if upgrade is required, and if so, we getWritableDb() in
-	 * a separate asynctask.
+	 * A database upgrade will be automatically triggered the first time anything opens the database - getReadableDb() included, as
+	 * SQLiteOpenHelper opens it writable whenever it can. As this can be a time consuming process, we don't want it to occur on the UI
+	 * thread. So we read the version with DatabaseOpenHelper.isUpgradeNeeded(), which doesn't go through the helper, and if an upgrade is
+	 * required the first getWritableDb() is in a separate asynctask. Nothing else may touch the database until it's done - not even
+	 * loadPortfolios().
 	 * 
-	 * The async task will upon completion check if the STOCK_REF (which is used for the stock code combobox displayed when adding a new 
-	 * holding) table needs seeding.
+	 * The async task will upon completion read the portfolios and check if the STOCK_REF (which is used for the stock code combobox
+	 * displayed when adding a new holding) table needs seeding.
 	 * 
 	 * Note that even if a database upgrade is not needed, we check if STOCK_REF table needs seeding anyway.
 	 * 
@@ -375,33 +393,18 @@ public class MainActivity extends Activity implements OnItemClickListener {
 	 * upgrade happening at the same time as we're seeding STOCK_REF.
 	 */
 	private void upgradeAndStockRefSeedCheck() {
-		DatabaseHelper dbHelper = new DatabaseHelper(getApplicationContext()) ;
-		boolean needUpgrade = false ;
-		SQLiteDatabase db = null ;
-		
-		/*
-		 * Seems that when installing the app first time, even opening a read-only db to check if an upgrade is needed
-		 * causes a hissy fit.
-		 */
-		try {
-			db = dbHelper.getReadableDb() ;
-			needUpgrade = db.needUpgrade(DatabaseOpenHelper.DATABASE_VERSION) ;
-		} catch (RuntimeException e) {
-			Log.e(TAG, "upgradeAndStockRefSeedCheck(): got exception checking if db needs upgrade!", e) ;
-			needUpgrade = true ;
-		} finally {
-			if(db != null && db.isOpen())
-				db.close() ;
-		}
+		boolean needUpgrade = DatabaseOpenHelper.isUpgradeNeeded(getApplicationContext()) ;
+		Log.i(TAG, "upgradeAndStockRefSeedCheck(): needUpgrade=" + needUpgrade) ;
 		
 		if(needUpgrade) {
-			mUpgradingDbTask.execute() ; // NOTE: This will also kick off the loading of the stock ref table from the assets file if necessary
+			mUpgradingDbTask.execute() ; // NOTE: This will also read the portfolios and kick off the loading of the stock ref table from the assets file if necessary
 		} else {
+			loadPortfolios() ;
+
 			/*
 			 * Since no DB upgrade is required, we check if the STOCK_REF table needs to be seeded anyway.
 			 */
-			mStockRefList = mBusinessLogic.getAllStockRef() ;
-			if (mStockRefList.size() == 0) {
+			if (mAsxHelper.isStockRefSeedNeeded()) {
 				mLoadStockRefTableFromAssetFileTask.execute() ;
 			}			
 		}
@@ -410,12 +413,8 @@ public class MainActivity extends Activity implements OnItemClickListener {
 	/**
 	 * Instantiate an alarm to trigger stock price refreshes. 
 	 * 
-	 * The alarm is based on the preferred interval specified in mPrefPriceFetchIntervalMinutes.
-	 * 
-	 * Uses AlarmManager.setInexactRepeating() because it is more power efficient and we don't need anything more precise.
-	 * Uses AlarmManager.ELAPSED_REALTIME so we don't wake the phone if it's sleeping.
-	 * 
-	 * TODO: use AlarmManager.INTERVAL_???? instead of specifying millis because they are more efficient 
+	 * The refresh interval is the preferred interval specified in mPrefPriceFetchIntervalMinutes. RefreshScheduler only 
+	 * applies it while the ASX is open - after the close it takes one more snapshot and then stays quiet until the next open.
 	 */
 	private void calibrateAlarm() {
 		
@@ -434,27 +433,9 @@ public class MainActivity extends Activity implements OnItemClickListener {
 			Log.i(TAG, "calibrateAlarm() battery is okay or charging - NOT throttling") ;
 	    }
 
-		Log.i(TAG, "calibrateAlarm() trigger an alarm every " + minutes + " minutes") ;
-
-		int millis = minutes * 60 * 1000 ;
-
-	    AlarmManager alarmMgr = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE) ;
-        
-        Intent intent = new Intent(AlarmReceiver.RESPONSE_ACTION) ;
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(this, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
+		Log.i(TAG, "calibrateAlarm() trigger an alarm every " + minutes + " minutes while the market is open") ;
 
-        /*
-         * WARNING: The below "new Intent(this, AlarmReceiver.class)" below does NOT work with *programatically* registered broadcast receivers
-         * PendingIntent pendingIntent = PendingIntent.getBroadcast(this, 0, new Intent(this, AlarmReceiver.class), PendingIntent.FLAG_CANCEL_CURRENT);
-         */
-        
-        alarmMgr.cancel(pendingIntent) ;
-        
-        /*
-         * Use inexact repeating which is easier on battery (system can phase events and not wake at exact times)
-         * Add 15 seconds to first alarm, because due to inexact nature, it might fire before the desired threshold and so will be ignored.
-         */
-        alarmMgr.setInexactRepeating(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + millis + (15 * 1000), millis, pendingIntent);
+		RefreshScheduler.schedule(this, minutes) ;
         
 		Log.i(TAG, "calibrateAlarm() done") ;
 	}
@@ -942,28 +923,29 @@ public class MainActivity extends Activity implements OnItemClickListener {
 		}
 		
 		/**
-		 * Displays a dialog and downloads the listed companies reference file from the ASX website.
+		 * Opens the database, which runs any upgrade.
 		 */
 		@Override
 	     protected Boolean doInBackground(String ...args) {
-			// Force db upgrade check here - needs writable DB! Do this before any other DB activity.
+			// The first open of the database, so the upgrade runs here rather than on the UI thread - see upgradeAndStockRefSeedCheck()
+			new DatabaseHelper(getApplicationContext()).getWritableDb() ;	// Runs DatabaseOpenHelper.onUpgrade()
 			return true ;
 	     }
 
 		/**
-		 * Closes the dialog. Then kick off the seeding of the STOCK_REF table if required.
+		 * Closes the dialog and reads the portfolios, then refreshes their prices - onResume() skipped that while the grid was
+		 * empty. Then kick off the seeding of the STOCK_REF table if required.
 		 */
 		@Override
 	    protected void onPostExecute(Boolean result) {
 	 		dismissDialog(DIALOG_PROGRESS_UPGRADING);
+	 		loadPortfolios() ;
+	 		refreshPrices(false) ;
 
 	 		/*
-			 * If the STOCK_REF table is empty, seed it from the asset copy of the ASX company reference file.
-			 * 
-			 * FIXME: Do I need to load the whole table to find out if it's empty?
+			 * If the STOCK_REF table is empty, or the app was updated, seed it from the asset copy of the ASX company reference file.
 			 */
-	 		mStockRefList = mBusinessLogic.getAllStockRef();
-			if (mStockRefList.size() == 0) {
+			if (mAsxHelper.isStockRefSeedNeeded()) {
 				mLoadStockRefTableFromAssetFileTask.execute() ;
 			}
 	    }
@@ -973,7 +955,7 @@ public class MainActivity extends Activity implements OnItemClickListener {
 	/**
 	 * An asynchronous task to download the listed companies reference file from the ASX website.
 	 */
-	private class DownloadListedCompaniesTask extends AsyncTask<String, Void, Boolean> {
+	private class DownloadListedCompaniesTask extends AsyncTask<String, Void, Integer> {
 
 		@Override
 		protected void onPreExecute() {
@@ -984,17 +966,18 @@ public class MainActivity extends Activity implements OnItemClickListener {
 		 * Displays a dialog and downloads the listed companies reference file from the ASX website.
 		 */
 		@Override
-	     protected Boolean doInBackground(String ...args) {
+	     protected Integer doInBackground(String ...args) {
 	        return mAsxHelper.downloadListedCompanies(ASXHelper.ASX_LISTED_COMPANIES_CSV_URL, ASXHelper.ASX_LISTED_COMPANIES_CSV_DOWNLOAD_FILENAME) ;
 	     }
 
 		/**
-		 * Closes the dialog.
+		 * Closes the dialog, and reloads the STOCK_REF table if a new copy of the file was downloaded.
 		 */
 		@Override
-	    protected void onPostExecute(Boolean result) {
+	    protected void onPostExecute(Integer result) {
 	 		dismissDialog(DIALOG_PROGRESS_DOWNLOAD_LISTED_COMPANIES);
-	 		mLoadStockRefTableFromDownloadedFileTask.execute() ;
+	 		if(result == ASXHelper.DOWNLOAD_UPDATED)
+	 			mLoadStockRefTableFromDownloadedFileTask.execute() ;
 	    }
 		
 	}
@@ -1038,11 +1021,12 @@ public class MainActivity extends Activity implements OnItemClickListener {
 		}
 		
 		/**
-		 * Opens a progress dialog and commences loading the companies list into the database and in-memory cache
+		 * Opens a progress dialog and commences loading the companies list into the database and in-memory cache - from 
+		 * the prebuilt database if there is one, otherwise by parsing the CSV.
 		 */
 		@Override
 	     protected Boolean doInBackground(String ...args) {
-	 		return mAsxHelper.loadStockRefFromAssets(mStockRefList) ;
+	 		return mAsxHelper.loadStockRefFromPrebuiltDb(mStockRefList) || mAsxHelper.loadStockRefFromAssets(mStockRefList) ;
 	     }
 
 		/**
@@ -1057,15 +1041,12 @@ public class MainActivity extends Activity implements OnItemClickListener {
 	/**
 	 * Displays a progress dialog and asks FinanceService to download the latest stock prices.
 	 * 
-	 * Note that if this is a forced refresh, the alarm will be reset.
+	 * The alarm is reset so the next scheduled refresh is a full interval after this one.
 	 * 
 	 * @param force whether we should refresh the stock prices even if a refresh occurred only moments ago.
 	 */
     private void refreshPrices(boolean force) {
     
-    	if(force)
-    		calibrateAlarm() ;
-    	
     	if(mAdapter.isEmpty()) 
     		return ;
     	showDialog(DIALOG_PROGRESS_DOWNLOAD_LATEST_STOCK_PRICES) ;
@@ -1077,6 +1058,7 @@ public class MainActivity extends Activity implements OnItemClickListener {
 			intent.putExtras(b) ;
 		}
     	startService(intent);		
+    	RefreshScheduler.scheduleNext(this, true) ;
 	}
 
 	/**
@@ -1098,17 +1080,22 @@ public class MainActivity extends Activity implements OnItemClickListener {
 				return ;
 			}
 			
-			SharedPreferences lastPricePrefs = getSharedPreferences(MainActivity.SHARED_PREFS_LAST_PRICE_FILENAME, MODE_PRIVATE) ;
+			/*
+			 * Grab the stock prices that changed since we last looked
+			 */
+			for(StockPriceQuote quote : mBusinessLogic.getPriceQuotesChangedSince(mLastPriceQuoteMillis)) {
+				mLastPrices.put(quote.getTicker(), quote.getLastPrice()) ;
+				if(quote.getQuoteTime() > mLastPriceQuoteMillis)
+					mLastPriceQuoteMillis = quote.getQuoteTime() ;
+			}
 
-			Map<String, ?> lastPriceList = lastPricePrefs.getAll() ;
-			
 			int count = mAdapter.getCount() ;
 			for(int i = 0; i < count; i++) {
 				Portfolio portfolio = mAdapter.getItem(i) ;
 				
 				for(Holding holding : portfolio.getHoldings()) {
-					float price = lastPricePrefs.getFloat(holding.getStockCode(), -1.0f) ;
-					if(price < 0.0f)
+					Double price = mLastPrices.get(holding.getStockCode()) ;
+					if(price == null)
 						continue ;
 					
 					// TODO: sum holding current price and purchase price here  
@@ -1128,7 +1115,7 @@ public class MainActivity extends Activity implements OnItemClickListener {
 	 * Triggers at fixed intervals and asks the FinanceService to refresh stock prices.
 	 */
 	public class AlarmReceiver extends BroadcastReceiver {
-		public static final String RESPONSE_ACTION = "ozstock.alarm.receiver" ;
+		public static final String RESPONSE_ACTION = RefreshScheduler.ACTION_REFRESH_ALARM ;
 		public final String TAG = AlarmReceiver.class.getSimpleName() ;
 	    @Override
 	    public void onReceive(Context context, Intent intent) {
@@ -1136,6 +1123,7 @@ public class MainActivity extends Activity implements OnItemClickListener {
 	    	Intent financeServiceIntent = new Intent(MainActivity.this, FinanceService.class);
 			Log.i(TAG, "AlarmReceiver: Refreshing prices via FinanceService...") ;
 			context.startService(financeServiceIntent) ;
+			RefreshScheduler.scheduleNext(context, true) ;
 	    }
 	}
 
@@ -1,11 +1,13 @@
 package org.amplexus.app.ozstock2;
 
 import java.util.ArrayList;
-import java.util.Map;
+import java.util.HashMap;
 
 import org.amplexus.app.ozstock2.helper.BusinessLogicHelper;
+import org.amplexus.app.ozstock2.helper.RefreshScheduler;
 import org.amplexus.app.ozstock2.helper.TextFormatHelper;
 import org.amplexus.app.ozstock2.values.Holding;
+import org.amplexus.app.ozstock2.values.StockPriceQuote;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
@@ -16,7 +18,6 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.util.Log;
@@ -65,7 +66,8 @@ public class PortfolioActivity extends ListActivity {
     
     private PortfolioFinanceServiceReceiver mFinanceServiceReceiver ;	// The receiver that processes FinanceService broadcast messages.
     private AlarmReceiver mAlarmReceiver ;					// The receiver that processes alarm broadcast messages. 
-    private SharedPreferences mLastPricePrefs ;				// The last fetched price
+    private HashMap<String, Double> mLastPrices = new HashMap<String, Double>() ;	// The last fetched price of each stock
+    private long mLastPriceQuoteMillis ;					// The latest quote time we've read into mLastPrices
     
 	private OnItemClickListener mListViewItemClickListener = new OnItemClickListener() {
         public void onItemClick(AdapterView<?> parent, View v, int position, long id) {
@@ -113,12 +115,23 @@ public class PortfolioActivity extends ListActivity {
          */
         ArrayList<Holding> holdingList = mBusinessLogicHelper.getHoldingsByPortfolio(mPortfolioId) ;
 
+        /*
+         * Read the last fetched prices from the database.
+         */
+        readChangedPrices() ;
+
         mAdapter = new HoldingAdapter(getApplicationContext(), -1, holdingList) ;
         setListAdapter(mAdapter);
 
         mListView = getListView() ;
         mListView.setOnItemClickListener(mListViewItemClickListener) ;
 
+        /*
+         * Re-arm the refresh alarm - we may have been started without MainActivity, eg when the process is restored
+         * straight into this activity. Uses the interval MainActivity last stored.
+         */
+        RefreshScheduler.scheduleNext(this, false) ;
+
         Log.i(TAG, "onCreate() done") ;
     }
 
@@ -223,9 +236,8 @@ public class PortfolioActivity extends ListActivity {
 			holder.stockCode.setText(holding.getStockCode()) ;
 			holder.purchaseDate.setText(mFormatHelper.formatDate(holding.getPurchaseDate())) ;
 
-			if(mLastPricePrefs == null)
-				mLastPricePrefs = getSharedPreferences(MainActivity.SHARED_PREFS_LAST_PRICE_FILENAME, MODE_PRIVATE) ;
-			float currentPrice = mLastPricePrefs.getFloat(holding.getStockCode(), 0.0f) ;
+			Double lastPrice = mLastPrices.get(holding.getStockCode()) ;
+			double currentPrice = lastPrice == null ? 0.0 : lastPrice.doubleValue() ;
 
 			holder.currentUnitPrice.setText(mFormatHelper.formatCurrency(currentPrice, true)) ;
 			
@@ -377,6 +389,7 @@ public class PortfolioActivity extends ListActivity {
 		}
 		Log.i(TAG, "Refreshing prices via FinanceService...") ;
     	startService(intent);		
+    	RefreshScheduler.scheduleNext(this, true) ;
 	}
 
 	static final int DIALOG_PROGRESS = 1 ;
@@ -441,6 +454,17 @@ public class PortfolioActivity extends ListActivity {
     	return dialog ;
 	}
 
+	/**
+	 * Merges the prices that changed since we last looked into mLastPrices.
+	 */
+	private void readChangedPrices() {
+		for(StockPriceQuote quote : mBusinessLogicHelper.getPriceQuotesChangedSince(mLastPriceQuoteMillis)) {
+			mLastPrices.put(quote.getTicker(), quote.getLastPrice()) ;
+			if(quote.getQuoteTime() > mLastPriceQuoteMillis)
+				mLastPriceQuoteMillis = quote.getQuoteTime() ;
+		}
+	}
+
 	/**
 	 *
 	 */
@@ -463,19 +487,19 @@ public class PortfolioActivity extends ListActivity {
 			}
 
 			/*
-			 * Grab the updated stock prices
+			 * Grab the stock prices that changed since we last looked
 			 */
-			mLastPricePrefs = getSharedPreferences(MainActivity.SHARED_PREFS_LAST_PRICE_FILENAME, MODE_PRIVATE) ;
+			readChangedPrices() ;
 
-			Map<String, ?> lastPriceList = mLastPricePrefs.getAll() ;
 			double totalCost = 0.0f ;
 			double totalValue = 0.0f ;
 			int count = mAdapter.getCount() ;
 			for(int i = 0; i < count; i++) {
 				Holding holding = mAdapter.getItem(i) ;
-				float currentPrice = mLastPricePrefs.getFloat(holding.getStockCode(), -0.0f) ;
-				if(currentPrice == 0.0f)
+				Double lastPrice = mLastPrices.get(holding.getStockCode()) ;
+				if(lastPrice == null || lastPrice.doubleValue() == 0.0)
 					continue ;
+				double currentPrice = lastPrice.doubleValue() ;
 
 				double currentValue = currentPrice * holding.getRemainingQuantity() ;
 				double purchaseCost = holding.getPurchaseUnitPrice() * holding.getRemainingQuantity() ;
@@ -509,7 +533,7 @@ public class PortfolioActivity extends ListActivity {
 	 * 
 	 */
 	public class AlarmReceiver extends BroadcastReceiver {
-		public static final String RESPONSE_ACTION = "ozstock.alarm.receiver" ;
+		public static final String RESPONSE_ACTION = RefreshScheduler.ACTION_REFRESH_ALARM ;
 		public final String TAG = AlarmReceiver.class.getSimpleName() ;
 	    @Override
 	    public void onReceive(Context context, Intent intent) {
@@ -517,6 +541,7 @@ public class PortfolioActivity extends ListActivity {
 	    	Intent financeServiceIntent = new Intent(PortfolioActivity.this, FinanceService.class);
 			Log.i(TAG, "AlarmReceiver: Refreshing prices via FinanceService...") ;
 			context.startService(financeServiceIntent) ;
+			RefreshScheduler.scheduleNext(context, true) ;
 	    }
 	}
 	
@@ -9,7 +9,6 @@ import java.util.Date;
 import java.util.List;
 
 import org.amplexus.app.ozstock2.helper.BusinessLogicHelper;
-import org.amplexus.app.ozstock2.helper.DatabaseOpenHelper;
 import org.amplexus.app.ozstock2.helper.TextFormatHelper;
 import org.amplexus.app.ozstock2.values.Holding;
 import org.amplexus.app.ozstock2.values.SellTransaction;
@@ -18,7 +17,6 @@ import org.amplexus.app.ozstock2.values.SellAllocation;
 import android.app.Activity;
 import android.app.DatePickerDialog;
 import android.app.Dialog;
-import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Color;
@@ -26,17 +24,14 @@ import android.os.Bundle;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.Log;
-import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.View.OnFocusChangeListener;
-import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.ArrayAdapter;
 import android.widget.AutoCompleteTextView;
 import android.widget.Button;
-import android.widget.CursorAdapter;
 import android.widget.DatePicker;
 import android.widget.EditText;
 import android.widget.Spinner;
@@ -233,9 +228,29 @@ public class SellActivity extends Activity {
          */
        	
         mStockTickerCursor = mBusinessLogic.getAllPortfolioStockCodesCursor() ;
-        mStockTickerAdapter = new StockTickerAutoTextAdapter(getApplication(), mStockTickerCursor) ;
-        mStockTickerAutoCompleteTextView.setAdapter(mStockTickerAdapter);
-        mStockTickerAutoCompleteTextView.setOnItemClickListener(mStockTickerAdapter) ;
+        mStockTickerAdapter = new StockTickerAutoTextAdapter(getApplication(), mBusinessLogic, mStockTickerCursor, new StockTickerAutoTextAdapter.OnStockSelectedListener() {
+        	public void onStockSelected(String stockCode) {
+                /*
+                 * If we selected the same stock code, no need to re-read the db
+                 */
+                if(stockCode.compareTo(mTransaction.getStockCode()) == 0) 
+                	return ;
+                
+                mTransaction.setStockCode(stockCode) ;
+                
+                /*
+                 * Grab all the holdings for the newly selected stock code
+                 */
+        		mHoldingList = mBusinessLogic.getHoldingsByStockCode(mTransaction.getStockCode()) ;
+
+        		/*
+        		 * How many units of this stock do we have at our disposal?
+        		 */
+        		mMaxSellableQuantity = sumTotalHoldings(mHoldingList) ;
+                mSellQuantityEditText.requestFocus() ;
+        	}
+        }) ;
+        mStockTickerAdapter.attach(mStockTickerAutoCompleteTextView) ;
     	startManagingCursor(mStockTickerCursor) ;
 
 		/*
@@ -353,130 +368,6 @@ public class SellActivity extends Activity {
         
         // No need to sync sell date because it is updated immediately by the date picker dialog
 	}
-	
-	/**
-	 * The cursor adapter used to display the stock ticker pick list
-	 */
-    class StockTickerAutoTextAdapter extends CursorAdapter implements android.widget.AdapterView.OnItemClickListener {
-
-        private final String TAG = StockTickerAutoTextAdapter.class.getSimpleName() ;
-
-        public StockTickerAutoTextAdapter(Context app, Cursor cursor) {
-            super(app, cursor);
-		}
-		
-        /**
-         * Invoked by the AutoCompleteTextView field to get completions for the current input.
-         *
-         * NOTE: If this method either throws an exception or returns null, the Filter class that invokes it will log an error with the traceback,
-         * but otherwise ignore the problem. No choice list will be displayed. Watch those error logs!
-         *
-         * @param constraint The input entered thus far. The resulting query will search for Items whose description begins with this string.
-         * @return A Cursor that is positioned to the first row (if one exists) and managed by the activity.
-         */
-        @Override
-        public Cursor runQueryOnBackgroundThread(CharSequence constraint) {
-            Log.i(TAG, "runQueryOnBackgroundThread(): begins");
-            if (getFilterQueryProvider() != null) {
-                Log.i(TAG, "runQueryOnBackgroundThread(): ends - using queryFilterProvider");
-                return getFilterQueryProvider().runQuery(constraint);
-            }
-
-            Cursor cursor = mBusinessLogic.getStockRefByInputTextCursor((constraint != null ? constraint.toString() : ""));
-            Log.i(TAG, "runQueryOnBackgroundThread(): ends - got cursor");
-            return cursor;
-        }
-
-        /**
-         * Called by the AutoCompleteTextView field to get the text that will be entered in the field after a choice has been made.
-         *
-         * @param Cursor The cursor, positioned to a particular row in the list.
-         * @return A String representing the row's text value. (Note that this specializes the base class return value for this method, which is {@link CharSequence}.)
-         */
-        @Override
-        public String convertToString(Cursor cursor) {
-            Log.i(TAG, "convertToString(): begins");
-            final int columnIndex = cursor.getColumnIndexOrThrow(DatabaseOpenHelper.COL_SREF_STOCK_CODE);
-            final String str = cursor.getString(columnIndex);
-            Log.i(TAG, "convertToString(): ends - stockCode=" + str);
-            return str;
-        }
-
-        /**
-         * Called by the AutoCompleteTextView field when a choice has been made by the user.
-         *
-         * @param listView The ListView containing the choices that were displayed to the user.
-         * @param view The field representing the selected choice
-         * @param position The position of the choice within the list (0-based)
-         * @param id The id of the row that was chosen (as provided by the _id column in the cursor.
-         */
-		@Override
-		public void onItemClick(AdapterView<?> listView, View view, int position, long id) {
-            Log.i(TAG, "onItemClick(): begins");
-            Cursor cursor = (Cursor) listView.getItemAtPosition(position);
-
-            /*
-             * What stock code did we select?
-             */
-            String stockCode = cursor.getString(cursor.getColumnIndexOrThrow(DatabaseOpenHelper.COL_SREF_STOCK_CODE));
-            
-            /*
-             * If we selected the same stock code, no need to re-read the db
-             */
-            if(stockCode.compareTo(mTransaction.getStockCode()) == 0) 
-            	return ;
-            
-            mTransaction.setStockCode(stockCode) ;
-            
-            /*
-             * Grab all the holdings for the newly selected stock code
-             */
-    		mHoldingList = mBusinessLogic.getHoldingsByStockCode(mTransaction.getStockCode()) ;
-
-    		/*
-    		 * How many units of this stock do we have at our disposal?
-    		 */
-    		mMaxSellableQuantity = sumTotalHoldings(mHoldingList) ;
-            mSellQuantityEditText.requestFocus() ;
-            
-            Log.i(TAG, "onItemClick(): selected stock=" + mTransaction.getStockCode());
-		}
-
-		/**
-         * Called by the ListView for the AutoCompleteTextView field to display the text for a particular choice in the list.
-         *
-         * @param view The TextView used by the ListView to display a particular choice.
-         * @param context The context (Activity) to which this form belongs;
-         * @param cursor The cursor for the list of choices, positioned to a particular row.
-         */
-		@Override
-		public void bindView(View view, Context context, Cursor cursor) {
-            Log.i(TAG, "bindView(): begins");
-            final int stockCodeColumnIndex = cursor.getColumnIndexOrThrow(DatabaseOpenHelper.COL_SREF_STOCK_CODE);
-            final int stockNameColumnIndex = cursor.getColumnIndexOrThrow(DatabaseOpenHelper.COL_SREF_STOCK_NAME);
-            TextView stockCodeTextView = (TextView) view.findViewById(R.id.stockCode);
-            stockCodeTextView.setText(cursor.getString(stockCodeColumnIndex));
-            TextView stockNameTextView = (TextView) view.findViewById(R.id.stockName);
-            stockNameTextView.setText(cursor.getString(stockNameColumnIndex));
-            Log.i(TAG, "bindView(): ends");
-        }
-
-        /**
-         * Called by the AutoCompleteTextView field to display the text for a particular choice in the list.
-         *
-         * @param context The context (Activity) to which this form belongs;
-         * @param cursor the cursor for the list of choices, positioned to a particular row.
-         * @param parent The ListView that contains the list of choices.
-         *
-         * @return A new View (really, a TextView) to hold a particular choice.
-         */
-		@Override
-		public View newView(Context context, Cursor cursor, ViewGroup parent) {
-            final LayoutInflater inflater = LayoutInflater.from(context);
-            final View view = inflater.inflate(R.layout.stock_ticker_selector, parent, false);
-            return view;
-		}
-    }
     
     /**
      * Note that the onDateSet() year parameter is the proper year - ie 2012 etc, not years past 1900.
@@ -0,0 +1,247 @@
+package org.amplexus.app.ozstock2;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.amplexus.app.ozstock2.helper.BusinessLogicHelper;
+import org.amplexus.app.ozstock2.helper.DatabaseOpenHelper;
+import org.amplexus.app.ozstock2.values.StockRef;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.AutoCompleteTextView;
+import android.widget.CursorAdapter;
+import android.widget.Filter;
+import android.widget.TextView;
+
+/**
+ * The stock ticker pick list shared by the buy, sell and holding screens.
+ *
+ * Filtering runs on the Filter's worker thread and is tuned for someone typing a ticker or company name:
+ *
+ * - Debounce: each query waits DEBOUNCE_MILLIS before running, and is dropped if the user has typed something else in
+ *   the meantime. The pick list keeps showing the last results until the newest input has been answered.
+ * - Caching: the results for the last CACHE_SIZE inputs are kept, so backspacing over the input doesn't query again.
+ *
+ * Queries are answered by BusinessLogicHelper.getStockRefByInputText() from the in-memory StockRefIndex, which already
+ * narrows a prefix with a trie walk and a binary search, so there's no database query to save by filtering the previous
+ * results here. If STOCK_REF grows past BusinessLogicHelper.FTS_SEARCH_MIN_COMPANIES, they're answered by 
+ * BusinessLogicHelper.searchStockRef() from the STOCK_REF_FTS full text index instead.
+ *
+ * Call attach() to wire the adapter to its field - without it the adapter can't tell when a query has been superseded.
+ *
+ * @author craig
+ */
+public class StockTickerAutoTextAdapter extends CursorAdapter implements AdapterView.OnItemClickListener {
+
+	/**
+	 * Receives the stock the user picked.
+	 */
+	public interface OnStockSelectedListener {
+		public void onStockSelected(String stockCode) ;
+	}
+
+	private static final String TAG = StockTickerAutoTextAdapter.class.getSimpleName() ;
+
+	private static final long DEBOUNCE_MILLIS = 200 ;	// How long to wait for the user to stop typing before querying
+	private static final int CACHE_SIZE = 16 ;			// The number of inputs to keep the results of
+
+	private final BusinessLogicHelper mBusinessLogic ;
+	private final OnStockSelectedListener mListener ;
+	private final StockTickerFilter mFilter = new StockTickerFilter() ;
+
+	private volatile String mLatestInput ;				// What's in the field now, or null if not attached
+	private volatile int mPublishedCount ;				// The number of rows in the pick list
+	private List<StockRef> mPublished ;					// The rows in the pick list, or null for the initial cursor - only touched on the UI thread
+
+	/*
+	 * The results for recent inputs, least recently used first - only touched on the filter thread
+	 */
+	private final LinkedHashMap<String, List<StockRef>> mCache = new LinkedHashMap<String, List<StockRef>>(CACHE_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L ;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, List<StockRef>> eldest) {
+			return size() > CACHE_SIZE ;
+		}
+	} ;
+
+	/**
+	 * @param context
+	 * @param businessLogic answers the queries
+	 * @param cursor the rows to show before the user has typed anything - may be null
+	 * @param listener told when the user picks a stock - may be null
+	 */
+	public StockTickerAutoTextAdapter(Context context, BusinessLogicHelper businessLogic, Cursor cursor, OnStockSelectedListener listener) {
+		super(context, cursor) ;
+		mBusinessLogic = businessLogic ;
+		mListener = listener ;
+		mPublishedCount = cursor == null ? 0 : cursor.getCount() ;
+	}
+
+	/**
+	 * Makes this the field's adapter and item click listener, and tracks what's typed into it so superseded queries can
+	 * be dropped.
+	 *
+	 * @param view the stock code field
+	 */
+	public void attach(AutoCompleteTextView view) {
+		mLatestInput = normalise(view.getText()) ;
+		view.addTextChangedListener(new TextWatcher() {
+			public void afterTextChanged(Editable s) {
+				mLatestInput = normalise(s) ;
+			}
+
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+			}
+
+			public void onTextChanged(CharSequence s, int start, int before, int count) {
+			}
+		}) ;
+		view.setAdapter(this) ;
+		view.setOnItemClickListener(this) ;
+	}
+
+	@Override
+	public Filter getFilter() {
+		return mFilter ;
+	}
+
+	/**
+	 * Called by the AutoCompleteTextView field to get the text that will be entered in the field after a choice has been made.
+	 *
+	 * @param cursor The cursor, positioned to a particular row in the list.
+	 * @return the row's stock code
+	 */
+	@Override
+	public String convertToString(Cursor cursor) {
+		return cursor.getString(cursor.getColumnIndexOrThrow(DatabaseOpenHelper.COL_SREF_STOCK_CODE)) ;
+	}
+
+	/**
+	 * Called by the AutoCompleteTextView field when a choice has been made by the user.
+	 *
+	 * @param listView The ListView containing the choices that were displayed to the user.
+	 * @param view The field representing the selected choice
+	 * @param position The position of the choice within the list (0-based)
+	 * @param id The id of the row that was chosen (as provided by the _id column in the cursor.
+	 */
+	public void onItemClick(AdapterView<?> listView, View view, int position, long id) {
+		Cursor cursor = (Cursor) listView.getItemAtPosition(position) ;
+		String stockCode = convertToString(cursor) ;
+		Log.i(TAG, "onItemClick(): selected stock=" + stockCode) ;
+		if(mListener != null)
+			mListener.onStockSelected(stockCode) ;
+	}
+
+	/**
+	 * Called by the ListView for the AutoCompleteTextView field to display the text for a particular choice in the list.
+	 *
+	 * @param view The view returned by newView().
+	 * @param context The context (Activity) to which this form belongs;
+	 * @param cursor The cursor for the list of choices, positioned to a particular row.
+	 */
+	@Override
+	public void bindView(View view, Context context, Cursor cursor) {
+		TextView stockCodeTextView = (TextView) view.findViewById(R.id.stockCode) ;
+		stockCodeTextView.setText(cursor.getString(cursor.getColumnIndexOrThrow(DatabaseOpenHelper.COL_SREF_STOCK_CODE))) ;
+		TextView stockNameTextView = (TextView) view.findViewById(R.id.stockName) ;
+		stockNameTextView.setText(cursor.getString(cursor.getColumnIndexOrThrow(DatabaseOpenHelper.COL_SREF_STOCK_NAME))) ;
+	}
+
+	/**
+	 * Called by the AutoCompleteTextView field to display the text for a particular choice in the list.
+	 *
+	 * @param context The context (Activity) to which this form belongs;
+	 * @param cursor the cursor for the list of choices, positioned to a particular row.
+	 * @param parent The ListView that contains the list of choices.
+	 * @return A new View to hold a particular choice.
+	 */
+	@Override
+	public View newView(Context context, Cursor cursor, ViewGroup parent) {
+		return LayoutInflater.from(context).inflate(R.layout.stock_ticker_selector, parent, false) ;
+	}
+
+	/**
+	 * @return the input trimmed and upper cased - the key for the cache and the supersession check
+	 */
+	private static String normalise(CharSequence input) {
+		return input == null ? "" : input.toString().trim().toUpperCase(Locale.US) ;
+	}
+
+	/**
+	 * @return true if the user has typed something other than input since it was filtered
+	 */
+	private boolean isSuperseded(String input) {
+		String latest = mLatestInput ;
+		return latest != null && ! latest.equals(input) ;
+	}
+
+	/**
+	 * @return the companies matching input - from the cache if we've seen it recently
+	 */
+	private List<StockRef> lookup(String input) {
+		List<StockRef> result = mCache.get(input) ;
+		if(result == null) {
+			result = mBusinessLogic.isStockRefSearchedByFts() ? mBusinessLogic.searchStockRef(input) : mBusinessLogic.getStockRefByInputText(input) ;
+			mCache.put(input, result) ;
+		}
+		return result ;
+	}
+
+	/**
+	 * Answers the field's queries on the Filter's worker thread, and swaps the results into the adapter on the UI thread.
+	 */
+	private class StockTickerFilter extends Filter {
+
+		@Override
+		protected FilterResults performFiltering(CharSequence constraint) {
+			String input = normalise(constraint) ;
+			FilterResults results = new FilterResults() ;
+			results.count = mPublishedCount ;	// What the field is told if this query is dropped
+			try {
+				Thread.sleep(DEBOUNCE_MILLIS) ;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt() ;
+				return results ;
+			}
+			if(isSuperseded(input)) {
+				Log.i(TAG, "performFiltering(): input=" + input + " - superseded before querying") ;
+				return results ;
+			}
+			List<StockRef> stockRefList = lookup(input) ;
+			if(isSuperseded(input)) {
+				Log.i(TAG, "performFiltering(): input=" + input + " - superseded while querying") ;
+				return results ;
+			}
+			results.values = stockRefList ;
+			results.count = stockRefList.size() ;
+			return results ;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		protected void publishResults(CharSequence constraint, FilterResults results) {
+			if(results.values == null || results.values == mPublished)
+				return ;		// Dropped, or the same cached rows as the pick list already has
+			List<StockRef> stockRefList = (List<StockRef>) results.values ;
+			mPublished = stockRefList ;
+			mPublishedCount = stockRefList.size() ;
+			changeCursor(BusinessLogicHelper.newStockRefCursor(stockRefList)) ;
+		}
+
+		@Override
+		public CharSequence convertResultToString(Object resultValue) {
+			return convertToString((Cursor) resultValue) ;
+		}
+	}
+}
@@ -1,25 +1,34 @@
 package org.amplexus.app.ozstock2.helper;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 
 import org.amplexus.app.ozstock2.values.StockRef;
-import org.apache.http.util.ByteArrayBuffer;
+import org.amplexus.app.ozstock2.values.StockRefSyncResult;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Environment;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 public class ASXHelper {
@@ -29,6 +38,36 @@ public class ASXHelper {
 	public static final String ASX_LISTED_COMPANIES_CSV_ASSET_FILENAME = "ASXListedCompanies.csv" ;
 	public static final String ASX_LISTED_COMPANIES_CSV_DOWNLOAD_FILENAME = 
 			Environment.getExternalStorageDirectory() + File.separator + "ozstock2" + File.separator + ASX_LISTED_COMPANIES_CSV_ASSET_FILENAME ;
+	public static final String PREBUILT_STOCK_REF_ASSET_FILENAME = "stockref.db" ;	// Built from the CSV asset by the buildStockRefDb gradle task
+
+	/*
+	 * downloadListedCompanies() results
+	 */
+	public static final int DOWNLOAD_FAILED = 0 ;
+	public static final int DOWNLOAD_UPDATED = 1 ;
+	public static final int DOWNLOAD_NOT_MODIFIED = 2 ;							// We already have the latest copy
+
+	/*
+	 * The listed companies file's column headers
+	 */
+	private static final String HEADER_CODE = "ASX code" ;
+	private static final String HEADER_NAME = "Company name" ;
+	private static final String HEADER_INDUSTRY_GROUP = "GICS industry group" ;
+	private static final int CODE_COLUMN = 0 ;								// Indexes into readListedCompanies()' columns
+	private static final int NAME_COLUMN = 1 ;
+	private static final int INDUSTRY_GROUP_COLUMN = 2 ;
+
+	private static final String PART_FILE_SUFFIX = ".part" ;					// An incomplete download
+	private static final long TRANSFER_CHUNK_SIZE = 64 * 1024 ;
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416 ;				// HttpURLConnection has no constant for it
+
+	private static final String SHARED_PREFS_LISTED_COMPANIES_ETAG_ATTR = "listedCompaniesETag" ;
+	private static final String SHARED_PREFS_LISTED_COMPANIES_LAST_MODIFIED_ATTR = "listedCompaniesLastModified" ;
+	private static final String SHARED_PREFS_LISTED_COMPANIES_PART_VALIDATOR_ATTR = "listedCompaniesPartValidator" ;	// The ETag or Last-Modified of the .part file
+	private static final String SHARED_PREFS_STOCK_REF_VERSION_ATTR = "stockRefVersion" ;			// The "as at" date (yyyymmdd) of the list STOCK_REF was loaded from
+	private static final String SHARED_PREFS_STOCK_REF_CHECK_TIME_ATTR = "stockRefCheckTimeMillis" ;	// When the bundled list was last checked against STOCK_REF
+
+	private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" } ;
 	
 	private Context mContext ;
 	private BusinessLogicHelper mBusinessLogic ;
@@ -48,7 +87,7 @@ public class ASXHelper {
 		Log.i(TAG, "loadStockRef(): no rows found in DB. seeding DB from " + ASXHelper.ASX_LISTED_COMPANIES_CSV_DOWNLOAD_FILENAME) ;
 		try {
 			InputStream is = new FileInputStream(ASXHelper.ASX_LISTED_COMPANIES_CSV_DOWNLOAD_FILENAME) ;
-			loadStockRefFromStream(is, stockRefList);
+			loadStockRefFromStream(is, stockRefList, false);
 			is.close() ;
 		} catch (IOException e) {
 			Log.e(TAG, "loadStockRefFromDownloadedFile(): Error reading " + ASXHelper.ASX_LISTED_COMPANIES_CSV_DOWNLOAD_FILENAME	+ " -> " + e.getMessage(), e);
@@ -59,7 +98,81 @@ public class ASXHelper {
 	}
 	
 	/**
-	 * Loads the STOCK_REF table from the downloaded listed companies file.
+	 * Checks whether the STOCK_REF table needs loading from the bundled company list - either because it's empty, or
+	 * because the app has been updated (and so may bundle a newer list) since the list was last checked.
+	 * 
+	 * @return true if loadStockRefFromPrebuiltDb() / loadStockRefFromAssets() should be run
+	 */
+	public boolean isStockRefSeedNeeded() {
+		if(mBusinessLogic.getStockRefCount() == 0)
+			return true ;
+
+		long lastUpdateTime = 0 ;
+		try {
+			lastUpdateTime = mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0).lastUpdateTime ;
+		} catch (PackageManager.NameNotFoundException e) {
+			Log.e(TAG, "isStockRefSeedNeeded(): can't find our own package", e) ;
+		}
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext) ;
+		return lastUpdateTime > prefs.getLong(SHARED_PREFS_STOCK_REF_CHECK_TIME_ATTR, 0L) ;
+	}
+
+	/**
+	 * Loads the STOCK_REF table from the prebuilt database asset.
+	 * 
+	 * The asset is copied out of the APK and ATTACHed, and an empty STOCK_REF is filled with a single INSERT ... SELECT - 
+	 * there's no CSV to parse and no per-row work in Java. A STOCK_REF that was already loaded is only synced with the 
+	 * asset if the asset's list is no older, so a list downloaded from the ASX since the app was built isn't overwritten.
+	 * A list as old as the loaded one is still synced, to fill in anything a schema upgrade added - eg the industry 
+	 * groups - since the sync only writes the rows that differ.
+	 * 
+	 * @param stockRefList populated with the contents of STOCK_REF
+	 * @return true if STOCK_REF is up to date, false if the asset couldn't be loaded and loadStockRefFromAssets() should 
+	 * be used instead
+	 */
+	public boolean loadStockRefFromPrebuiltDb(ArrayList<StockRef> stockRefList) {
+		long startMillis = Calendar.getInstance().getTimeInMillis() ;
+		File dbFile = new File(mContext.getCacheDir(), PREBUILT_STOCK_REF_ASSET_FILENAME) ;
+		try {
+			copyAsset(PREBUILT_STOCK_REF_ASSET_FILENAME, dbFile) ;
+
+			int version ;
+			SQLiteDatabase prebuiltDb = SQLiteDatabase.openDatabase(dbFile.getPath(), null, SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS) ;
+			try {
+				version = prebuiltDb.getVersion() ;
+			} finally {
+				prebuiltDb.close() ;
+			}
+
+			SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext) ;
+			int currentVersion = prefs.getInt(SHARED_PREFS_STOCK_REF_VERSION_ATTR, 0) ;
+			if(version < currentVersion && mBusinessLogic.getStockRefCount() > 0) {
+				Log.i(TAG, "loadStockRefFromPrebuiltDb(): STOCK_REF was loaded from a list as at " + currentVersion + " - ignoring the bundled list as at " + version) ;
+			} else {
+				StockRefSyncResult result = mBusinessLogic.syncAllStockRefFromDatabase(dbFile.getPath()) ;
+				Log.i(TAG, "loadStockRefFromPrebuiltDb(): loaded the list as at " + version + ": " + result) ;
+			}
+			recordStockRefLoaded(version) ;
+		} catch (IOException e) {
+			Log.w(TAG, "loadStockRefFromPrebuiltDb(): can't read " + PREBUILT_STOCK_REF_ASSET_FILENAME + " -> " + e.getMessage()) ;
+			return false ;
+		} catch (SQLiteException e) {
+			Log.e(TAG, "loadStockRefFromPrebuiltDb(): can't load " + PREBUILT_STOCK_REF_ASSET_FILENAME, e) ;
+			return false ;
+		} finally {
+			dbFile.delete() ;
+		}
+
+		stockRefList.clear() ;
+		stockRefList.addAll(mBusinessLogic.getAllStockRef()) ;
+		mBusinessLogic.indexStockNames(stockRefList) ;
+		Log.i(TAG, "loadStockRefFromPrebuiltDb(): " + stockRefList.size() + " companies in " + (Calendar.getInstance().getTimeInMillis() - startMillis) + "ms") ;
+		return true ;
+	}
+
+	/**
+	 * Loads the STOCK_REF table from the company list CSV in the assets. This is the fallback if there's no prebuilt
+	 * database asset. As with the prebuilt database, a list downloaded since the app was built isn't overwritten.
 	 *  
 	 * @return true if the file was loaded successfully, false if not.
 	 */
@@ -69,7 +182,7 @@ public class ASXHelper {
 
 		try {
 			InputStream is = mContext.getAssets().open(ASXHelper.ASX_LISTED_COMPANIES_CSV_ASSET_FILENAME);
-			loadStockRefFromStream(is, stockRefList);
+			loadStockRefFromStream(is, stockRefList, true);
 			is.close() ;
 		} catch (IOException e) {
 			Log.e(TAG, "loadStockRefFromAssets(): Error reading " + ASXHelper.ASX_LISTED_COMPANIES_CSV_ASSET_FILENAME + " -> " + e.getMessage(), e);
@@ -82,105 +195,316 @@ public class ASXHelper {
 	/**
 	 * Helper for loading the STOCK_REF table and populating the accompanying cache.
 	 * 
-	 * Deletes all rows in the STOCK_REF table
 	 * Resets the cache
-	 * Reads the listed companies file.
-	 * For each record:
-	 *  - inserts a row into STOCK_REF
-	 *  - inserts an entry into the cached copy
+	 * Reads the listed companies file into the cache - see readListedCompanies().
+	 * If the STOCK_REF table is empty, bulk loads it from the cache. Otherwise syncs the STOCK_REF table with the cache - 
+	 * only the companies that were listed, delisted or renamed are written.
+	 * Brings the fuzzy company name index up to date with the table.
 	 * @param is
+	 * @param unlessOlder true to leave a loaded STOCK_REF alone if the file's list is older than the one it was loaded from
 	 * @throws IOException
 	 */
-	private void loadStockRefFromStream(InputStream is, ArrayList<StockRef> stockRefList) throws IOException {
+	private void loadStockRefFromStream(InputStream is, ArrayList<StockRef> stockRefList, boolean unlessOlder) throws IOException {
 
 		stockRefList.clear() ;
 
 		long startMillis = Calendar.getInstance().getTimeInMillis() ;
-		BufferedReader br = new BufferedReader(new InputStreamReader(is)) ;
-		String readLine = null ;
-		while ((readLine = br.readLine()) != null) {
-			String[] fields = readLine.split(",") ;
-			if (fields.length >= 3) {
-				StockRef stockRef = new StockRef() ;
-				stockRef.setStockCode(fields[1]) ;
-				String stockName = fields[0].replaceAll("\"", "") ;
-				stockRef.setStockName(stockName) ;
-				stockRefList.add(stockRef) ;
-			} else {
-				Log.i(TAG, "loadStockRefFromStream(): ignoring record with " + fields.length + " fields: " + readLine) ;
-			}
-		}
+		int version = readListedCompanies(new InputStreamReader(is, "UTF-8"), stockRefList) ;
 		long fileLoadEndMillis = Calendar.getInstance().getTimeInMillis() ;
-		Log.i(TAG, "loadStockRefFromStream: stock ref file loaded in " + (fileLoadEndMillis - startMillis) + "ms") ;
+		Log.i(TAG, "loadStockRefFromStream: stock ref file as at " + version + " loaded in " + (fileLoadEndMillis - startMillis) + "ms") ;
 		startMillis = Calendar.getInstance().getTimeInMillis() ;
-		mBusinessLogic.writeAllStockRef(stockRefList) ;
-		long tableLoadEndMillis = Calendar.getInstance().getTimeInMillis() ;
-		Log.i(TAG, "loadStockRefFromStream: stock ref table loaded in " + (tableLoadEndMillis - startMillis) + "ms") ;
+		long count = mBusinessLogic.getStockRefCount() ;
+		int currentVersion = PreferenceManager.getDefaultSharedPreferences(mContext).getInt(SHARED_PREFS_STOCK_REF_VERSION_ATTR, 0) ;
+		if(unlessOlder && count > 0 && version < currentVersion) {
+			Log.i(TAG, "loadStockRefFromStream: STOCK_REF was loaded from a list as at " + currentVersion + " - leaving it alone") ;
+		} else if(count == 0) {
+			mBusinessLogic.writeAllStockRef(stockRefList) ;
+			long tableLoadEndMillis = Calendar.getInstance().getTimeInMillis() ;
+			Log.i(TAG, "loadStockRefFromStream: stock ref table loaded in " + (tableLoadEndMillis - startMillis) + "ms") ;
+		} else {
+			StockRefSyncResult result = mBusinessLogic.syncAllStockRef(stockRefList) ;
+			long tableLoadEndMillis = Calendar.getInstance().getTimeInMillis() ;
+			Log.i(TAG, "loadStockRefFromStream: stock ref table synced in " + (tableLoadEndMillis - startMillis) + "ms: " + result) ;
+		}
+		mBusinessLogic.indexStockNames(mBusinessLogic.getAllStockRef()) ;		// Read back for the ids - the file has none
+		recordStockRefLoaded(version) ;
+	}
+
+	/**
+	 * Remembers the "as at" date of the list STOCK_REF now holds, and that the bundled list has been checked.
+	 * 
+	 * @param version the list's "as at" date as yyyymmdd, or 0 if unknown
+	 */
+	private void recordStockRefLoaded(int version) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext) ;
+		SharedPreferences.Editor prefsEditor = prefs.edit() ;
+		if(version > prefs.getInt(SHARED_PREFS_STOCK_REF_VERSION_ATTR, 0))
+			prefsEditor.putInt(SHARED_PREFS_STOCK_REF_VERSION_ATTR, version) ;
+		prefsEditor.putLong(SHARED_PREFS_STOCK_REF_CHECK_TIME_ATTR, Calendar.getInstance().getTimeInMillis()) ;
+		prefsEditor.commit() ;
+	}
+
+	/**
+	 * Copies a file out of the assets.
+	 */
+	private void copyAsset(String assetName, File file) throws IOException {
+		InputStream is = mContext.getAssets().open(assetName) ;
+		try {
+			FileOutputStream os = new FileOutputStream(file) ;
+			try {
+				byte[] buffer = new byte[8192] ;
+				int n ;
+				while((n = is.read(buffer)) > 0)
+					os.write(buffer, 0, n) ;
+			} finally {
+				os.close() ;
+			}
+		} finally {
+			is.close() ;
+		}
+	}
+
+	/**
+	 * Finds the "as at" date in the listed companies file's preamble, eg "ASX listed companies as at Mon Apr 16 16:50:25 EST 2012".
+	 * 
+	 * The time zone abbreviation (EST) is ambiguous to SimpleDateFormat, so the month, day and year are picked out by 
+	 * position instead. Keep in step with parseAsAtVersion() in build.gradle.
+	 * 
+	 * @param preamble the first line of the file
+	 * @return the date as yyyymmdd, or 0 if it can't be found
+	 */
+	static int parseAsAtVersion(String preamble) {
+		String[] tokens = preamble.trim().split("\\s+") ;
+		if(tokens.length < 5)
+			return 0 ;
+		try {
+			int year = Integer.parseInt(tokens[tokens.length - 1]) ;
+			int day = Integer.parseInt(tokens[tokens.length - 4]) ;
+			for(int month = 0; month < MONTHS.length; month++) {
+				if(MONTHS[month].equals(tokens[tokens.length - 5]))
+					return year * 10000 + (month + 1) * 100 + day ;
+			}
+		} catch (NumberFormatException e) {
+			/* Not a date */
+		}
+		return 0 ;
 	}
 	
+	/**
+	 * Parses the listed companies file.
+	 * 
+	 * The file starts with a preamble ("ASX listed companies as at ...") and a blank line before the header row. Records
+	 * before the header are skipped, and the code and name columns are found by their header names, so the file is still
+	 * read correctly if the ASX reorders its columns. Company names are quoted and may contain commas. The GICS industry
+	 * group column is optional - without it every company is unclassified.
+	 * 
+	 * @param reader the listed companies file
+	 * @param stockRefList populated with a StockRef for each company
+	 * @return the list's "as at" date as yyyymmdd, or 0 if the preamble doesn't have one
+	 * @throws IOException if the file could not be read or has no header row
+	 */
+	static int readListedCompanies(Reader reader, final ArrayList<StockRef> stockRefList) throws IOException {
+		final int[] columns = { -1, -1, -1 } ;	// The code, name and industry group columns, once the header has been read
+		final int[] version = { 0 } ;
+		final HashMap<String, String> industryGroups = new HashMap<String, String>() ;	// So companies in a group share one String
+		new CsvReader(reader).read(new CsvReader.RowHandler() {
+			public boolean onRow(CsvReader row) {
+				if(columns[CODE_COLUMN] < 0) {
+					if(row.getRecordNumber() == 1)
+						version[0] = parseAsAtVersion(row.getField(0)) ;
+					columns[CODE_COLUMN] = row.indexOf(HEADER_CODE) ;
+					columns[NAME_COLUMN] = row.indexOf(HEADER_NAME) ;
+					columns[INDUSTRY_GROUP_COLUMN] = row.indexOf(HEADER_INDUSTRY_GROUP) ;
+					if(columns[CODE_COLUMN] < 0 || columns[NAME_COLUMN] < 0)
+						columns[CODE_COLUMN] = columns[NAME_COLUMN] = -1 ;	// Still in the preamble
+					return true ;
+				}
+
+				if(row.getFieldLength(columns[CODE_COLUMN]) <= 0) {
+					Log.i(TAG, "readListedCompanies(): ignoring record on line " + row.getLineNumber() + " with " + row.getFieldCount() + " fields") ;
+					return true ;
+				}
+				StockRef stockRef = new StockRef() ;
+				stockRef.setStockCode(row.getTrimmedField(columns[CODE_COLUMN])) ;
+				stockRef.setStockName(row.getTrimmedField(columns[NAME_COLUMN])) ;
+				String industryGroup = row.getTrimmedField(columns[INDUSTRY_GROUP_COLUMN]) ;
+				if(industryGroup != null && industryGroup.length() > 0) {
+					String shared = industryGroups.get(industryGroup) ;
+					if(shared == null)
+						industryGroups.put(industryGroup, industryGroup) ;
+					else
+						industryGroup = shared ;
+					stockRef.setIndustryGroup(industryGroup) ;
+				}
+				stockRefList.add(stockRef) ;
+				return true ;
+			}
+		}) ;
+		if(columns[CODE_COLUMN] < 0)
+			throw new IOException("No \"" + HEADER_CODE + "\" header row found in listed companies file") ;
+		return version[0] ;
+	}
+
 	/**
 	 * Downloads the listed companies reference file from the ASX website.
 	 * 
-	 * @param outputFileName
+	 * The response is streamed through a fixed buffer into outputFileName + PART_FILE_SUFFIX, which is renamed over the 
+	 * output file once the whole body has arrived - so a failed download never leaves a truncated file behind.
+	 * 
+	 * - If we already have the file, the request is conditional on the ETag / Last-Modified the ASX sent with it, and an
+	 *   unchanged file isn't fetched again.
+	 * - If an earlier download was interrupted, the request asks for the rest of the file with a Range header. If-Range 
+	 *   makes the ASX send the whole file instead if it has changed since the partial copy was started.
+	 * 
+	 * @param urlName the URL of the listed companies file
+	 * @param outputFileName where to store it
+	 * @return DOWNLOAD_UPDATED, DOWNLOAD_NOT_MODIFIED or DOWNLOAD_FAILED
 	 */
-	public boolean downloadListedCompanies(String urlName, String outputFileName) {
+	public int downloadListedCompanies(String urlName, String outputFileName) {
 		Log.i(TAG, "downloadListedCompanies(): starting: outputFileName=" + outputFileName);
+
+		ConnectivityManager cm = (ConnectivityManager)mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+		 
+		NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+		boolean isConnected = activeNetwork != null && activeNetwork.isConnectedOrConnecting();
+		if(!isConnected) {
+			Log.e(TAG, "downloadListedCompanies(): No network connection - aborting") ;
+			return DOWNLOAD_FAILED ;
+		}
+
+		File outputFile = new File(outputFileName);
+		File partFile = new File(outputFileName + PART_FILE_SUFFIX) ;
+		File dir = outputFile.getParentFile() ;
+		if(dir != null && ! dir.exists())
+			dir.mkdirs() ;
+
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext) ;
+		String etag = prefs.getString(SHARED_PREFS_LISTED_COMPANIES_ETAG_ATTR, null) ;
+		String lastModified = prefs.getString(SHARED_PREFS_LISTED_COMPANIES_LAST_MODIFIED_ATTR, null) ;
+		String partValidator = prefs.getString(SHARED_PREFS_LISTED_COMPANIES_PART_VALIDATOR_ATTR, null) ;
+
+		long startTime = System.currentTimeMillis();
+		HttpURLConnection connection = null ;
 		try {
-			String dirName = Environment.getExternalStorageDirectory() + File.separator + "ozstock2" ;
-			File dir = new File(dirName) ;
-			if(! dir.exists())
-				dir.mkdir() ;
-			
-			ConnectivityManager cm = (ConnectivityManager)mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
-			 
-			NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
-			boolean isConnected = activeNetwork.isConnectedOrConnecting();
-			if(!isConnected) {
-				Log.e(TAG, "downloadListedCompanies(): No network connection - aborting") ;
-				return false ;
-			}
-			
-			
 			URL url = new URL(urlName) ;
-			File outputFile = new File(outputFileName);
+			Log.i(TAG, "downloadListedCompanies(): url=" + url) ;
 
-			long startTime = System.currentTimeMillis();
-			Log.i(TAG, "download begining");
-			Log.i(TAG, "download url: " + url);
-			Log.i(TAG, "downloaded file name: " + outputFileName) ;
+			connection = (HttpURLConnection)url.openConnection() ;
+			connection.setConnectTimeout(HttpClientHelper.DEFAULT_CONNECT_TIMEOUT_MILLIS) ;
+			connection.setReadTimeout(HttpClientHelper.DEFAULT_READ_TIMEOUT_MILLIS) ;
+			connection.setRequestProperty("Accept-Encoding", "identity") ;	// Byte ranges are only meaningful on the raw file
 
-			/*
-			 * Open a connection to that URL.
-			 */
-			URLConnection ucon = url.openConnection();
+			if(outputFile.exists()) {
+				if(etag != null)
+					connection.setRequestProperty("If-None-Match", etag) ;
+				if(lastModified != null)
+					connection.setRequestProperty("If-Modified-Since", lastModified) ;
+			}
 
-			/*
-			 * Define InputStreams to read from the URLConnection.
-			 */
-			InputStream is = ucon.getInputStream();
-			BufferedInputStream bis = new BufferedInputStream(is);
+			long resumeFrom = 0 ;
+			if(partFile.exists() && partFile.length() > 0 && partValidator != null) {
+				resumeFrom = partFile.length() ;
+				connection.setRequestProperty("Range", "bytes=" + resumeFrom + "-") ;
+				connection.setRequestProperty("If-Range", partValidator) ;
+			}
+
+			int status = connection.getResponseCode() ;
+			if(status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				Log.i(TAG, "downloadListedCompanies(): " + outputFileName + " is up to date") ;
+				return DOWNLOAD_NOT_MODIFIED ;
+			}
+			if(status == HttpURLConnection.HTTP_PARTIAL) {
+				String contentRange = connection.getHeaderField("Content-Range") ;
+				if(contentRange == null || ! contentRange.startsWith("bytes " + resumeFrom + "-")) {
+					discardPartFile(partFile, prefs) ;
+					throw new IOException("Unexpected Content-Range " + contentRange + " resuming from byte " + resumeFrom) ;
+				}
+				Log.i(TAG, "downloadListedCompanies(): resuming from byte " + resumeFrom) ;
+			} else if(status == HttpURLConnection.HTTP_OK) {
+				resumeFrom = 0 ;
+			} else {
+				/*
+				 * Eg a 416 because the partial copy is already complete - it was the rename or the length check that 
+				 * failed last time. Start again from scratch next time rather than asking for the same range forever.
+				 */
+				if(resumeFrom > 0 || status == HTTP_RANGE_NOT_SATISFIABLE)
+					discardPartFile(partFile, prefs) ;
+				throw new IOException("HTTP " + status + " " + connection.getResponseMessage()) ;
+			}
 
 			/*
-			 * Read bytes to the Buffer until there is nothing more to read(-1).
+			 * Remember what the partial copy is a copy of, so it can be resumed if we're interrupted
 			 */
-			ByteArrayBuffer baf = new ByteArrayBuffer(1024);
-			int current = 0;
-			while ((current = bis.read()) != -1) {
-				baf.append((byte) current);
+			String newEtag = connection.getHeaderField("ETag") ;
+			String newLastModified = connection.getHeaderField("Last-Modified") ;
+			prefs.edit().putString(SHARED_PREFS_LISTED_COMPANIES_PART_VALIDATOR_ATTR, newEtag != null ? newEtag : newLastModified).commit() ;
+
+			long bytes = transfer(connection.getInputStream(), partFile, resumeFrom) ;
+
+			long contentLength = connection.getContentLength() ;
+			if(contentLength >= 0 && bytes != contentLength)
+				throw new IOException("Expected " + contentLength + " bytes but received " + bytes) ;
+
+			if(! partFile.renameTo(outputFile)) {
+				/*
+				 * Some filesystems won't rename over an existing file
+				 */
+				outputFile.delete() ;
+				if(! partFile.renameTo(outputFile))
+					throw new IOException("Failed to rename " + partFile + " to " + outputFile) ;
 			}
 
-			/* Convert the Bytes read to a String. */
-			FileOutputStream fos = new FileOutputStream(outputFile);
-			fos.write(baf.toByteArray());
-			fos.close();
-			Log.i(TAG, "download completed in " + ((System.currentTimeMillis() - startTime) / 1000) + " seconds");
+			prefs.edit()
+				.putString(SHARED_PREFS_LISTED_COMPANIES_ETAG_ATTR, newEtag)
+				.putString(SHARED_PREFS_LISTED_COMPANIES_LAST_MODIFIED_ATTR, newLastModified)
+				.remove(SHARED_PREFS_LISTED_COMPANIES_PART_VALIDATOR_ATTR)
+				.commit() ;
 
+			Log.i(TAG, "downloadListedCompanies(): downloaded " + (resumeFrom + bytes) + " bytes (" + bytes + " this time) in " + (System.currentTimeMillis() - startTime) + "ms");
 		} catch (IOException e) {
-			Log.e(TAG, "Error downloading from " + urlName	+ ": " + e.getMessage(), e);
-			return false ;
+			Log.e(TAG, "downloadListedCompanies(): Error downloading from " + urlName + ": " + e.getMessage(), e);
+			return DOWNLOAD_FAILED ;
+		} finally {
+			if(connection != null)
+				connection.disconnect() ;
 		}
 		Log.i(TAG, "downloadListedCompanies(): done");
-		return true ;
+		return DOWNLOAD_UPDATED ;
+	}
+
+	/**
+	 * Deletes a partial download that can't be resumed, and forgets what it was a copy of.
+	 */
+	private static void discardPartFile(File partFile, SharedPreferences prefs) {
+		Log.w(TAG, "discardPartFile(): discarding " + partFile + " (" + partFile.length() + " bytes) - the next download starts from scratch") ;
+		partFile.delete() ;
+		prefs.edit().remove(SHARED_PREFS_LISTED_COMPANIES_PART_VALIDATOR_ATTR).commit() ;
+	}
+
+	/**
+	 * Streams the response body into the file, starting at the specified offset.
+	 * 
+	 * @param is the response body
+	 * @param file the file to write
+	 * @param offset where to start writing - anything in the file beyond this is discarded
+	 * @return the number of bytes written
+	 */
+	private static long transfer(InputStream is, File file, long offset) throws IOException {
+		ReadableByteChannel in = Channels.newChannel(is) ;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw") ;
+		try {
+			FileChannel out = raf.getChannel() ;
+			out.truncate(offset) ;
+			long position = offset ;
+			long n ;
+			while((n = out.transferFrom(in, position, TRANSFER_CHUNK_SIZE)) > 0)
+				position += n ;
+			out.force(false) ;
+			return position - offset ;
+		} finally {
+			raf.close() ;
+			in.close() ;
+		}
 	}
 
 }
@@ -4,18 +4,22 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
 
 import org.amplexus.app.ozstock2.values.BuyTransaction;
 import org.amplexus.app.ozstock2.values.Holding;
 import org.amplexus.app.ozstock2.values.Portfolio;
+import org.amplexus.app.ozstock2.values.SectorExposure;
 import org.amplexus.app.ozstock2.values.SellTransaction;
 import org.amplexus.app.ozstock2.values.SellAllocation;
+import org.amplexus.app.ozstock2.values.StockPriceQuote;
 import org.amplexus.app.ozstock2.values.StockRef;
+import org.amplexus.app.ozstock2.values.StockRefSyncResult;
 import org.amplexus.app.ozstock2.values.GenericTransaction;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.database.SQLException;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
@@ -26,6 +30,17 @@ public class BusinessLogicHelper {
 
 	private static final String TAG = BusinessLogicHelper.class.getSimpleName() ;
 
+	public static final int STOCK_REF_BATCH_SIZE = 500 ;		// Rows committed per transaction when bulk loading STOCK_REF
+	public static final int STOCK_REF_SUGGESTION_LIMIT = 50 ;	// The most companies offered by the stock ticker autocomplete
+	public static final int FUZZY_NAME_SUGGESTION_LIMIT = 10 ;	// The most companies offered when nothing starts with the input
+	public static final int FTS_SEARCH_MIN_COMPANIES = 20000 ;	// From this many companies on, suggestions come from STOCK_REF_FTS - see isStockRefSearchedByFts()
+
+	private static final Object sStockRefIndexLock = new Object() ;
+	private static StockRefIndex sStockRefIndex ;				// Shared by every activity - see getStockRefIndex()
+	private static long sStockRefCount = -1 ;					// The rows in STOCK_REF, or -1 if not counted since it last changed - guarded by sStockRefIndexLock
+	private static final StockNameTrigramIndex sStockNameIndex = new StockNameTrigramIndex() ;	// Updated in place - see getStockNameIndex()
+	private static volatile boolean sStockNameIndexStale = true ;	// STOCK_REF may have changed since sStockNameIndex was synced with it
+
 	private Context mContext;
 	private DatabaseHelper mDb ;
 
@@ -38,49 +53,228 @@ public class BusinessLogicHelper {
 	public ArrayList<StockRef> getAllStockRef() {
 		SQLiteDatabase db = mDb.getReadableDb() ;
 		ArrayList<StockRef> stockRefList = new ArrayList<StockRef>() ;
-		try {
-			mDb.readAllStockRef(db, stockRefList) ;
-		} finally {
-			db.close() ;
-		}
+		mDb.readAllStockRef(db, stockRefList) ;
 		return stockRefList ;
 	}
 	
 	/**
+	 * Finds the companies whose code or a word of whose name starts with the input, for the stock ticker autocomplete. 
+	 * Answered from the in-memory StockRefIndex, not the database. If nothing starts with the input, falls back to the 
+	 * companies with the most similar names - see getStockRefByFuzzyName().
 	 * 
-	 * @param db
-	 * @param inputText
-	 * @return
-	 * @throws SQLException
+	 * @param inputText what the user has typed
+	 * @return up to STOCK_REF_SUGGESTION_LIMIT companies, with the same columns as a STOCK_REF query
 	 */
-	SQLiteDatabase cursorDb ;
-    public Cursor getStockRefByInputTextCursor(String inputText) throws SQLException {
-    	if(cursorDb == null)
-    		cursorDb = mDb.getReadableDb() ;
-
-    	return mDb.getStockRefByInputTextCursor(cursorDb, inputText) ;
+    public Cursor getStockRefByInputTextCursor(String inputText) {
+    	return newStockRefCursor(getStockRefByInputText(inputText)) ;
     }
 
+	/**
+	 * As getStockRefByInputTextCursor(), but as a list.
+	 * 
+	 * @param inputText what the user has typed
+	 * @return up to STOCK_REF_SUGGESTION_LIMIT companies, best first
+	 */
+	public ArrayList<StockRef> getStockRefByInputText(String inputText) {
+		ArrayList<StockRef> stockRefList = getStockRefIndex().find(inputText, STOCK_REF_SUGGESTION_LIMIT) ;
+		if(stockRefList.isEmpty())
+			stockRefList = getStockRefByFuzzyName(inputText) ;
+		return stockRefList ;
+	}
+
+	/**
+	 * Finds the companies whose names are most like the input, allowing for typos and missing words - eg "westpak" or 
+	 * "bhp biliton". Answered from the in-memory StockNameTrigramIndex.
+	 * 
+	 * @param inputText what the user has typed
+	 * @return up to FUZZY_NAME_SUGGESTION_LIMIT companies, most similar first
+	 */
+	public ArrayList<StockRef> getStockRefByFuzzyName(String inputText) {
+		return getStockNameIndex().search(inputText, FUZZY_NAME_SUGGESTION_LIMIT) ;
+	}
+
+	/**
+	 * @param stockRefList
+	 * @return a cursor over the companies with the same columns as a STOCK_REF query, for the autocomplete adapters
+	 */
+	public static Cursor newStockRefCursor(List<StockRef> stockRefList) {
+		MatrixCursor cursor = new MatrixCursor(StockRefIndex.CURSOR_COLUMNS, stockRefList.size()) ;
+		for(StockRef stockRef : stockRefList)
+			cursor.addRow(new Object[] { stockRef.getId(), stockRef.getStockCode(), stockRef.getStockName() }) ;
+		return cursor ;
+	}
+
+	/**
+	 * Finds the companies whose code or a word of whose name starts with the input, using the database's full text index 
+	 * rather than the in-memory StockRefIndex. Slower for the ASX list alone, but needs no memory and its cost doesn't 
+	 * grow with the size of STOCK_REF. There's no fuzzy fallback - that would need the names in memory too.
+	 * 
+	 * @param inputText what the user has typed
+	 * @return up to STOCK_REF_SUGGESTION_LIMIT companies, best first
+	 */
+	public ArrayList<StockRef> searchStockRef(String inputText) {
+		ArrayList<StockRef> stockRefList = new ArrayList<StockRef>() ;
+		SQLiteDatabase db = mDb.getReadableDb() ;
+		mDb.searchStockRef(db, inputText == null ? "" : inputText, STOCK_REF_SUGGESTION_LIMIT, stockRefList) ;
+		return stockRefList ;
+	}
+
+	/**
+	 * As searchStockRef(), but as a cursor with the same columns as a STOCK_REF query.
+	 */
+	public Cursor searchStockRefCursor(String inputText) {
+		return newStockRefCursor(searchStockRef(inputText)) ;
+	}
+
+	/**
+	 * Decides where the stock ticker suggestions come from. The ASX list alone is small enough to hold in StockRefIndex and
+	 * StockNameTrigramIndex, which answer faster than the database. Once STOCK_REF has FTS_SEARCH_MIN_COMPANIES - eg 
+	 * with other exchanges' lists loaded - searchStockRef() answers instead, so the suggestions cost neither the memory
+	 * nor the time to index the whole list.
+	 * 
+	 * The count is cached until STOCK_REF next changes.
+	 * 
+	 * @return true if suggestions should come from searchStockRef()
+	 */
+	public boolean isStockRefSearchedByFts() {
+		synchronized(sStockRefIndexLock) {
+			if(sStockRefCount < 0)
+				sStockRefCount = getStockRefCount() ;
+			return sStockRefCount >= FTS_SEARCH_MIN_COMPANIES ;
+		}
+	}
+
+	/**
+	 * @return the index of the STOCK_REF table, built from the table on first use and rebuilt after it changes
+	 */
+	public StockRefIndex getStockRefIndex() {
+		synchronized(sStockRefIndexLock) {
+			if(sStockRefIndex == null) {
+				long startMillis = System.currentTimeMillis() ;
+				sStockRefIndex = new StockRefIndex(getAllStockRef()) ;
+				Log.i(TAG, "getStockRefIndex(): indexed " + sStockRefIndex.size() + " companies in " + (System.currentTimeMillis() - startMillis) + "ms") ;
+			}
+			return sStockRefIndex ;
+		}
+	}
+
+	/**
+	 * Discards the STOCK_REF index and count, and marks the name index stale - call after any change to the table.
+	 */
+	private static void invalidateStockRefIndex() {
+		synchronized(sStockRefIndexLock) {
+			sStockRefIndex = null ;
+			sStockRefCount = -1 ;
+		}
+		sStockNameIndexStale = true ;
+	}
+
+	/**
+	 * @return the trigram index of the company names, synced with the STOCK_REF table first if it's changed since the 
+	 * last sync - usually ASXHelper has already done this when it loaded the table
+	 */
+	public StockNameTrigramIndex getStockNameIndex() {
+		if(sStockNameIndexStale)
+			indexStockNames(getAllStockRef()) ;
+		return sStockNameIndex ;
+	}
+
+	/**
+	 * Brings the trigram index of the company names up to date. Only the companies that were listed, delisted or renamed
+	 * since the last time are re-indexed.
+	 * 
+	 * A list of FTS_SEARCH_MIN_COMPANIES or more isn't indexed, as the suggestions come from the database then - see 
+	 * isStockRefSearchedByFts().
+	 * 
+	 * @param stockRefList the complete contents of STOCK_REF
+	 */
+	public void indexStockNames(List<StockRef> stockRefList) {
+		long startMillis = System.currentTimeMillis() ;
+		sStockNameIndexStale = false ;		// Before the sync, so a write made during it marks the index stale again
+		if(stockRefList.size() >= FTS_SEARCH_MIN_COMPANIES) {
+			sStockNameIndex.clear() ;
+			Log.i(TAG, "indexStockNames(): " + stockRefList.size() + " companies - searched by STOCK_REF_FTS instead") ;
+			return ;
+		}
+		int changed = sStockNameIndex.sync(stockRefList) ;
+		Log.i(TAG, "indexStockNames(): re-indexed " + changed + " of " + stockRefList.size() + " companies in " + (System.currentTimeMillis() - startMillis) + "ms") ;
+	}
 	
 	public void writeStockRef(StockRef stockRef) {
 		SQLiteDatabase db = mDb.getWritableDb() ;
 		try {
 			mDb.writeStockRef(db, stockRef) ;
 		} finally {
-			db.close() ;
+			invalidateStockRefIndex() ;
 		}
 	}
 
+	/**
+	 * Replaces the STOCK_REF table with the specified company list, STOCK_REF_BATCH_SIZE rows per transaction.
+	 * 
+	 * @param stockRefList the complete company list
+	 */
 	public void writeAllStockRef(ArrayList<StockRef> stockRefList) {
-		deleteAllStockRef() ;
+		writeAllStockRef(stockRefList, STOCK_REF_BATCH_SIZE) ;
+	}
+
+	/**
+	 * Replaces the STOCK_REF table with the specified company list.
+	 * 
+	 * @param stockRefList the complete company list
+	 * @param batchSize the number of rows written per transaction - 0 writes every row in one transaction
+	 * @return the number of rows written
+	 */
+	public int writeAllStockRef(ArrayList<StockRef> stockRefList, int batchSize) {
 		SQLiteDatabase db = mDb.getWritableDb() ;
 		try {
-			for(StockRef stockRef : stockRefList) {
-				mDb.writeStockRef(db, stockRef) ;
-			}
+			return mDb.bulkWriteStockRef(db, stockRefList, batchSize) ;
+		} finally {
+			invalidateStockRefIndex() ;
+		}
+	}
+
+	/**
+	 * Loads the STOCK_REF table from the STOCK_REF table in another SQLite database file.
+	 * 
+	 * @param path the database file
+	 * @return the number of companies inserted, updated, deleted and left alone
+	 */
+	public StockRefSyncResult syncAllStockRefFromDatabase(String path) {
+		StockRefSyncResult result = new StockRefSyncResult() ;
+		SQLiteDatabase db = mDb.openPrivateDb() ;		// The sync ATTACHes the other database - see openPrivateDb()
+		try {
+			mDb.syncStockRefFromDatabase(db, path, result) ;
 		} finally {
 			db.close() ;
+			invalidateStockRefIndex() ;
 		}
+		return result ;
+	}
+
+	/**
+	 * @return the number of companies in the STOCK_REF table
+	 */
+	public long getStockRefCount() {
+		SQLiteDatabase db = mDb.getReadableDb() ;
+		return mDb.countStockRef(db) ;
+	}
+
+	/**
+	 * Applies a new company list to the STOCK_REF table, only inserting, renaming and deleting the companies that changed.
+	 * 
+	 * @param stockRefList the complete company list
+	 * @return the number of companies inserted, updated, deleted and left alone
+	 */
+	public StockRefSyncResult syncAllStockRef(ArrayList<StockRef> stockRefList) {
+		StockRefSyncResult result = new StockRefSyncResult() ;
+		SQLiteDatabase db = mDb.getWritableDb() ;
+		try {
+			mDb.syncStockRef(db, stockRefList, result) ;
+		} finally {
+			invalidateStockRefIndex() ;
+		}
+		return result ;
 	}
 
 	public void deleteAllStockRef() {
@@ -88,115 +282,79 @@ public class BusinessLogicHelper {
 		try {
 			mDb.deleteAllStockRef(db) ;
 		} finally {
-			db.close() ;
+			invalidateStockRefIndex() ;
 		}
 	}
 
 	public ArrayList<Portfolio> getPortfolios() {
 		SQLiteDatabase db = mDb.getReadableDb() ;
-		try {
-			ArrayList<Portfolio> portfolioList = new ArrayList<Portfolio>() ;
-			mDb.readAllPortfolios(db, portfolioList) ;
-			return portfolioList ;
-		} finally {
-			db.close() ;
-		}
+		ArrayList<Portfolio> portfolioList = new ArrayList<Portfolio>() ;
+		mDb.readAllPortfolios(db, portfolioList) ;
+		return portfolioList ;
 	}
 	
 	public Portfolio getPortfolio(long portfolioId) {
 		Portfolio p = new Portfolio() ;
 		p.setId(portfolioId) ;
 		SQLiteDatabase db = mDb.getReadableDb() ;
-		try {
-			mDb.readPortfolio(db, p) ;
-		} finally {
-			db.close() ;
-		}
+		mDb.readPortfolio(db, p) ;
 		return p ;
 	}
 
 	public void addPortfolio(Portfolio p) {
 		SQLiteDatabase db = mDb.getWritableDb() ;
-		try {
-			mDb.writePortfolio(db, p) ;
-		} finally {
-			db.close() ;
-		}
+		mDb.writePortfolio(db, p) ;
 	}
 	
 	public void updatePortfolio(Portfolio p) {
 		SQLiteDatabase db = mDb.getWritableDb() ;
-		try {
-			mDb.writePortfolio(db, p) ;
-		} finally {
-			db.close() ;
-		}
+		mDb.writePortfolio(db, p) ;
 	}
 	
 	public void deletePortfolio(long portfolioId) {
 		SQLiteDatabase db = mDb.getWritableDb() ;
-		try {
-			ArrayList<Holding> holdingList = new ArrayList<Holding>() ;
-			mDb.readHoldingsByPortfolioId(db, portfolioId, holdingList) ;
-			for(Holding h : holdingList) {
-				mDb.deleteHolding(db, h.getId()) ;
-			}
-			mDb.deletePortfolio(db, portfolioId) ;
-		} finally {
-			db.close() ;
+		ArrayList<Holding> holdingList = new ArrayList<Holding>() ;
+		mDb.readHoldingsByPortfolioId(db, portfolioId, holdingList) ;
+		for(Holding h : holdingList) {
+			mDb.deleteHolding(db, h.getId()) ;
 		}
+		mDb.deletePortfolio(db, portfolioId) ;
 	}
 	
 	public ArrayList<Holding> getHoldingsByPortfolio(long portfolioId) {
 		SQLiteDatabase db = mDb.getReadableDb() ;
-		try {
-			ArrayList<Holding> holdingList = new ArrayList<Holding>() ;
-			mDb.readHoldingsByPortfolioId(db, portfolioId, holdingList) ;
-			return holdingList ;
-		} finally {
-			db.close() ;
-		}
+		ArrayList<Holding> holdingList = new ArrayList<Holding>() ;
+		mDb.readHoldingsByPortfolioId(db, portfolioId, holdingList) ;
+		return holdingList ;
 	}
 	
 	public ArrayList<Holding> getHoldingsByStockCode(String stockCode) {
 		SQLiteDatabase db = mDb.getReadableDb() ;
-		try {
-			ArrayList<Holding> holdingList = new ArrayList<Holding>() ;
-			mDb.readHoldingsByStockCode(db, stockCode, holdingList) ;
-			return holdingList ;
-		} finally {
-			db.close() ;
-		}
+		ArrayList<Holding> holdingList = new ArrayList<Holding>() ;
+		mDb.readHoldingsByStockCode(db, stockCode, holdingList) ;
+		return holdingList ;
 	}
 	
 	public Holding getHoldingById(long holdingId) {
 		SQLiteDatabase db = mDb.getReadableDb() ;
-		try {
-			Holding h = new Holding() ;
-			h.setId(holdingId) ;
-			mDb.readHolding(db, h) ;
-			return h ;
-		} finally {
-			db.close() ;
-		}
+		Holding h = new Holding() ;
+		h.setId(holdingId) ;
+		mDb.readHolding(db, h) ;
+		return h ;
 	}
 
 	public void deleteHolding(long holdingId) {
 		SQLiteDatabase db = mDb.getWritableDb() ;
-		try {
-			// Delete transactions
-			// FIXME: retrieve the list!
-			// FIXME: think more carefully about ramifications of deleting transactions
-			ArrayList<GenericTransaction> transactionList = new ArrayList<GenericTransaction>() ;
-			for(GenericTransaction t : transactionList) {
-				mDb.deleteTransaction(db, t.getId()) ;
-			}
-			
-			// Delete holding
-			mDb.deleteHolding(db, holdingId) ;
-		} finally {
-			db.close() ;
+		// Delete transactions
+		// FIXME: retrieve the list!
+		// FIXME: think more carefully about ramifications of deleting transactions
+		ArrayList<GenericTransaction> transactionList = new ArrayList<GenericTransaction>() ;
+		for(GenericTransaction t : transactionList) {
+			mDb.deleteTransaction(db, t.getId()) ;
 		}
+		
+		// Delete holding
+		mDb.deleteHolding(db, holdingId) ;
 	}
 	
 	public Cursor getTransactionsCursor() {
@@ -216,82 +374,138 @@ public class BusinessLogicHelper {
 
 	public GenericTransaction getTransaction(long transactionId) {
 		SQLiteDatabase db = mDb.getReadableDb() ;
-		try {
-			GenericTransaction t = new GenericTransaction() ;
-			t.setId(transactionId) ;
-			mDb.readTransaction(db, t) ;
-			if(t.getTransactionType().compareTo(BuyTransaction.TRANSACTION_TYPE) == 0) {
-				BuyTransaction buyTransaction = new BuyTransaction() ;
-				buyTransaction.setId(transactionId) ;
-				mDb.readBuyTransaction(db, buyTransaction) ;
-				return buyTransaction ;
-			} else if(t.getTransactionType().compareTo(SellTransaction.TRANSACTION_TYPE) == 0) {
-				SellTransaction sellTransaction = new SellTransaction() ;
-				sellTransaction.setId(transactionId) ;
-				mDb.readSellTransaction(db, sellTransaction) ;
-				return sellTransaction ;
-			} else {
-				throw new RuntimeException("Unsupported transaction type: " + t.getTransactionType()) ;
-			}
-			
-		} finally {
-			db.close() ;
+		GenericTransaction t = new GenericTransaction() ;
+		t.setId(transactionId) ;
+		mDb.readTransaction(db, t) ;
+		if(t.getTransactionType().compareTo(BuyTransaction.TRANSACTION_TYPE) == 0) {
+			BuyTransaction buyTransaction = new BuyTransaction() ;
+			buyTransaction.setId(transactionId) ;
+			mDb.readBuyTransaction(db, buyTransaction) ;
+			return buyTransaction ;
+		} else if(t.getTransactionType().compareTo(SellTransaction.TRANSACTION_TYPE) == 0) {
+			SellTransaction sellTransaction = new SellTransaction() ;
+			sellTransaction.setId(transactionId) ;
+			mDb.readSellTransaction(db, sellTransaction) ;
+			return sellTransaction ;
+		} else {
+			throw new RuntimeException("Unsupported transaction type: " + t.getTransactionType()) ;
 		}
 	}
 	
 	/**
+	 * Records a purchase: a new holding, plus the transaction and buy records that point at it. All three are written in 
+	 * one transaction, so they land together or not at all.
 	 * 
-	 * @param h
-	 * @param t
-	 * 
-	 * TODO: Generate holding on the fly instead of passing as a parameter
+	 * @param portfolioId the portfolio the holding goes in
+	 * @param t the purchase - on return its holding id and record ids are set
 	 */
 	public void purchaseStock(long portfolioId, BuyTransaction t) {
 		SQLiteDatabase db = mDb.getWritableDb() ;
+		db.beginTransaction() ;
 		try {
-	    	Holding h = new Holding() ;
-	    	h.setPortfolioId(portfolioId) ;
-	    	h.setPurchaseDate(t.getTransactionDate()) ;
-	    	h.setPurchaseQuantity(t.getQuantity()) ;
-	    	h.setPurchaseUnitPrice(t.getUnitPrice()) ;
-	    	h.setRemainingQuantity(h.getPurchaseQuantity()) ;
-	    	h.setStockCode(t.getStockCode()) ;
-			mDb.writeHolding(db, h) ;
-
-			t.setHoldingId(h.getId()) ;
-			mDb.writeBuyTransaction(db, t) ;
+			writePurchase(db, portfolioId, t) ;
+			db.setTransactionSuccessful() ;
 		} finally {
-			db.close() ;
+			db.endTransaction() ;
 		}
 	}
 	
+	/**
+	 * Records a sale: the transaction and sell records, a sale allocation per holding sold from, and each holding's reduced 
+	 * remaining quantity. All of it is written in one transaction, so they land together or not at all.
+	 * 
+	 * @param t the sale, with its sale allocations already calculated
+	 * @return the holdings sold from, as updated
+	 */
 	public ArrayList<Holding> sellStock(SellTransaction t) {
 		SQLiteDatabase db = mDb.getWritableDb() ;
 		ArrayList<Holding> holdingList = new ArrayList<Holding>() ; 
-				
+		db.beginTransaction() ;
 		try {
-			mDb.writeSellTransaction(db, t) ;
-			for(SellAllocation s : t.getSaleAllocations()) {
-				Holding h = new Holding() ;
-				h.setId(s.getHoldingId()) ;
-				mDb.readHolding(db, h) ;
-				h.setRemainingQuantity(h.getRemainingQuantity() - s.getQuantity()) ;
-				mDb.writeHolding(db, h) ;
-				holdingList.add(h) ;
-			}
+			writeSale(db, t, holdingList) ;
+			db.setTransactionSuccessful() ;
 		} finally {
-			db.close() ;
+			db.endTransaction() ;
 		}
 		return holdingList ;
 	}
 
-	public void deleteTransaction(long transactionId) {
+	/**
+	 * Records a batch of purchases and sales - eg a month's trades caught up in one go - in a single transaction, so the 
+	 * whole batch pays for one commit rather than one per trade, and a failure part way leaves none of it written.
+	 * 
+	 * Trades are written in list order. A sale's allocations must name holdings that already exist - they can't draw on a 
+	 * purchase in the same batch, since its holding id isn't known until it's written.
+	 * 
+	 * @param portfolioId the portfolio the purchases go in
+	 * @param trades BuyTransactions and SellTransactions
+	 * @return the holdings written - each purchase's new holding, and each holding sold from as updated - in order
+	 */
+	public ArrayList<Holding> recordTrades(long portfolioId, List<? extends GenericTransaction> trades) {
+		Log.i(TAG, "recordTrades(): Starts: " + trades.size() + " trades") ;
+		long startMillis = System.currentTimeMillis() ;
 		SQLiteDatabase db = mDb.getWritableDb() ;
+		ArrayList<Holding> holdingList = new ArrayList<Holding>() ;
+		db.beginTransaction() ;
 		try {
-			mDb.deleteTransaction(db, transactionId) ;
+			for(GenericTransaction t : trades) {
+				if(t instanceof BuyTransaction) {
+					holdingList.add(writePurchase(db, portfolioId, (BuyTransaction) t)) ;
+				} else if(t instanceof SellTransaction) {
+					writeSale(db, (SellTransaction) t, holdingList) ;
+				} else {
+					throw new RuntimeException("Unsupported transaction type: " + t.getTransactionType()) ;
+				}
+			}
+			db.setTransactionSuccessful() ;
 		} finally {
-			db.close() ;
+			db.endTransaction() ;
 		}
+		Log.i(TAG, "recordTrades(): Ends: " + trades.size() + " trades in " + (System.currentTimeMillis() - startMillis) + "ms") ;
+		return holdingList ;
+	}
+
+	/**
+	 * Writes a purchase's holding, transaction and buy records - the caller supplies the database transaction.
+	 * 
+	 * @return the new holding
+	 */
+	private Holding writePurchase(SQLiteDatabase db, long portfolioId, BuyTransaction t) {
+    	Holding h = new Holding() ;
+    	h.setPortfolioId(portfolioId) ;
+    	h.setPurchaseDate(t.getTransactionDate()) ;
+    	h.setPurchaseQuantity(t.getQuantity()) ;
+    	h.setPurchaseUnitPrice(t.getUnitPrice()) ;
+    	h.setRemainingQuantity(h.getPurchaseQuantity()) ;
+    	h.setStockCode(t.getStockCode()) ;
+		mDb.writeHolding(db, h) ;
+
+		t.setHoldingId(h.getId()) ;
+		mDb.writeBuyTransaction(db, t) ;
+		return h ;
+	}
+
+	/**
+	 * Writes a sale's records and reduces the holdings it was allocated against - the caller supplies the database 
+	 * transaction.
+	 * 
+	 * @param holdingList the holdings sold from are added to this, as updated
+	 */
+	private void writeSale(SQLiteDatabase db, SellTransaction t, ArrayList<Holding> holdingList) {
+		mDb.writeSellTransaction(db, t) ;
+		for(SellAllocation s : t.getSaleAllocations()) {
+			Holding h = new Holding() ;
+			h.setId(s.getHoldingId()) ;
+			mDb.readHolding(db, h) ;
+			h.setRemainingQuantity(h.getRemainingQuantity() - s.getQuantity()) ;
+			mDb.writeHolding(db, h) ;
+			holdingList.add(h) ;
+		}
+	}
+
+	public void deleteTransaction(long transactionId) {
+		SQLiteDatabase db = mDb.getWritableDb() ;
+		mDb.deleteTransaction(db, transactionId) ;
 	}
 
 	public Cursor getAllPortfolioStockCodesCursor() {
@@ -302,14 +516,50 @@ public class BusinessLogicHelper {
 	public ArrayList<String> readAllPortfolioStockCodes() {
 		SQLiteDatabase db = mDb.getWritableDb() ;
 		ArrayList<String> stockList = new ArrayList<String>() ;
-		try {
-			mDb.readAllUniquePortfolioStockCodes(db, stockList) ;
-		} finally {
-			db.close() ;
-		}
+		mDb.readAllUniquePortfolioStockCodes(db, stockList) ;
 		return stockList ;
 	}
 
+	/**
+	 * Stores freshly fetched quotes, skipping those whose price hasn't changed.
+	 * 
+	 * @param quoteList the fetched quotes
+	 * @param fieldSet the QuoteFieldSet fields that were fetched
+	 * @param quoteTimeMillis when the quotes were fetched
+	 * @param source where the quotes came from
+	 * @return the number of quotes written
+	 */
+	public int writePriceQuotes(ArrayList<StockPriceQuote> quoteList, int fieldSet, long quoteTimeMillis, String source) {
+		SQLiteDatabase db = mDb.getWritableDb() ;
+		return mDb.writePriceQuotes(db, quoteList, fieldSet, quoteTimeMillis, source) ;
+	}
+
+	/**
+	 * Reads the quotes whose price changed after the specified time.
+	 * 
+	 * @param sinceMillis pass 0 to read every quote
+	 * @return the changed quotes
+	 */
+	public ArrayList<StockPriceQuote> getPriceQuotesChangedSince(long sinceMillis) {
+		SQLiteDatabase db = mDb.getReadableDb() ;
+		ArrayList<StockPriceQuote> quoteList = new ArrayList<StockPriceQuote>() ;
+		mDb.readPriceQuotesChangedSince(db, sinceMillis, quoteList) ;
+		return quoteList ;
+	}
+
+	/**
+	 * Breaks the units held down by GICS industry group, with their cost, value and profit / loss.
+	 * 
+	 * @param portfolioId the portfolio to break down, or DatabaseHelper.ALL_PORTFOLIOS for every portfolio
+	 * @return one entry per sector, largest value first
+	 */
+	public ArrayList<SectorExposure> getSectorExposure(long portfolioId) {
+		SQLiteDatabase db = mDb.getReadableDb() ;
+		ArrayList<SectorExposure> exposureList = new ArrayList<SectorExposure>() ;
+		mDb.readSectorExposure(db, portfolioId, exposureList) ;
+		return exposureList ;
+	}
+
 	/**
 	 * 
 	 * TODO: support allocation by quantity, amount and percentage
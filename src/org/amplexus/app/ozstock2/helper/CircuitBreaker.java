@@ -0,0 +1,90 @@
+package org.amplexus.app.ozstock2.helper;
+
+import android.util.Log;
+
+/**
+ * Stops us calling a service that keeps failing.
+ * 
+ * CLOSED - calls are allowed. After failureThreshold consecutive failures the breaker opens.
+ * OPEN - calls are refused until coolDownMillis has passed since the breaker opened, then the breaker goes half open.
+ * HALF_OPEN - a single trial call is allowed through. If it succeeds the breaker closes, if it fails it opens again.
+ * 
+ * Thread safe.
+ * 
+ * @author craig
+ */
+public class CircuitBreaker {
+
+	private static final String TAG = CircuitBreaker.class.getSimpleName() ;
+
+	public enum State { CLOSED, OPEN, HALF_OPEN } ;
+
+	private final String mName ;
+	private final int mFailureThreshold ;			// Consecutive failures before the breaker opens
+	private final long mCoolDownMillis ;			// How long the breaker stays open before allowing a trial call
+
+	private State mState = State.CLOSED ;
+	private int mConsecutiveFailures ;
+	private long mOpenedAtMillis ;
+	private boolean mTrialInProgress ;				// A HALF_OPEN trial call has been let through and hasn't reported back
+
+	/**
+	 * @param name used in log messages
+	 * @param failureThreshold consecutive failures before the breaker opens
+	 * @param coolDownMillis how long the breaker stays open before allowing a trial call
+	 */
+	public CircuitBreaker(String name, int failureThreshold, long coolDownMillis) {
+		mName = name ;
+		mFailureThreshold = failureThreshold ;
+		mCoolDownMillis = coolDownMillis ;
+	}
+
+	/**
+	 * @return true if the call may go ahead - the caller must then report back via recordSuccess() or recordFailure()
+	 */
+	public synchronized boolean allowRequest() {
+		switch(mState) {
+		case OPEN:
+			if(System.currentTimeMillis() - mOpenedAtMillis < mCoolDownMillis)
+				return false ;
+			Log.i(TAG, "allowRequest(): " + mName + " cool-down over - allowing a trial call") ;
+			mState = State.HALF_OPEN ;
+			mTrialInProgress = true ;
+			return true ;
+		case HALF_OPEN:
+			if(mTrialInProgress)
+				return false ;
+			mTrialInProgress = true ;
+			return true ;
+		default:
+			return true ;
+		}
+	}
+
+	public synchronized void recordSuccess() {
+		if(mState != State.CLOSED)
+			Log.i(TAG, "recordSuccess(): " + mName + " is working again - closing") ;
+		mState = State.CLOSED ;
+		mConsecutiveFailures = 0 ;
+		mTrialInProgress = false ;
+	}
+
+	/**
+	 * @return true if this failure opened the breaker
+	 */
+	public synchronized boolean recordFailure() {
+		mConsecutiveFailures++ ;
+		mTrialInProgress = false ;
+		if(mState == State.HALF_OPEN || (mState == State.CLOSED && mConsecutiveFailures >= mFailureThreshold)) {
+			Log.w(TAG, "recordFailure(): " + mName + " failed " + mConsecutiveFailures + " time(s) in a row - opening for " + (mCoolDownMillis / 1000) + " seconds") ;
+			mState = State.OPEN ;
+			mOpenedAtMillis = System.currentTimeMillis() ;
+			return true ;
+		}
+		return false ;
+	}
+
+	public synchronized State getState() {
+		return mState ;
+	}
+}
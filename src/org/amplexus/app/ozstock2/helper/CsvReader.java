@@ -0,0 +1,279 @@
+package org.amplexus.app.ozstock2.helper;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A streaming RFC 4180 CSV reader.
+ *
+ * Handles quoted fields containing commas, doubled quotes ("") and line breaks, and both CRLF and LF line endings. Blank
+ * lines are skipped.
+ *
+ * The reader is positioned on one record at a time. The fields of the current record are held as offsets into a single
+ * char buffer that is reused from record to record, so reading a record allocates nothing - a String is only created
+ * when getField() is called. Fields can also be compared in place with fieldEquals().
+ *
+ * Typical use is to hand a RowHandler to read(), which calls it once per record:
+ *
+ *     new CsvReader(reader).read(new CsvReader.RowHandler() {
+ *         public boolean onRow(CsvReader row) {
+ *             ... row.getField(0) ...
+ *             return true ;
+ *         }
+ *     }) ;
+ *
+ * A CsvReader is not thread safe.
+ *
+ * @author craig
+ */
+public class CsvReader {
+
+	/**
+	 * Receives each record read by read().
+	 */
+	public interface RowHandler {
+		/**
+		 * @param row the reader, positioned on the record - only valid until onRow() returns
+		 * @return true to carry on reading, false to stop
+		 */
+		public boolean onRow(CsvReader row) throws IOException ;
+	}
+
+	private static final int BUFFER_SIZE = 8192 ;
+	private static final char DELIMITER = ',' ;
+	private static final char QUOTE = '"' ;
+
+	private final Reader mReader ;
+	private final char[] mBuffer = new char[BUFFER_SIZE] ;	// Characters read from mReader but not yet consumed
+	private int mPos ;										// The next character to be consumed in mBuffer
+	private int mLimit ;									// The number of valid characters in mBuffer
+
+	private char[] mRecord = new char[256] ;				// The unquoted field values of the current record, end to end
+	private int mRecordLength ;
+	private int[] mFieldEnds = new int[16] ;				// Where each field ends in mRecord - field i starts where field i - 1 ends
+	private int mFieldCount ;
+	private int mLineNumber ;								// The line the current record ended on
+	private int mRecordNumber ;								// The number of records read so far
+
+	public CsvReader(Reader reader) {
+		mReader = reader ;
+	}
+
+	/**
+	 * Reads every remaining record, passing each to the handler.
+	 *
+	 * @param handler receives each record
+	 * @return the number of records read
+	 * @throws IOException if the stream could not be read or a quoted field is unterminated
+	 */
+	public int read(RowHandler handler) throws IOException {
+		int count = 0 ;
+		while(readRecord()) {
+			count++ ;
+			if(! handler.onRow(this))
+				break ;
+		}
+		return count ;
+	}
+
+	/**
+	 * Advances to the next record.
+	 *
+	 * @return false at the end of the stream
+	 * @throws IOException if the stream could not be read or a quoted field is unterminated
+	 */
+	public boolean readRecord() throws IOException {
+		mRecordLength = 0 ;
+		mFieldCount = 0 ;
+
+		int c = read() ;
+		while(c == '\r' || c == '\n') {
+			/*
+			 * Skip blank lines
+			 */
+			if(c == '\n')
+				mLineNumber++ ;
+			c = read() ;
+		}
+		if(c == -1)
+			return false ;
+
+		while(true) {
+			if(c == QUOTE) {
+				int startLine = mLineNumber + 1 ;
+				while(true) {
+					c = read() ;
+					if(c == -1)
+						throw new IOException("Unterminated quoted field starting on line " + startLine) ;
+					if(c == QUOTE) {
+						c = read() ;
+						if(c != QUOTE)
+							break ;			// The closing quote - c is the character after it
+					} else if(c == '\n') {
+						mLineNumber++ ;
+					}
+					append((char)c) ;
+				}
+				/*
+				 * Be lenient about anything between the closing quote and the delimiter, eg "abc"def
+				 */
+				while(c != DELIMITER && c != '\r' && c != '\n' && c != -1) {
+					append((char)c) ;
+					c = read() ;
+				}
+			} else {
+				while(c != DELIMITER && c != '\r' && c != '\n' && c != -1) {
+					append((char)c) ;
+					c = read() ;
+				}
+			}
+			endField() ;
+
+			if(c == DELIMITER) {
+				c = read() ;
+				continue ;
+			}
+			if(c == '\r' && peek() == '\n')
+				read() ;
+			mLineNumber++ ;
+			mRecordNumber++ ;
+			return true ;
+		}
+	}
+
+	/**
+	 * @return the number of fields in the current record
+	 */
+	public int getFieldCount() {
+		return mFieldCount ;
+	}
+
+	/**
+	 * @param index the field index, from 0
+	 * @return the unquoted value of the field, or null if the current record has no such field
+	 */
+	public String getField(int index) {
+		if(index < 0 || index >= mFieldCount)
+			return null ;
+		int start = fieldStart(index) ;
+		return new String(mRecord, start, mFieldEnds[index] - start) ;
+	}
+
+	/**
+	 * @param index the field index, from 0
+	 * @return the unquoted value of the field with leading and trailing whitespace removed, or null if the current record
+	 * has no such field
+	 */
+	public String getTrimmedField(int index) {
+		if(index < 0 || index >= mFieldCount)
+			return null ;
+		int start = fieldStart(index) ;
+		int end = mFieldEnds[index] ;
+		while(start < end && mRecord[start] <= ' ')
+			start++ ;
+		while(end > start && mRecord[end - 1] <= ' ')
+			end-- ;
+		return new String(mRecord, start, end - start) ;
+	}
+
+	/**
+	 * @param index the field index, from 0
+	 * @return the length of the field's unquoted value, or -1 if the current record has no such field
+	 */
+	public int getFieldLength(int index) {
+		if(index < 0 || index >= mFieldCount)
+			return -1 ;
+		return mFieldEnds[index] - fieldStart(index) ;
+	}
+
+	/**
+	 * Compares a field with a string without creating a String for the field.
+	 *
+	 * @param index the field index, from 0
+	 * @param value the value to compare with
+	 * @param ignoreCase true to ignore case
+	 * @return true if the current record has the field and its unquoted value matches
+	 */
+	public boolean fieldEquals(int index, String value, boolean ignoreCase) {
+		int length = getFieldLength(index) ;
+		if(length != value.length())
+			return false ;
+		int start = fieldStart(index) ;
+		for(int i = 0; i < length; i++) {
+			char a = mRecord[start + i] ;
+			char b = value.charAt(i) ;
+			if(a != b && ! (ignoreCase && Character.toUpperCase(a) == Character.toUpperCase(b)))
+				return false ;
+		}
+		return true ;
+	}
+
+	/**
+	 * @return the index of the first field of the current record that matches value, ignoring case, or -1 if none do
+	 */
+	public int indexOf(String value) {
+		for(int i = 0; i < mFieldCount; i++) {
+			if(fieldEquals(i, value, true))
+				return i ;
+		}
+		return -1 ;
+	}
+
+	/**
+	 * @return the line number, from 1, that the current record ended on
+	 */
+	public int getLineNumber() {
+		return mLineNumber ;
+	}
+
+	/**
+	 * @return the number of records read so far, including the current one
+	 */
+	public int getRecordNumber() {
+		return mRecordNumber ;
+	}
+
+	private int fieldStart(int index) {
+		return index == 0 ? 0 : mFieldEnds[index - 1] ;
+	}
+
+	private void append(char c) {
+		if(mRecordLength == mRecord.length) {
+			char[] grown = new char[mRecord.length * 2] ;
+			System.arraycopy(mRecord, 0, grown, 0, mRecordLength) ;
+			mRecord = grown ;
+		}
+		mRecord[mRecordLength++] = c ;
+	}
+
+	private void endField() {
+		if(mFieldCount == mFieldEnds.length) {
+			int[] grown = new int[mFieldEnds.length * 2] ;
+			System.arraycopy(mFieldEnds, 0, grown, 0, mFieldCount) ;
+			mFieldEnds = grown ;
+		}
+		mFieldEnds[mFieldCount++] = mRecordLength ;
+	}
+
+	private int peek() throws IOException {
+		if(mPos == mLimit && ! fill())
+			return -1 ;
+		return mBuffer[mPos] ;
+	}
+
+	private int read() throws IOException {
+		if(mPos == mLimit && ! fill())
+			return -1 ;
+		return mBuffer[mPos++] ;
+	}
+
+	private boolean fill() throws IOException {
+		mPos = 0 ;
+		mLimit = mReader.read(mBuffer, 0, mBuffer.length) ;
+		if(mLimit <= 0) {
+			mLimit = 0 ;
+			return false ;
+		}
+		return true ;
+	}
+}
@@ -2,20 +2,28 @@ package org.amplexus.app.ozstock2.helper;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 import org.amplexus.app.ozstock2.values.BuyTransaction;
 import org.amplexus.app.ozstock2.values.Holding;
 import org.amplexus.app.ozstock2.values.Portfolio;
 import org.amplexus.app.ozstock2.values.SellTransaction;
 import org.amplexus.app.ozstock2.values.SellAllocation;
+import org.amplexus.app.ozstock2.values.SectorExposure;
+import org.amplexus.app.ozstock2.values.StockPriceQuote;
 import org.amplexus.app.ozstock2.values.StockRef;
+import org.amplexus.app.ozstock2.values.StockRefSyncResult;
 import org.amplexus.app.ozstock2.values.GenericTransaction;
 
 import static org.amplexus.app.ozstock2.helper.DatabaseOpenHelper.* ;
@@ -29,28 +37,57 @@ import static org.amplexus.app.ozstock2.helper.DatabaseOpenHelper.* ;
 public class DatabaseHelper {
 
 	private static final String TAG = DatabaseHelper.class.getSimpleName() ;
+
+	public static final long ALL_PORTFOLIOS = -1 ;					// Pass as a portfolio id to span every portfolio
+
+	private static final String ATTACHED_SCHEMA = "attached" ;		// The name given to a database we ATTACH
+	private static final String ATTACHED_INDUSTRY_GROUP = "INDUSTRY_GROUP" ;	// The industry group column of an attached STOCK_REF
+
+	private static final int MIN_NAME_SEARCH_LENGTH = 2 ;			// See searchStockRef()
+
+	private static final char LIKE_ESCAPE = '\\' ;
+
+	private static final String STOCK_REF_INSERT = 
+			"INSERT INTO " + TBL_STOCK_REF + " (" + COL_SREF_STOCK_CODE + ", " + COL_SREF_STOCK_NAME + ", " + COL_SREF_SECTOR_ID + ") VALUES (?, ?, ?)" ;
 	
 	DatabaseOpenHelper databaseOpenHelper ;
 
 	/**
 	 * Constructor.
 	 * 
-	 * Instantiates the DatabaseOpenHelper.
+	 * Uses the process-wide DatabaseOpenHelper, so every DatabaseHelper shares the one database connection.
 	 * 
 	 * @param context the application context.
 	 */
 	public DatabaseHelper(Context context) {
-		this.databaseOpenHelper = new DatabaseOpenHelper(context) ;
+		this.databaseOpenHelper = DatabaseOpenHelper.getInstance(context) ;
 	}
 
+	/**
+	 * @return the shared database - don't close it
+	 */
 	public SQLiteDatabase getWritableDb() {
 		return databaseOpenHelper.getWritableDatabase() ;
 	}
 
+	/**
+	 * @return the shared database - don't close it. The same object as getWritableDb() returns.
+	 */
 	public SQLiteDatabase getReadableDb() {
 		return databaseOpenHelper.getReadableDatabase() ;
 	}
 
+	/**
+	 * Opens a connection of its own to the database, for work that would change the state of the shared connection. In
+	 * particular, SQLiteDatabase turns write-ahead logging off for good on a connection that ATTACHes another database.
+	 * 
+	 * @return a new connection - the caller must close it
+	 */
+	public SQLiteDatabase openPrivateDb() {
+		String path = getWritableDb().getPath() ;		// Creates or upgrades the database first if need be
+		return SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READWRITE) ;
+	}
+
 	/**
 	 * Read a portfolio.
 	 * 
@@ -349,39 +386,39 @@ public class DatabaseHelper {
 		Log.i(TAG, "readAllStockRef() starts") ;
 
 		int count = 0 ;
-		Cursor c = db.query(
-				true,											// distinct
-				TBL_STOCK_REF, 									// table
-				new String[] {COL_SREF_ID, COL_SREF_STOCK_CODE, COL_SREF_STOCK_NAME},	// columns / projection
-				null,											// where clause
-				null,											// where values
-				null, 											// group by
-				null,											// having
-				null,											// order by
-				null											// limit
-				) ;
+		String sql = 
+				"select	sref._id, sref.code, sref.name, sect.name " +
+				"from	stock_ref sref " +
+				"left join sector_ref sect on sect._id = sref.sector_id" ;
+		Cursor c = db.rawQuery(sql, null) ;
 		if(c != null) {
 			count = c.getCount() ;
         	if(c.moveToFirst()) {
 	        	do {
-	        		String stockCode = c.getString(c.getColumnIndex(COL_SREF_STOCK_CODE)) ;
-	        		String stockName = c.getString(c.getColumnIndex(COL_SREF_STOCK_NAME)) ;
+	        		String stockCode = c.getString(1) ;
+	        		String stockName = c.getString(2) ;
 
 //	        		Log.i(TAG, "readAllStockRef() read: " + stockCode + "=" + stockName) ;
 	        		
 	        		StockRef stockRef = new StockRef() ;
+	        		stockRef.setId(c.getLong(0)) ;
 	        		stockRef.setStockCode(stockCode) ;
 	        		stockRef.setStockName(stockName) ;
+	        		stockRef.setIndustryGroup(c.getString(3)) ;
 	        		stockRefList.add(stockRef) ;
 	        	} while(c.moveToNext()) ;
         	} else {
         		Log.w(TAG, "readAllStockRef() no rows found") ;
         	}
+        	c.close() ;
         }
 		Log.i(TAG, "readAllStockRef() ends: count=" + count) ;
 	}
 	
 	/**
+	 * Finds the companies whose code or name contains the input text.
+	 * 
+	 * This scans the whole table - the autocomplete uses StockRefIndex instead.
 	 * 
 	 * @param db
 	 * @param inputText
@@ -390,13 +427,14 @@ public class DatabaseHelper {
 	 */
     public Cursor getStockRefByInputTextCursor(SQLiteDatabase db, String inputText) throws SQLException {
         Log.i(TAG, "getStockRefByInputText(): inputText=" + inputText);
+        String pattern = "%" + escapeLike(inputText) + "%" ;
         Cursor cursor = db.query(
         		true, 														// Distinct
         		TBL_STOCK_REF, 												// Table name
         		new String[] {COL_SREF_ID, COL_SREF_STOCK_CODE, COL_SREF_STOCK_NAME}, 	// Column names
-        		COL_SREF_STOCK_CODE + " like '%" + inputText + "%' or " + 
-        			COL_SREF_STOCK_NAME + " like '%" + inputText + "%'",	// Where clause  
-        		null,														// Where values
+        		COL_SREF_STOCK_CODE + " like ? escape '" + LIKE_ESCAPE + "' or " + 
+        			COL_SREF_STOCK_NAME + " like ? escape '" + LIKE_ESCAPE + "'",	// Where clause  
+        		new String[] { pattern, pattern },							// Where values
                 null, 														// Group by
                 null, 														// Having
                 COL_SREF_STOCK_CODE, 														// Order by
@@ -407,6 +445,64 @@ public class DatabaseHelper {
         return cursor;
     }
 
+	/**
+	 * Finds the companies whose code or a word of whose name starts with each word of the input, using the STOCK_REF_FTS
+	 * full text index - so the cost depends on the number of matches rather than the size of STOCK_REF.
+	 * 
+	 * The input is reduced to its words, each used as a prefix term, so it can't inject FTS query syntax. An exact code 
+	 * match ranks first, then codes starting with the input, then name matches - each in code order.
+	 * 
+	 * Input shorter than MIN_NAME_SEARCH_LENGTH only matches codes, by a range scan of the STOCK_REF_CODE index. A 
+	 * single letter starts a word of nearly every name, so it would make FTS read most of the index to no purpose.
+	 * 
+	 * @param db
+	 * @param inputText what the user has typed - if it has no words, the first companies by code are returned
+	 * @param limit the most companies to return
+	 * @param stockRefList populated with the matching companies, best first
+	 */
+	public void searchStockRef(SQLiteDatabase db, String inputText, int limit, ArrayList<StockRef> stockRefList) {
+		StringBuilder match = new StringBuilder() ;
+		for(String word : inputText.split("[^\\p{L}\\p{N}]+")) {
+			if(word.length() == 0)
+				continue ;
+			if(match.length() > 0)
+				match.append(' ') ;
+			match.append(word.toLowerCase(Locale.US)).append('*') ;		// Lower case, so words like OR aren't operators
+		}
+
+		Cursor c ;
+		String code = inputText.trim().toUpperCase(Locale.US) ;
+		if(match.length() == 0) {
+			c = db.query(TBL_STOCK_REF, new String[] {COL_SREF_ID, COL_SREF_STOCK_CODE, COL_SREF_STOCK_NAME}, 
+					null, null, null, null, COL_SREF_STOCK_CODE, String.valueOf(limit)) ;
+		} else if(code.length() < MIN_NAME_SEARCH_LENGTH) {
+			String codeEnd = code.substring(0, code.length() - 1) + (char)(code.charAt(code.length() - 1) + 1) ;
+			c = db.query(TBL_STOCK_REF, new String[] {COL_SREF_ID, COL_SREF_STOCK_CODE, COL_SREF_STOCK_NAME}, 
+					COL_SREF_STOCK_CODE + " >= ? and " + COL_SREF_STOCK_CODE + " < ?", new String[] { code, codeEnd }, 
+					null, null, COL_SREF_STOCK_CODE, String.valueOf(limit)) ;
+		} else {
+			String sql = 
+					"select	docid, code, name " +
+					"from	stock_ref_fts " +
+					"where	stock_ref_fts match ? " +
+					"order by case when code = ? then 0 when substr(code, 1, " + code.length() + ") = ? then 1 else 2 end, code " +
+					"limit	" + limit ;
+			c = db.rawQuery(sql, new String[] { match.toString(), code, code }) ;
+		}
+		try {
+			while(c.moveToNext()) {
+				StockRef stockRef = new StockRef() ;
+				stockRef.setId(c.getLong(0)) ;
+				stockRef.setStockCode(c.getString(1)) ;
+				stockRef.setStockName(c.getString(2)) ;
+				stockRefList.add(stockRef) ;
+			}
+		} finally {
+			c.close() ;
+		}
+		Log.i(TAG, "searchStockRef(): \"" + match + "\" found " + stockRefList.size() + " companies") ;
+	}
+
 	/**
 	 * 
 	 * @param code
@@ -429,6 +525,312 @@ public class DatabaseHelper {
 		return id ;
 	}
 
+	/**
+	 * Replaces the contents of the STOCK_REF table with the specified company list.
+	 * 
+	 * This is the bulk load path used to seed an empty table. Rather than a db.insert() per company - each in its own 
+	 * implicit transaction, so one journal sync per row - a single compiled INSERT is rebound for every row and the rows 
+	 * are committed batchSize at a time. The existing rows are deleted, and any industry groups we haven't seen before are
+	 * added to SECTOR_REF, in the first batch's transaction.
+	 * 
+	 * @param db
+	 * @param stockRefList the complete company list - if a code appears more than once, the first one wins
+	 * @param batchSize the number of rows written per transaction - 0 writes every row in one transaction
+	 * @return the number of rows inserted
+	 */
+	public int bulkWriteStockRef(SQLiteDatabase db, List<StockRef> stockRefList, int batchSize) {
+		Log.i(TAG, "bulkWriteStockRef() starts: " + stockRefList.size() + " companies, batchSize=" + batchSize) ;
+
+		if(batchSize <= 0)
+			batchSize = Integer.MAX_VALUE ;
+
+		int nrows = 0 ;
+		HashMap<String, Long> sectorIds = null ;
+		HashSet<String> seenCodes = new HashSet<String>() ;
+		SQLiteStatement insert = db.compileStatement(STOCK_REF_INSERT) ;
+		try {
+			int i = 0 ;
+			do {
+				db.beginTransaction() ;
+				try {
+					if(i == 0) {
+						db.delete(TBL_STOCK_REF, null, null) ;
+						sectorIds = resolveSectorIds(db, stockRefList) ;
+					}
+
+					int batchEnd = (int)Math.min((long)i + batchSize, stockRefList.size()) ;
+					for(; i < batchEnd; i++) {
+						StockRef stockRef = stockRefList.get(i) ;
+						if(! seenCodes.add(stockRef.getStockCode()))
+							continue ;		// CODE is unique
+						insert.bindString(1, stockRef.getStockCode()) ;
+						bindStringOrNull(insert, 2, stockRef.getStockName()) ;
+						bindSectorId(insert, 3, sectorIds, stockRef.getIndustryGroup()) ;
+						if(insert.executeInsert() <= 0)
+							throw new SQLException("bulkWriteStockRef(): Failed to insert row for " + stockRef.getStockCode() + " into " + TBL_STOCK_REF);
+						nrows++ ;
+					}
+					db.setTransactionSuccessful() ;
+				} finally {
+					db.endTransaction() ;
+				}
+			} while(i < stockRefList.size()) ;
+		} finally {
+			insert.close() ;
+		}
+
+		Log.i(TAG, "bulkWriteStockRef() ends: " + nrows + " rows inserted") ;
+		return nrows ;
+	}
+
+	/**
+	 * Loads the STOCK_REF table from the STOCK_REF table of another database, eg the prebuilt one shipped in the assets.
+	 * 
+	 * The other database is ATTACHed. Its STOCK_REF holds the industry group name in an INDUSTRY_GROUP column rather than a
+	 * SECTOR_REF id. If our STOCK_REF is empty, the industry groups and then the rows are copied across with INSERT ... 
+	 * SELECTs, which never leave SQLite. Otherwise the other database's rows are read and applied with syncStockRef(), so only the
+	 * companies that differ are written and the _id values of the rest stay put.
+	 * 
+	 * @param db
+	 * @param path the database to load from
+	 * @param result populated with the number of rows inserted, updated, deleted and left alone
+	 */
+	public void syncStockRefFromDatabase(SQLiteDatabase db, String path, StockRefSyncResult result) {
+		Log.i(TAG, "syncStockRefFromDatabase() starts: " + path) ;
+
+		/*
+		 * ATTACH isn't allowed inside a transaction, so attach first and let the copy / sync run its own
+		 */
+		db.execSQL("ATTACH DATABASE ? AS " + ATTACHED_SCHEMA, new Object[] { path }) ;
+		try {
+			if(countStockRef(db) == 0) {
+				db.beginTransaction() ;
+				try {
+					db.execSQL("INSERT OR IGNORE INTO " + TBL_SECTOR_REF + " (" + COL_SECT_NAME + ") " +
+							"SELECT DISTINCT " + ATTACHED_INDUSTRY_GROUP + " FROM " + ATTACHED_SCHEMA + "." + TBL_STOCK_REF + 
+							" WHERE " + ATTACHED_INDUSTRY_GROUP + " <> ''") ;
+					db.execSQL("INSERT INTO " + TBL_STOCK_REF + " (" + COL_SREF_STOCK_CODE + ", " + COL_SREF_STOCK_NAME + ", " + COL_SREF_SECTOR_ID + ") " +
+							"SELECT a." + COL_SREF_STOCK_CODE + ", a." + COL_SREF_STOCK_NAME + ", s." + COL_SECT_ID + 
+							" FROM " + ATTACHED_SCHEMA + "." + TBL_STOCK_REF + " a" +
+							" LEFT JOIN " + TBL_SECTOR_REF + " s ON s." + COL_SECT_NAME + " = a." + ATTACHED_INDUSTRY_GROUP + 
+							" ORDER BY a." + COL_SREF_ID) ;
+					db.setTransactionSuccessful() ;
+				} finally {
+					db.endTransaction() ;
+				}
+				result.setInserted((int)countStockRef(db)) ;
+				Log.i(TAG, "syncStockRefFromDatabase() ends: copied " + result.getInserted() + " rows") ;
+			} else {
+				ArrayList<StockRef> stockRefList = new ArrayList<StockRef>() ;
+				Cursor c = db.rawQuery("SELECT " + COL_SREF_STOCK_CODE + ", " + COL_SREF_STOCK_NAME + ", " + ATTACHED_INDUSTRY_GROUP + 
+						" FROM " + ATTACHED_SCHEMA + "." + TBL_STOCK_REF + " ORDER BY " + COL_SREF_ID, null) ;
+				try {
+					while(c.moveToNext()) {
+						StockRef stockRef = new StockRef() ;
+						stockRef.setStockCode(c.getString(0)) ;
+						stockRef.setStockName(c.getString(1)) ;
+						String industryGroup = c.getString(2) ;
+						stockRef.setIndustryGroup(industryGroup == null || industryGroup.length() == 0 ? null : industryGroup) ;
+						stockRefList.add(stockRef) ;
+					}
+				} finally {
+					c.close() ;
+				}
+				syncStockRef(db, stockRefList, result) ;
+			}
+		} finally {
+			db.execSQL("DETACH DATABASE " + ATTACHED_SCHEMA) ;
+		}
+	}
+
+	/**
+	 * @param db
+	 * @return the number of rows in STOCK_REF
+	 */
+	public long countStockRef(SQLiteDatabase db) {
+		return DatabaseUtils.queryNumEntries(db, TBL_STOCK_REF) ;
+	}
+
+	/**
+	 * Makes the STOCK_REF table match the specified company list, touching only the rows that differ.
+	 * 
+	 * Rows are matched by stock code. New codes are inserted, rows whose name or industry group changed are updated in place
+	 * and codes that are no longer listed are deleted - all in a single transaction. New industry groups are added to 
+	 * SECTOR_REF in the same transaction. Because matching rows are never deleted and 
+	 * re-inserted, their _id values stay the same.
+	 * 
+	 * @param db
+	 * @param stockRefList the complete company list - if a code appears more than once, the first one wins
+	 * @param result populated with the number of rows inserted, updated, deleted and left alone
+	 */
+	public void syncStockRef(SQLiteDatabase db, List<StockRef> stockRefList, StockRefSyncResult result) {
+		Log.i(TAG, "syncStockRef() starts: " + stockRefList.size() + " companies") ;
+
+		int inserted = 0 ;
+		int updated = 0 ;
+		int deleted = 0 ;
+		int unchanged = 0 ;
+		db.beginTransaction() ;
+		try {
+			/*
+			 * Read what we've got, keyed by code. Whatever's left in the map once the new list has been applied is no 
+			 * longer listed.
+			 */
+			HashMap<String, StockRef> currentRefs = new HashMap<String, StockRef>() ;
+			HashMap<String, Long> currentIds = new HashMap<String, Long>() ;
+			HashMap<String, Long> currentSectorIds = new HashMap<String, Long>() ;
+			ArrayList<Long> duplicateIds = new ArrayList<Long>() ;
+			Cursor c = db.query(TBL_STOCK_REF, new String[] {COL_SREF_ID, COL_SREF_STOCK_CODE, COL_SREF_STOCK_NAME, COL_SREF_SECTOR_ID}, null, null, null, null, COL_SREF_ID) ;
+			try {
+				while(c.moveToNext()) {
+					String stockCode = c.getString(1) ;
+					if(currentIds.containsKey(stockCode)) {
+						duplicateIds.add(c.getLong(0)) ;		// The oldest row for a code is kept
+						continue ;
+					}
+					StockRef stockRef = new StockRef() ;
+					stockRef.setStockCode(stockCode) ;
+					stockRef.setStockName(c.getString(2)) ;
+					currentRefs.put(stockCode, stockRef) ;
+					currentIds.put(stockCode, c.getLong(0)) ;
+					currentSectorIds.put(stockCode, c.isNull(3) ? null : Long.valueOf(c.getLong(3))) ;
+				}
+			} finally {
+				c.close() ;
+			}
+
+			HashMap<String, Long> sectorIds = resolveSectorIds(db, stockRefList) ;
+			SQLiteStatement insert = db.compileStatement(STOCK_REF_INSERT) ;
+			SQLiteStatement update = db.compileStatement(
+					"UPDATE " + TBL_STOCK_REF + " SET " + COL_SREF_STOCK_NAME + " = ?, " + COL_SREF_SECTOR_ID + " = ? WHERE " + COL_SREF_ID + " = ?") ;
+			SQLiteStatement delete = db.compileStatement(
+					"DELETE FROM " + TBL_STOCK_REF + " WHERE " + COL_SREF_ID + " = ?") ;
+			try {
+				HashSet<String> seenCodes = new HashSet<String>() ;
+				for(StockRef stockRef : stockRefList) {
+					String stockCode = stockRef.getStockCode() ;
+					if(! seenCodes.add(stockCode))
+						continue ;
+
+					StockRef currentRef = currentRefs.get(stockCode) ;
+					if(currentRef == null) {
+						insert.bindString(1, stockCode) ;
+						bindStringOrNull(insert, 2, stockRef.getStockName()) ;
+						bindSectorId(insert, 3, sectorIds, stockRef.getIndustryGroup()) ;
+						if(insert.executeInsert() <= 0)
+							throw new SQLException("syncStockRef(): Failed to insert row for " + stockCode + " into " + TBL_STOCK_REF);
+						inserted++ ;
+					} else {
+						long id = currentIds.remove(stockCode) ;
+						String stockName = stockRef.getStockName() ;
+						Long sectorId = stockRef.getIndustryGroup() == null ? null : sectorIds.get(stockRef.getIndustryGroup()) ;
+						Long currentSectorId = currentSectorIds.get(stockCode) ;
+						if((stockName == null ? currentRef.getStockName() == null : stockName.equals(currentRef.getStockName())) 
+								&& (sectorId == null ? currentSectorId == null : sectorId.equals(currentSectorId))) {
+							unchanged++ ;
+						} else {
+							bindStringOrNull(update, 1, stockName) ;
+							bindSectorId(update, 2, sectorIds, stockRef.getIndustryGroup()) ;
+							update.bindLong(3, id) ;
+							update.execute() ;
+							updated++ ;
+						}
+					}
+				}
+
+				duplicateIds.addAll(currentIds.values()) ;
+				for(Long id : duplicateIds) {
+					delete.bindLong(1, id) ;
+					delete.execute() ;
+					deleted++ ;
+				}
+			} finally {
+				insert.close() ;
+				update.close() ;
+				delete.close() ;
+			}
+			db.setTransactionSuccessful() ;
+		} finally {
+			db.endTransaction() ;
+		}
+
+		result.setInserted(inserted) ;
+		result.setUpdated(updated) ;
+		result.setDeleted(deleted) ;
+		result.setUnchanged(unchanged) ;
+		Log.i(TAG, "syncStockRef() ends: " + result) ;
+	}
+
+	/**
+	 * Looks up the SECTOR_REF id of every industry group in the company list, adding any groups we haven't seen before.
+	 * 
+	 * Call inside a transaction.
+	 * 
+	 * @param db
+	 * @param stockRefList the company list
+	 * @return the SECTOR_REF ids, keyed by industry group name
+	 */
+	private HashMap<String, Long> resolveSectorIds(SQLiteDatabase db, List<StockRef> stockRefList) {
+		HashMap<String, Long> sectorIds = new HashMap<String, Long>() ;
+		Cursor c = db.query(TBL_SECTOR_REF, new String[] {COL_SECT_ID, COL_SECT_NAME}, null, null, null, null, null) ;
+		try {
+			while(c.moveToNext())
+				sectorIds.put(c.getString(1), c.getLong(0)) ;
+		} finally {
+			c.close() ;
+		}
+
+		int added = 0 ;
+		SQLiteStatement insert = db.compileStatement("INSERT INTO " + TBL_SECTOR_REF + " (" + COL_SECT_NAME + ") VALUES (?)") ;
+		try {
+			for(StockRef stockRef : stockRefList) {
+				String industryGroup = stockRef.getIndustryGroup() ;
+				if(industryGroup == null || sectorIds.containsKey(industryGroup))
+					continue ;
+				insert.bindString(1, industryGroup) ;
+				long id = insert.executeInsert() ;
+				if(id <= 0)
+					throw new SQLException("resolveSectorIds(): Failed to insert row for " + industryGroup + " into " + TBL_SECTOR_REF);
+				sectorIds.put(industryGroup, id) ;
+				added++ ;
+			}
+		} finally {
+			insert.close() ;
+		}
+		if(added > 0)
+			Log.i(TAG, "resolveSectorIds(): added " + added + " industry groups") ;
+		return sectorIds ;
+	}
+
+	private static void bindSectorId(SQLiteStatement statement, int index, HashMap<String, Long> sectorIds, String industryGroup) {
+		Long sectorId = industryGroup == null ? null : sectorIds.get(industryGroup) ;
+		if(sectorId == null)
+			statement.bindNull(index) ;
+		else
+			statement.bindLong(index, sectorId) ;
+	}
+
+	/**
+	 * Escapes the LIKE wildcards in user input, for use with ESCAPE LIKE_ESCAPE.
+	 */
+	private static String escapeLike(String text) {
+		StringBuilder sb = new StringBuilder(text.length()) ;
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i) ;
+			if(c == '%' || c == '_' || c == LIKE_ESCAPE)
+				sb.append(LIKE_ESCAPE) ;
+			sb.append(c) ;
+		}
+		return sb.toString() ;
+	}
+
+	private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+		if(value == null)
+			statement.bindNull(index) ;
+		else
+			statement.bindString(index, value) ;
+	}
+
 	/**
 	 * 
 	 * @param db
@@ -488,6 +890,50 @@ public class DatabaseHelper {
         return cursor;
 	}
 
+	/**
+	 * Totals the units still held in each GICS industry group, along with what they cost and what they're worth now.
+	 * 
+	 * The whole breakdown comes from a single grouped query: holdings are joined to their stock's sector and last price 
+	 * quote, and SQLite does the summing. Holdings in stocks with no industry group are totalled as one group with a 
+	 * sector id of 0. Holdings without a price quote are valued at their purchase price.
+	 * 
+	 * @param db
+	 * @param portfolioId the portfolio to total, or ALL_PORTFOLIOS to total across every portfolio
+	 * @param exposureList populated with one entry per sector, largest value first
+	 */
+	public void readSectorExposure(SQLiteDatabase db, long portfolioId, ArrayList<SectorExposure> exposureList) {
+		Log.i(TAG, "readSectorExposure() starts: portfolioId=" + portfolioId) ;
+
+		String sql = 
+				"select	sect._id, sect.name, count(distinct stk.code), sum(stk.units_remaining), " +
+				"		sum(stk.units_remaining * stk.purchase_price), " +
+				"		sum(stk.units_remaining * coalesce(pq.price, stk.purchase_price)) as value " +
+				"from	stock_holdings stk " +
+				"left join stock_ref sref on sref.code = stk.code " +
+				"left join sector_ref sect on sect._id = sref.sector_id " +
+				"left join price_quote pq on pq.code = stk.code " +
+				"where	stk.units_remaining > 0 " +
+				(portfolioId == ALL_PORTFOLIOS ? "" : "and stk.portfolio_id = ? ") +
+				"group by sect._id " +
+				"order by value desc" ;
+		Cursor c = db.rawQuery(sql, portfolioId == ALL_PORTFOLIOS ? null : new String[] { String.valueOf(portfolioId) }) ;
+		try {
+			while(c.moveToNext()) {
+				SectorExposure exposure = new SectorExposure() ;
+				exposure.setSectorId(c.isNull(0) ? 0 : c.getLong(0)) ;
+				exposure.setSectorName(c.getString(1)) ;
+				exposure.setStockCount(c.getInt(2)) ;
+				exposure.setUnits(c.getLong(3)) ;
+				exposure.setCost(c.getDouble(4)) ;
+				exposure.setValue(c.getDouble(5)) ;
+				exposureList.add(exposure) ;
+			}
+		} finally {
+			c.close() ;
+		}
+		Log.i(TAG, "readSectorExposure() ends: " + exposureList.size() + " sectors") ;
+	}
+
 	/**
 	 * Read the specified transaction.
 	 * 
@@ -555,6 +1001,8 @@ public class DatabaseHelper {
 	}
 
 	/**
+	 * A range scan of TRANSACTION_LINKS_PORTFOLIO, which is already in date order. A sale allocated against several of the 
+	 * portfolio's holdings has a link per holding, so the links are grouped by transaction.
 	 * 
 	 * @param db
 	 * @param portfolioId
@@ -564,32 +1012,14 @@ public class DatabaseHelper {
         Log.i(TAG, "getTransactionsByPortfolioIdCursor(): portfolioId=" + portfolioId);
         
         String sql =
-        		"select	_id, transaction_type, transaction_date, amount " +
-        		"from	STOCK_TRANSACTIONS stx " +
-        		"where	exists " +
-        		"	(select null " +
-        		"	from stock_transactions_buy buy " + 
-        		"	where	buy.stx_id = stx._id " +
-        		"	and exists " +
-        		"		(select null " +
-        		"		from stock_holdings stk " +
-        		"		where buy.stk_id = stk._id " + 
-        		"		and stk.portfolio_id = ? )) " +
-        		"or	 exists " +
-        		"	(select null " + 
-        		"	from	sale_allocations sal " +
-        		"	where exists " +
-        		"		(select null from stock_transactions_sell sell " +
-        		"		where	sell._id = sal.sell_id " + 
-        		"		and		sell.stx_id = stx._id)" +
-        		"	and exists " +
-        		"		(select null " +
-        		"		from stock_holdings stk " +
-        		"		where sal.purchased_stk_id = stk._id " + 
-        		"		and stk.portfolio_id = ? )) " +
-        		"order by transaction_date" ;
-
-        Cursor cursor = db.rawQuery(sql, new String[] {String.valueOf(portfolioId), String.valueOf(portfolioId)}) ;
+        		"select	stx._id, stx.transaction_type, stx.transaction_date, stx.amount " +
+        		"from	transaction_links lnk, STOCK_TRANSACTIONS stx " +
+        		"where	lnk.portfolio_id = ? " +
+        		"and	stx._id = lnk.stx_id " +
+        		"group by lnk.transaction_date, lnk.stx_id " +
+        		"order by lnk.transaction_date, lnk.stx_id" ;
+
+        Cursor cursor = db.rawQuery(sql, new String[] {String.valueOf(portfolioId)}) ;
         
         if (cursor != null) {
             cursor.moveToFirst();
@@ -597,31 +1027,27 @@ public class DatabaseHelper {
         return cursor;
 	}
 
+	/**
+	 * A range scan of TRANSACTION_LINKS_HOLDING, which is already in date order.
+	 * 
+	 * @param db
+	 * @param holdingId
+	 * @return
+	 */
 	public Cursor getTransactionsByHoldingIdCursor(SQLiteDatabase db, long holdingId) {
-        Log.i(TAG, "getTransactionsByPortfolioIdCursor(): portfolioId=" + holdingId);
+        Log.i(TAG, "getTransactionsByHoldingIdCursor(): holdingId=" + holdingId);
         String sql = 
-        		"select	_id, transaction_type, transaction_date, stock_code, amount " +
-        		"from	STOCK_TRANSACTIONS stx " +
-        		"where	exists " +
-        		"	(select null " +
-        		"	from stock_transactions_buy buy " + 
-        		"	where	buy.stk_id = ? " +
-        		"	and		buy.stx_id = stx._id) " +
-        		"or	 exists " +
-        		"	(select null " + 
-        		"	from	sale_allocations sal " +
-        		"	where	purchased_stk_id = ? " +
-        		"	and exists " +
-        		"		(select null from stock_transactions_sell sell " +
-        		"		where	sell._id = sal.sell_id " + 
-        		"		and		sell.stx_id = stx._id)) " +
-        		"order by transaction_date" ;
+        		"select	stx._id, stx.transaction_type, stx.transaction_date, stx.stock_code, stx.amount " +
+        		"from	transaction_links lnk, STOCK_TRANSACTIONS stx " +
+        		"where	lnk.stk_id = ? " +
+        		"and	stx._id = lnk.stx_id " +
+        		"order by lnk.transaction_date, lnk.stx_id" ;
         
-        Cursor cursor = db.rawQuery(sql, new String[] {String.valueOf(holdingId), String.valueOf(holdingId)}) ;
+        Cursor cursor = db.rawQuery(sql, new String[] {String.valueOf(holdingId)}) ;
         if (cursor != null) {
             cursor.moveToFirst();
         }
-        Log.i(TAG, "getTransactionsByPortfolioIdCursor(): done");
+        Log.i(TAG, "getTransactionsByHoldingIdCursor(): done");
         return cursor;
 	}
 
@@ -927,4 +1353,148 @@ public class DatabaseHelper {
         	c.close();
         }
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Writes the fetched quotes to the PRICE_QUOTE table.
+	 * 
+	 * Only the columns for the fields in fieldSet are written, so a last-price-only refresh leaves the columns filled in by 
+	 * an earlier full fetch alone.
+	 * 
+	 * All the writes happen in a single transaction. If nothing beyond QuoteFieldSet.BASIC was fetched, a quote whose price 
+	 * hasn't changed since the last fetch is skipped, so the row (and its QUOTE_T) is only rewritten when the price actually 
+	 * moves.
+	 * 
+	 * @param db
+	 * @param quoteList the fetched quotes
+	 * @param fieldSet the QuoteFieldSet fields that were fetched
+	 * @param quoteTimeMillis when the quotes were fetched
+	 * @param source where the quotes came from
+	 * @return the number of rows inserted or updated
+	 */
+	public int writePriceQuotes(SQLiteDatabase db, List<StockPriceQuote> quoteList, int fieldSet, long quoteTimeMillis, String source) {
+		Log.i(TAG, "writePriceQuotes() starts: " + quoteList.size() + " quotes") ;
+
+		fieldSet |= QuoteFieldSet.LAST_PRICE ;
+		boolean skipUnchanged = QuoteFieldSet.contains(QuoteFieldSet.BASIC, fieldSet) ;
+
+		/*
+		 * Build the column lists for the fetched fields. Both statements bind the fields in bit order, then QUOTE_T, 
+		 * SOURCE and CODE.
+		 */
+		int[] fields = new int[QuoteFieldSet.FIELD_COUNT] ;
+		int nfields = 0 ;
+		StringBuilder updateSql = new StringBuilder("UPDATE " + TBL_PRICE_QUOTE + " SET ") ;
+		StringBuilder insertSql = new StringBuilder("INSERT INTO " + TBL_PRICE_QUOTE + " (") ;
+		for(int i = 0; i < QuoteFieldSet.FIELD_COUNT; i++) {
+			if((fieldSet & (1 << i)) == 0)
+				continue ;
+			fields[nfields++] = 1 << i ;
+			updateSql.append(PQ_FIELD_COLUMNS[i]).append(" = ?, ") ;
+			insertSql.append(PQ_FIELD_COLUMNS[i]).append(", ") ;
+		}
+		updateSql.append(COL_PQ_QUOTE_TIME + " = ?, " + COL_PQ_SOURCE + " = ? WHERE " + COL_PQ_STOCK_CODE + " = ?") ;
+		insertSql.append(COL_PQ_QUOTE_TIME + ", " + COL_PQ_SOURCE + ", " + COL_PQ_STOCK_CODE + ") VALUES (") ;
+		for(int i = 0; i < nfields + 3; i++)
+			insertSql.append(i == 0 ? "?" : ", ?") ;
+		insertSql.append(")") ;
+
+		int nrows = 0 ;
+		db.beginTransaction() ;
+		try {
+			/*
+			 * Read the current prices so we can skip the ones that haven't changed
+			 */
+			HashMap<String, Double> currentPrices = new HashMap<String, Double>() ;
+			Cursor c = db.query(TBL_PRICE_QUOTE, new String[] {COL_PQ_STOCK_CODE, COL_PQ_PRICE}, null, null, null, null, null) ;
+			try {
+				while(c.moveToNext())
+					currentPrices.put(c.getString(0), c.getDouble(1)) ;
+			} finally {
+				c.close() ;
+			}
+
+			SQLiteStatement update = db.compileStatement(updateSql.toString()) ;
+			SQLiteStatement insert = db.compileStatement(insertSql.toString()) ;
+			try {
+				for(StockPriceQuote quote : quoteList) {
+					Double currentPrice = currentPrices.get(quote.getTicker()) ;
+					if(skipUnchanged && currentPrice != null && currentPrice.doubleValue() == quote.getLastPrice())
+						continue ;
+
+					/*
+					 * SQLiteStatement.executeUpdateDelete() needs API level 11, so we pick UPDATE or INSERT from the prices
+					 * we've just read rather than from the number of rows an UPDATE touched.
+					 */
+					SQLiteStatement statement = currentPrice != null ? update : insert ;
+					for(int i = 0; i < nfields; i++) {
+						double value = QuoteFieldSet.get(quote, fields[i]) ;
+						if(StockPriceQuote.isSet(value))
+							statement.bindDouble(i + 1, value) ;
+						else
+							statement.bindNull(i + 1) ;
+					}
+					statement.bindLong(nfields + 1, quoteTimeMillis) ;
+					statement.bindString(nfields + 2, source) ;
+					statement.bindString(nfields + 3, quote.getTicker()) ;
+					if(statement == update)
+						update.execute() ;
+					else if(insert.executeInsert() < 0)
+						throw new SQLException("writePriceQuotes(): Failed to write row for " + quote.getTicker() + " into " + TBL_PRICE_QUOTE);
+					currentPrices.put(quote.getTicker(), quote.getLastPrice()) ;
+					quote.setQuoteTime(quoteTimeMillis) ;
+					nrows++ ;
+				}
+			} finally {
+				update.close() ;
+				insert.close() ;
+			}
+			db.setTransactionSuccessful() ;
+		} finally {
+			db.endTransaction() ;
+		}
+
+		Log.i(TAG, "writePriceQuotes() ends: " + nrows + " quotes written") ;
+		return nrows ;
+	}
+
+	/**
+	 * Reads the quotes whose price changed after the specified time. Fields that have never been fetched are left as NaN.
+	 * 
+	 * @param db
+	 * @param sinceMillis only quotes with a later QUOTE_T are read - pass 0 to read every quote
+	 * @param quoteList will be populated with the changed quotes
+	 */
+	public void readPriceQuotesChangedSince(SQLiteDatabase db, long sinceMillis, ArrayList<StockPriceQuote> quoteList) {
+		Log.i(TAG, "readPriceQuotesChangedSince() reading quotes changed since " + sinceMillis) ;
+
+		String[] columns = new String[PQ_FIELD_COLUMNS.length + 2] ;
+		columns[0] = COL_PQ_STOCK_CODE ;
+		columns[1] = COL_PQ_QUOTE_TIME ;
+		System.arraycopy(PQ_FIELD_COLUMNS, 0, columns, 2, PQ_FIELD_COLUMNS.length) ;
+
+		Cursor c = db.query(
+				TBL_PRICE_QUOTE, 								// table
+				columns,										// columns / projection
+				COL_PQ_QUOTE_TIME + " > ?",						// where clause
+				new String[] { String.valueOf(sinceMillis) },	// where values
+				null, 											// group by
+				null,											// having
+				null											// order by
+				) ;
+		try {
+			while(c.moveToNext()) {
+				StockPriceQuote quote = new StockPriceQuote() ;
+				quote.setTicker(c.getString(0)) ;
+				quote.setQuoteTime(c.getLong(1)) ;
+				for(int i = 0; i < PQ_FIELD_COLUMNS.length; i++) {
+					if(!c.isNull(i + 2))
+						QuoteFieldSet.set(quote, 1 << i, c.getDouble(i + 2)) ;
+				}
+				quoteList.add(quote) ;
+			}
+		} finally {
+			c.close() ;
+		}
+		Log.i(TAG, "readPriceQuotesChangedSince() done: " + quoteList.size() + " quotes") ;
+	}
+}
@@ -3,9 +3,16 @@
  */
 package org.amplexus.app.ozstock2.helper;
 
+import java.io.File;
+
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
 
 /**
  * Manages the creation / upgrade of the OZSTOCK database.
@@ -27,6 +34,11 @@ import android.database.sqlite.SQLiteOpenHelper;
  *				-					-				-
  *				|				   /				 \
  *			STOCK_REF 		STOCK_TRANS_BUY		STOCK_TRANS_SELL -|-------|< SALE_ALLOCATIONS
+ *				>
+ *				|
+ *				o
+ *				|
+ *			SECTOR_REF
  *
  * @TODO track managed funds
  * @TODO track stock split history
@@ -45,7 +57,7 @@ public class DatabaseOpenHelper  extends SQLiteOpenHelper {
     private static final String TAG = DatabaseOpenHelper.class.getSimpleName() ;
 
 	public static final String	DATABASE_NAME = "ozstock.db" ;
-	public static final int		DATABASE_VERSION = 5 ;
+	public static final int		DATABASE_VERSION = 11 ;
 
 	private SQLiteDatabase db ;
 	
@@ -68,6 +80,27 @@ public class DatabaseOpenHelper  extends SQLiteOpenHelper {
 	                COL_PREF_PORTFOLIO_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
 	                COL_PREF_PORTFOLIO_NAME + " TEXT);" ;
 
+	/**
+	 * SECTOR_REF table
+	 * 
+	 * The GICS industry groups the ASX classifies listed companies into, eg "Banks" or "Materials". Each name appears 
+	 * once, so sector figures can be grouped by a small integer key.
+	 * 
+	 * Field Name				Description
+	 * -------------------------------------------------------------------------------------
+	 * ID						The auto-incremented primary key
+	 * NAME						The industry group name as it appears in the ASX company list - unique
+	 * 
+	 */
+	public static final String TBL_SECTOR_REF = "SECTOR_REF" ;
+	public static final String COL_SECT_ID = "_id" ;
+	public static final String COL_SECT_NAME = "NAME" ;
+	public static final String SECTOR_REF_TABLE_CREATE =
+            "CREATE TABLE " + TBL_SECTOR_REF + " (" +
+	                COL_SECT_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+	                COL_SECT_NAME + " TEXT UNIQUE" +
+	                ");" ;
+
 	/**
 	 * STOCK_REF table TBD
 	 * 
@@ -75,9 +108,10 @@ public class DatabaseOpenHelper  extends SQLiteOpenHelper {
 	 * 
 	 * Field Name				Description
 	 * -------------------------------------------------------------------------------------
-	 * CODE						The ASX stock code - primary key
+	 * CODE						The ASX stock code - unique
 	 * NAME						The stock name as fetched from the stock exchange
 	 * LAST_PRICE				The last fetched unit price
+	 * SECTOR_ID				The company's GICS industry group - foreign key into SECTOR_REF, NULL if unclassified
 	 * 
 	 */
 	public static final String TBL_STOCK_REF = "STOCK_REF" ;
@@ -85,13 +119,58 @@ public class DatabaseOpenHelper  extends SQLiteOpenHelper {
 	public static final String COL_SREF_STOCK_CODE = "CODE" ;
 	public static final String COL_SREF_STOCK_NAME = "NAME" ;
 	public static final String COL_SREF_LAST_PRICE = "LAST_PRICE" ;
+	public static final String COL_SREF_SECTOR_ID = "SECTOR_ID" ;
 	public static final String STOCK_REF_TABLE_CREATE =
             "CREATE TABLE " + TBL_STOCK_REF + " (" +
 	                COL_SREF_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
 	                COL_SREF_STOCK_CODE + " TEXT, " +
 	                COL_SREF_STOCK_NAME + " TEXT," +
-	                COL_SREF_LAST_PRICE + " FLOAT " +
+	                COL_SREF_LAST_PRICE + " FLOAT, " +
+	                COL_SREF_SECTOR_ID + " INTEGER REFERENCES " + TBL_SECTOR_REF + "(" + COL_SECT_ID + ")" +
 	                ");" ;
+	public static final String IDX_STOCK_REF_CODE = "STOCK_REF_CODE" ;
+	public static final String STOCK_REF_CODE_INDEX_CREATE =
+			"CREATE UNIQUE INDEX " + IDX_STOCK_REF_CODE + " ON " + TBL_STOCK_REF + " (" + COL_SREF_STOCK_CODE + ");" ;
+	public static final String IDX_STOCK_REF_SECTOR = "STOCK_REF_SECTOR" ;
+	public static final String STOCK_REF_SECTOR_INDEX_CREATE =
+			"CREATE INDEX " + IDX_STOCK_REF_SECTOR + " ON " + TBL_STOCK_REF + " (" + COL_SREF_SECTOR_ID + ");" ;
+
+	/**
+	 * STOCK_REF_FTS virtual table
+	 * 
+	 * A full text index of the STOCK_REF codes and names, for searching by word prefix. FTS3 rather than FTS4 because 
+	 * FTS4 needs API level 11.
+	 * 
+	 * The table is kept in step with STOCK_REF by triggers, so every way of writing STOCK_REF - bulk load, sync or 
+	 * INSERT ... SELECT from an attached database - updates it too.
+	 * 
+	 * Field Name				Description
+	 * -------------------------------------------------------------------------------------
+	 * DOCID					The STOCK_REF _id
+	 * CODE						The ASX stock code
+	 * NAME						The stock name
+	 * 
+	 */
+	public static final String TBL_STOCK_REF_FTS = "STOCK_REF_FTS" ;
+	public static final String COL_SFTS_DOCID = "docid" ;
+	public static final String COL_SFTS_STOCK_CODE = COL_SREF_STOCK_CODE ;
+	public static final String COL_SFTS_STOCK_NAME = COL_SREF_STOCK_NAME ;
+	public static final String STOCK_REF_FTS_TABLE_CREATE =
+			"CREATE VIRTUAL TABLE " + TBL_STOCK_REF_FTS + " USING fts3(" + COL_SFTS_STOCK_CODE + ", " + COL_SFTS_STOCK_NAME + ");" ;
+	public static final String STOCK_REF_FTS_INSERT_TRIGGER_CREATE =
+			"CREATE TRIGGER " + TBL_STOCK_REF_FTS + "_INSERT AFTER INSERT ON " + TBL_STOCK_REF + " BEGIN " +
+					"INSERT INTO " + TBL_STOCK_REF_FTS + " (" + COL_SFTS_DOCID + ", " + COL_SFTS_STOCK_CODE + ", " + COL_SFTS_STOCK_NAME + ") " +
+					"VALUES (new." + COL_SREF_ID + ", new." + COL_SREF_STOCK_CODE + ", new." + COL_SREF_STOCK_NAME + "); " +
+					"END;" ;
+	public static final String STOCK_REF_FTS_UPDATE_TRIGGER_CREATE =
+			"CREATE TRIGGER " + TBL_STOCK_REF_FTS + "_UPDATE AFTER UPDATE OF " + COL_SREF_STOCK_CODE + ", " + COL_SREF_STOCK_NAME + " ON " + TBL_STOCK_REF + " BEGIN " +
+					"UPDATE " + TBL_STOCK_REF_FTS + " SET " + COL_SFTS_STOCK_CODE + " = new." + COL_SREF_STOCK_CODE + ", " + COL_SFTS_STOCK_NAME + " = new." + COL_SREF_STOCK_NAME + 
+					" WHERE " + COL_SFTS_DOCID + " = old." + COL_SREF_ID + "; " +
+					"END;" ;
+	public static final String STOCK_REF_FTS_DELETE_TRIGGER_CREATE =
+			"CREATE TRIGGER " + TBL_STOCK_REF_FTS + "_DELETE AFTER DELETE ON " + TBL_STOCK_REF + " BEGIN " +
+					"DELETE FROM " + TBL_STOCK_REF_FTS + " WHERE " + COL_SFTS_DOCID + " = old." + COL_SREF_ID + "; " +
+					"END;" ;
 
 	
 	/**
@@ -131,6 +210,12 @@ public class DatabaseOpenHelper  extends SQLiteOpenHelper {
 	                "FOREIGN KEY (" + COL_STK_PORTFOLIO_ID + ") REFERENCES " + TBL_PORTFOLIO_REF + "(" + COL_PREF_PORTFOLIO_ID + ")," + 
 	                "FOREIGN KEY (" + COL_STK_STOCK_CODE + ") REFERENCES " + TBL_STOCK_REF + "(" + COL_SREF_STOCK_CODE + ")" + 
 	                ");" ;
+	public static final String IDX_STOCK_HOLDINGS_PORTFOLIO = "STOCK_HOLDINGS_PORTFOLIO" ;	// Also gives readHoldingsByPortfolioId() its CODE order
+	public static final String STOCK_HOLDINGS_PORTFOLIO_INDEX_CREATE =
+			"CREATE INDEX " + IDX_STOCK_HOLDINGS_PORTFOLIO + " ON " + TBL_STOCK_HOLDINGS + " (" + COL_STK_PORTFOLIO_ID + ", " + COL_STK_STOCK_CODE + ");" ;
+	public static final String IDX_STOCK_HOLDINGS_CODE = "STOCK_HOLDINGS_CODE" ;				// Covers the "any units left in this stock?" probe
+	public static final String STOCK_HOLDINGS_CODE_INDEX_CREATE =
+			"CREATE INDEX " + IDX_STOCK_HOLDINGS_CODE + " ON " + TBL_STOCK_HOLDINGS + " (" + COL_STK_STOCK_CODE + ", " + COL_STK_UNITS_REMAINING + ");" ;
 
 	/**
 	 * STOCK_TRANSACTION table
@@ -193,6 +278,12 @@ public class DatabaseOpenHelper  extends SQLiteOpenHelper {
 	                "FOREIGN KEY (" + COL_BUY_STX_ID + ") REFERENCES " + TBL_STOCK_TRANSACTIONS + "(" + COL_STX_ID + ")" + 
 	                "FOREIGN KEY (" + COL_BUY_STK_ID + ") REFERENCES " + TBL_STOCK_HOLDINGS + "(" + COL_STK_ID + ")" + 
 	                ");" ;
+	public static final String IDX_STOCK_TRANSACTIONS_BUY_STK = "STOCK_TRANSACTIONS_BUY_STK" ;	// Holding to its buy transaction
+	public static final String STOCK_TRANSACTIONS_BUY_STK_INDEX_CREATE =
+			"CREATE INDEX " + IDX_STOCK_TRANSACTIONS_BUY_STK + " ON " + TBL_STOCK_TRANSACTIONS_BUY + " (" + COL_BUY_STK_ID + ", " + COL_BUY_STX_ID + ");" ;
+	public static final String IDX_STOCK_TRANSACTIONS_BUY_STX = "STOCK_TRANSACTIONS_BUY_STX" ;	// Transaction to its holding
+	public static final String STOCK_TRANSACTIONS_BUY_STX_INDEX_CREATE =
+			"CREATE INDEX " + IDX_STOCK_TRANSACTIONS_BUY_STX + " ON " + TBL_STOCK_TRANSACTIONS_BUY + " (" + COL_BUY_STX_ID + ", " + COL_BUY_STK_ID + ");" ;
 
 	/**
 	 * STOCK_TRANSACTIONS_SELL table.
@@ -221,6 +312,9 @@ public class DatabaseOpenHelper  extends SQLiteOpenHelper {
 	                COL_SEL_TRANSACTION_FEE + " FLOAT," +
 	                "FOREIGN KEY (" + COL_SEL_STX_ID + ") REFERENCES " + TBL_STOCK_TRANSACTIONS + "(" + COL_STX_ID + ")" + 
 	                ");" ;
+	public static final String IDX_STOCK_TRANSACTIONS_SELL_STX = "STOCK_TRANSACTIONS_SELL_STX" ;	// Carries _id, so covers transaction to sell
+	public static final String STOCK_TRANSACTIONS_SELL_STX_INDEX_CREATE =
+			"CREATE INDEX " + IDX_STOCK_TRANSACTIONS_SELL_STX + " ON " + TBL_STOCK_TRANSACTIONS_SELL + " (" + COL_SEL_STX_ID + ");" ;
 
 	
 	/**
@@ -253,28 +347,385 @@ public class DatabaseOpenHelper  extends SQLiteOpenHelper {
 	                "FOREIGN KEY (" + COL_SAL_PURCHASED_STK_ID + ") REFERENCES " + TBL_STOCK_HOLDINGS + "(" + COL_STK_ID + ")" + 
 	                "FOREIGN KEY (" + COL_SAL_SELL_ID + ") REFERENCES " + TBL_STOCK_TRANSACTIONS_SELL + "(" + COL_SEL_ID + ")" + 
 	                ");" ;
+	public static final String IDX_SALE_ALLOCATIONS_PURCHASE = "SALE_ALLOCATIONS_PURCHASE" ;	// Holding to the sales it was part of
+	public static final String SALE_ALLOCATIONS_PURCHASE_INDEX_CREATE =
+			"CREATE INDEX " + IDX_SALE_ALLOCATIONS_PURCHASE + " ON " + TBL_SALE_ALLOCATIONS + " (" + COL_SAL_PURCHASED_STK_ID + ", " + COL_SAL_SELL_ID + ");" ;
+	public static final String IDX_SALE_ALLOCATIONS_SELL = "SALE_ALLOCATIONS_SELL" ;			// Sale to the holdings it drew on
+	public static final String SALE_ALLOCATIONS_SELL_INDEX_CREATE =
+			"CREATE INDEX " + IDX_SALE_ALLOCATIONS_SELL + " ON " + TBL_SALE_ALLOCATIONS + " (" + COL_SAL_SELL_ID + ", " + COL_SAL_PURCHASED_STK_ID + ");" ;
+
+	/**
+	 * TRANSACTION_LINKS table
+	 * 
+	 * A denormalised index of which holdings - and so which portfolios - each transaction belongs to, so a portfolio's or a 
+	 * holding's transaction list is a range scan of one index rather than a trawl through the buy, sell and sale allocation 
+	 * tables for every transaction. A buy has one row, a sell one row per holding it was allocated against.
+	 * 
+	 * The table is kept in step by triggers: buy and sale allocation inserts add rows, moving a holding to another 
+	 * portfolio moves its rows, and deleting a transaction or a holding deletes its rows. Transactions are never updated, 
+	 * so TRANSACTION_DATE can't go stale.
+	 * 
+	 * Everything is created IF NOT EXISTS so the version 11 upgrade step can be run again if it's interrupted.
+	 * 
+	 * Field Name				Description
+	 * -------------------------------------------------------------------------------------
+	 * PORTFOLIO_ID				The holding's portfolio - copied from STOCK_HOLDINGS
+	 * STK_ID					The holding - foreign key referencing STOCK_HOLDINGS
+	 * STX_ID					The transaction - foreign key referencing STOCK_TRANSACTIONS
+	 * TRANSACTION_DATE			The transaction date - copied from STOCK_TRANSACTIONS
+	 * 
+	 */
+	public static final String TBL_TRANSACTION_LINKS = "TRANSACTION_LINKS" ;
+	public static final String COL_LNK_PORTFOLIO_ID = "PORTFOLIO_ID" ;
+	public static final String COL_LNK_STK_ID = "STK_ID" ;
+	public static final String COL_LNK_STX_ID = "STX_ID" ;
+	public static final String COL_LNK_TRANSACTION_DATE = "TRANSACTION_DATE" ;
+	public static final String TRANSACTION_LINKS_TABLE_CREATE =
+            "CREATE TABLE IF NOT EXISTS " + TBL_TRANSACTION_LINKS + " (" +
+	                COL_LNK_PORTFOLIO_ID + " INTEGER, " +
+	                COL_LNK_STK_ID + " INTEGER, " +
+	                COL_LNK_STX_ID + " INTEGER, " +
+	                COL_LNK_TRANSACTION_DATE + " DATETIME, " +
+	                "FOREIGN KEY (" + COL_LNK_STK_ID + ") REFERENCES " + TBL_STOCK_HOLDINGS + "(" + COL_STK_ID + ")," + 
+	                "FOREIGN KEY (" + COL_LNK_STX_ID + ") REFERENCES " + TBL_STOCK_TRANSACTIONS + "(" + COL_STX_ID + ")" + 
+	                ");" ;
+	public static final String IDX_TRANSACTION_LINKS_PORTFOLIO = "TRANSACTION_LINKS_PORTFOLIO" ;	// A portfolio's transactions in date order
+	public static final String TRANSACTION_LINKS_PORTFOLIO_INDEX_CREATE =
+			"CREATE INDEX IF NOT EXISTS " + IDX_TRANSACTION_LINKS_PORTFOLIO + " ON " + TBL_TRANSACTION_LINKS + " (" + COL_LNK_PORTFOLIO_ID + ", " + COL_LNK_TRANSACTION_DATE + ", " + COL_LNK_STX_ID + ");" ;
+	public static final String IDX_TRANSACTION_LINKS_HOLDING = "TRANSACTION_LINKS_HOLDING" ;		// A holding's transactions in date order - unique, so each pair is linked once
+	public static final String TRANSACTION_LINKS_HOLDING_INDEX_CREATE =
+			"CREATE UNIQUE INDEX IF NOT EXISTS " + IDX_TRANSACTION_LINKS_HOLDING + " ON " + TBL_TRANSACTION_LINKS + " (" + COL_LNK_STK_ID + ", " + COL_LNK_TRANSACTION_DATE + ", " + COL_LNK_STX_ID + ");" ;
+	private static final String TRANSACTION_LINKS_INSERT =
+			"INSERT OR IGNORE INTO " + TBL_TRANSACTION_LINKS + " (" + COL_LNK_PORTFOLIO_ID + ", " + COL_LNK_STK_ID + ", " + COL_LNK_STX_ID + ", " + COL_LNK_TRANSACTION_DATE + ") " +
+			"SELECT stk." + COL_STK_PORTFOLIO_ID + ", stk." + COL_STK_ID + ", stx." + COL_STX_ID + ", stx." + COL_STX_TRANSACTION_DATE + " " ;
+	public static final String TRANSACTION_LINKS_BUY_TRIGGER_CREATE =
+			"CREATE TRIGGER IF NOT EXISTS " + TBL_TRANSACTION_LINKS + "_BUY AFTER INSERT ON " + TBL_STOCK_TRANSACTIONS_BUY + " BEGIN " +
+					TRANSACTION_LINKS_INSERT +
+					"FROM " + TBL_STOCK_HOLDINGS + " stk, " + TBL_STOCK_TRANSACTIONS + " stx " +
+					"WHERE stk." + COL_STK_ID + " = new." + COL_BUY_STK_ID + " AND stx." + COL_STX_ID + " = new." + COL_BUY_STX_ID + "; " +
+					"END;" ;
+	public static final String TRANSACTION_LINKS_SALE_TRIGGER_CREATE =
+			"CREATE TRIGGER IF NOT EXISTS " + TBL_TRANSACTION_LINKS + "_SALE AFTER INSERT ON " + TBL_SALE_ALLOCATIONS + " BEGIN " +
+					TRANSACTION_LINKS_INSERT +
+					"FROM " + TBL_STOCK_HOLDINGS + " stk, " + TBL_STOCK_TRANSACTIONS_SELL + " sell, " + TBL_STOCK_TRANSACTIONS + " stx " +
+					"WHERE stk." + COL_STK_ID + " = new." + COL_SAL_PURCHASED_STK_ID + " AND sell." + COL_SEL_ID + " = new." + COL_SAL_SELL_ID + 
+					" AND stx." + COL_STX_ID + " = sell." + COL_SEL_STX_ID + "; " +
+					"END;" ;
+	public static final String TRANSACTION_LINKS_HOLDING_UPDATE_TRIGGER_CREATE =
+			"CREATE TRIGGER IF NOT EXISTS " + TBL_TRANSACTION_LINKS + "_HOLDING_UPDATE AFTER UPDATE OF " + COL_STK_PORTFOLIO_ID + " ON " + TBL_STOCK_HOLDINGS + 
+					" WHEN new." + COL_STK_PORTFOLIO_ID + " <> old." + COL_STK_PORTFOLIO_ID + " BEGIN " +
+					"UPDATE " + TBL_TRANSACTION_LINKS + " SET " + COL_LNK_PORTFOLIO_ID + " = new." + COL_STK_PORTFOLIO_ID + " WHERE " + COL_LNK_STK_ID + " = new." + COL_STK_ID + "; " +
+					"END;" ;
+	public static final String TRANSACTION_LINKS_HOLDING_DELETE_TRIGGER_CREATE =
+			"CREATE TRIGGER IF NOT EXISTS " + TBL_TRANSACTION_LINKS + "_HOLDING_DELETE AFTER DELETE ON " + TBL_STOCK_HOLDINGS + " BEGIN " +
+					"DELETE FROM " + TBL_TRANSACTION_LINKS + " WHERE " + COL_LNK_STK_ID + " = old." + COL_STK_ID + "; " +
+					"END;" ;
+	/*
+	 * Finds the transaction's rows through its holdings, so it's a probe of TRANSACTION_LINKS_HOLDING per holding rather 
+	 * than a scan of the whole table.
+	 */
+	public static final String TRANSACTION_LINKS_TRANSACTION_DELETE_TRIGGER_CREATE =
+			"CREATE TRIGGER IF NOT EXISTS " + TBL_TRANSACTION_LINKS + "_TRANSACTION_DELETE AFTER DELETE ON " + TBL_STOCK_TRANSACTIONS + " BEGIN " +
+					"DELETE FROM " + TBL_TRANSACTION_LINKS + " WHERE " + COL_LNK_STX_ID + " = old." + COL_STX_ID + " AND " + COL_LNK_STK_ID + " IN (" +
+					"SELECT " + COL_BUY_STK_ID + " FROM " + TBL_STOCK_TRANSACTIONS_BUY + " WHERE " + COL_BUY_STX_ID + " = old." + COL_STX_ID + 
+					" UNION ALL " +
+					"SELECT sal." + COL_SAL_PURCHASED_STK_ID + " FROM " + TBL_STOCK_TRANSACTIONS_SELL + " sell, " + TBL_SALE_ALLOCATIONS + " sal " +
+					"WHERE sell." + COL_SEL_STX_ID + " = old." + COL_STX_ID + " AND sal." + COL_SAL_SELL_ID + " = sell." + COL_SEL_ID + "); " +
+					"END;" ;
+
+	/**
+	 * PRICE_QUOTE table
+	 * 
+	 * Stores the last fetched quote for each stock. A row is only rewritten when its price changes, so QUOTE_T records when
+	 * the price last moved and can be used to find the rows that changed since a consumer last looked.
+	 * 
+	 * Only the fields in the QuoteFieldSet that was fetched are written - the others keep their previous values, and are 
+	 * NULL if they've never been fetched.
+	 * 
+	 * Field Name				Description
+	 * -------------------------------------------------------------------------------------
+	 * CODE						The ASX stock code - primary key
+	 * PRICE					The last fetched unit price
+	 * CHG						The change since the previous close
+	 * CHG_PCT					The percentage change since the previous close
+	 * OPEN						Today's opening price
+	 * HIGH						Today's high
+	 * LOW						Today's low
+	 * VOLUME					The number of units traded today
+	 * MKT_CAP					The market capitalisation
+	 * HIGH_52					The 52 week high
+	 * LOW_52					The 52 week low
+	 * PE						The price / earnings ratio
+	 * EPS						The earnings per share
+	 * QUOTE_T					When the price was fetched, in millis
+	 * SOURCE					Where the price came from - eg "google"
+	 * 
+	 */
+	public static final String TBL_PRICE_QUOTE = "PRICE_QUOTE" ;
+	public static final String COL_PQ_STOCK_CODE = "CODE" ;
+	public static final String COL_PQ_PRICE = "PRICE" ;
+	public static final String COL_PQ_CHANGE = "CHG" ;
+	public static final String COL_PQ_CHANGE_PERCENT = "CHG_PCT" ;
+	public static final String COL_PQ_OPEN = "OPEN" ;
+	public static final String COL_PQ_HIGH = "HIGH" ;
+	public static final String COL_PQ_LOW = "LOW" ;
+	public static final String COL_PQ_VOLUME = "VOLUME" ;
+	public static final String COL_PQ_MARKET_CAP = "MKT_CAP" ;
+	public static final String COL_PQ_HIGH_52 = "HIGH_52" ;
+	public static final String COL_PQ_LOW_52 = "LOW_52" ;
+	public static final String COL_PQ_PE = "PE" ;
+	public static final String COL_PQ_EPS = "EPS" ;
+	public static final String COL_PQ_QUOTE_TIME = "QUOTE_T" ;
+	public static final String COL_PQ_SOURCE = "SOURCE" ;
+	/*
+	 * The quote field columns, indexed by the field's bit position in QuoteFieldSet
+	 */
+	public static final String[] PQ_FIELD_COLUMNS = {
+		COL_PQ_PRICE, COL_PQ_CHANGE, COL_PQ_CHANGE_PERCENT, COL_PQ_OPEN, COL_PQ_HIGH, COL_PQ_LOW, 
+		COL_PQ_VOLUME, COL_PQ_MARKET_CAP, COL_PQ_HIGH_52, COL_PQ_LOW_52, COL_PQ_PE, COL_PQ_EPS
+	} ;
+	public static final String PRICE_QUOTE_TABLE_CREATE =
+            "CREATE TABLE " + TBL_PRICE_QUOTE + " (" +
+	                COL_PQ_STOCK_CODE + " TEXT PRIMARY KEY, " +
+	                COL_PQ_PRICE + " FLOAT, " +
+	                COL_PQ_CHANGE + " FLOAT, " +
+	                COL_PQ_CHANGE_PERCENT + " FLOAT, " +
+	                COL_PQ_OPEN + " FLOAT, " +
+	                COL_PQ_HIGH + " FLOAT, " +
+	                COL_PQ_LOW + " FLOAT, " +
+	                COL_PQ_VOLUME + " FLOAT, " +
+	                COL_PQ_MARKET_CAP + " FLOAT, " +
+	                COL_PQ_HIGH_52 + " FLOAT, " +
+	                COL_PQ_LOW_52 + " FLOAT, " +
+	                COL_PQ_PE + " FLOAT, " +
+	                COL_PQ_EPS + " FLOAT, " +
+	                COL_PQ_QUOTE_TIME + " DATETIME, " +
+	                COL_PQ_SOURCE + " TEXT" +
+	                ");" ;
+
+	private static DatabaseOpenHelper sInstance ;		// Shared by the whole process - see getInstance()
+
+	/**
+	 * Every activity, FinanceService and the AsyncTasks share one helper, and so one SQLiteDatabase, which stays open for
+	 * the life of the process. SQLiteDatabase serialises the threads writing through it, so the UI and the service no 
+	 * longer get "database is locked" from writing through separate connections, and nobody pays for opening a 
+	 * connection per call.
+	 * 
+	 * @return the process-wide helper
+	 */
+	public static synchronized DatabaseOpenHelper getInstance(Context context) {
+		if(sInstance == null)
+			sInstance = new DatabaseOpenHelper(context.getApplicationContext()) ;
+		return sInstance ;
+	}
+
+	/**
+	 * Finds out whether opening the database will run onUpgrade(), without opening it through the helper - that would run
+	 * the upgrade there and then. Reads the version from a read-only connection of its own.
+	 *
+	 * A database that doesn't exist yet isn't an upgrade: onCreate() only makes empty tables.
+	 *
+	 * @return true if the database is older than DATABASE_VERSION, or can't be read - in which case the upgrade should be
+	 * left to a background thread to sort out
+	 */
+	public static boolean isUpgradeNeeded(Context context) {
+		File file = context.getDatabasePath(DATABASE_NAME) ;
+		if(! file.exists())
+			return false ;
+		SQLiteDatabase db = null ;
+		try {
+			db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READONLY) ;
+			int version = db.getVersion() ;
+			Log.i(TAG, "isUpgradeNeeded(): database is version " + version + ", current version is " + DATABASE_VERSION) ;
+			return version != 0 && version < DATABASE_VERSION ;
+		} catch (SQLiteException e) {
+			Log.e(TAG, "isUpgradeNeeded(): can't read the database version", e) ;
+			return true ;
+		} finally {
+			if(db != null)
+				db.close() ;
+		}
+	}
 
-	public DatabaseOpenHelper(Context context) {
+	private DatabaseOpenHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+	/**
+	 * Turns on write-ahead logging where the platform's SQLite has it (3.7, API 11 and up). With WAL a write no longer 
+	 * locks readers out - they carry on reading the last commit - and SQLiteDatabase keeps a small pool of read 
+	 * connections beside the write connection, so FinanceService storing prices doesn't hold up the UI reading holdings.
+	 * API 10's SQLite 3.6 has no WAL, so there every thread takes turns on the one connection.
+	 */
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db) ;
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && ! db.isReadOnly())
+			enableWriteAheadLogging(db) ;
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static void enableWriteAheadLogging(SQLiteDatabase db) {
+		if(! db.enableWriteAheadLogging())
+			Log.w(TAG, "enableWriteAheadLogging(): not enabled for " + db.getPath()) ;
+	}
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(PORTFOLIO_REF_TABLE_CREATE);
+        db.execSQL(SECTOR_REF_TABLE_CREATE);
         db.execSQL(STOCK_REF_TABLE_CREATE);
+        db.execSQL(STOCK_REF_CODE_INDEX_CREATE);
+        db.execSQL(STOCK_REF_SECTOR_INDEX_CREATE);
+        db.execSQL(STOCK_REF_FTS_TABLE_CREATE);
+        db.execSQL(STOCK_REF_FTS_INSERT_TRIGGER_CREATE);
+        db.execSQL(STOCK_REF_FTS_UPDATE_TRIGGER_CREATE);
+        db.execSQL(STOCK_REF_FTS_DELETE_TRIGGER_CREATE);
         db.execSQL(STOCK_HOLDINGS_TABLE_CREATE);
+        db.execSQL(STOCK_HOLDINGS_PORTFOLIO_INDEX_CREATE);
+        db.execSQL(STOCK_HOLDINGS_CODE_INDEX_CREATE);
         db.execSQL(STOCK_TRANSACTIONS_TABLE_CREATE);
         db.execSQL(STOCK_TRANSACTIONS_BUY_TABLE_CREATE);
+        db.execSQL(STOCK_TRANSACTIONS_BUY_STK_INDEX_CREATE);
+        db.execSQL(STOCK_TRANSACTIONS_BUY_STX_INDEX_CREATE);
         db.execSQL(STOCK_TRANSACTIONS_SELL_TABLE_CREATE);
+        db.execSQL(STOCK_TRANSACTIONS_SELL_STX_INDEX_CREATE);
         db.execSQL(SALE_ALLOCATION_TABLE_CREATE);
+        db.execSQL(SALE_ALLOCATIONS_PURCHASE_INDEX_CREATE);
+        db.execSQL(SALE_ALLOCATIONS_SELL_INDEX_CREATE);
+        createTransactionLinks(db);
+        db.execSQL(PRICE_QUOTE_TABLE_CREATE);
     }
 
-    /**
-     * TODO: This is pretty ordinary.
-     */
+	/**
+	 * The schema upgrade steps, one per version from version 5 on. To change the schema, bump DATABASE_VERSION, make the
+	 * change in onCreate() and add a step here that makes the same change to an existing database.
+	 */
+	private static final SchemaMigrator sMigrator = new SchemaMigrator(
+		new SchemaMigrator.Step(5, "add PRICE_QUOTE") {
+			@Override
+			public void migrate(SQLiteDatabase db) {
+				db.execSQL(PRICE_QUOTE_TABLE_CREATE) ;		// Already has the version 7 columns
+			}
+		},
+		new SchemaMigrator.Step(6, "add the PRICE_QUOTE quote field columns") {
+			@Override
+			public void migrate(SQLiteDatabase db) {
+				for(int i = 1; i < PQ_FIELD_COLUMNS.length; i++) {
+					if(! SchemaMigrator.hasColumn(db, TBL_PRICE_QUOTE, PQ_FIELD_COLUMNS[i]))
+						db.execSQL("ALTER TABLE " + TBL_PRICE_QUOTE + " ADD COLUMN " + PQ_FIELD_COLUMNS[i] + " FLOAT") ;
+				}
+			}
+		},
+		new SchemaMigrator.Step(7, "add SECTOR_REF, make STOCK_REF.CODE unique") {
+			@Override
+			public void migrate(SQLiteDatabase db) {
+				/*
+				 * The sectors are filled in the next time the company list is loaded. Old full reloads could leave 
+				 * duplicate codes behind, which have to go before CODE can be made unique.
+				 */
+				db.execSQL(SECTOR_REF_TABLE_CREATE) ;
+				db.execSQL("ALTER TABLE " + TBL_STOCK_REF + " ADD COLUMN " + COL_SREF_SECTOR_ID + " INTEGER REFERENCES " + TBL_SECTOR_REF + "(" + COL_SECT_ID + ")") ;
+				db.execSQL("DELETE FROM " + TBL_STOCK_REF + " WHERE " + COL_SREF_ID + " NOT IN (SELECT MIN(" + COL_SREF_ID + ") FROM " + TBL_STOCK_REF + " GROUP BY " + COL_SREF_STOCK_CODE + ")") ;
+				db.execSQL(STOCK_REF_CODE_INDEX_CREATE) ;
+				db.execSQL(STOCK_REF_SECTOR_INDEX_CREATE) ;
+			}
+		},
+		new SchemaMigrator.Step(8, "add STOCK_REF_FTS") {
+			@Override
+			public void migrate(SQLiteDatabase db) {
+				db.execSQL(STOCK_REF_FTS_TABLE_CREATE) ;
+				db.execSQL(STOCK_REF_FTS_INSERT_TRIGGER_CREATE) ;
+				db.execSQL(STOCK_REF_FTS_UPDATE_TRIGGER_CREATE) ;
+				db.execSQL(STOCK_REF_FTS_DELETE_TRIGGER_CREATE) ;
+				db.execSQL("INSERT INTO " + TBL_STOCK_REF_FTS + " (" + COL_SFTS_DOCID + ", " + COL_SFTS_STOCK_CODE + ", " + COL_SFTS_STOCK_NAME + ") " +
+						"SELECT " + COL_SREF_ID + ", " + COL_SREF_STOCK_CODE + ", " + COL_SREF_STOCK_NAME + " FROM " + TBL_STOCK_REF) ;
+			}
+		},
+		new SchemaMigrator.Step(9, "add the holding and transaction indexes") {
+			@Override
+			public void migrate(SQLiteDatabase db) {
+				db.execSQL(STOCK_HOLDINGS_PORTFOLIO_INDEX_CREATE) ;
+				db.execSQL(STOCK_HOLDINGS_CODE_INDEX_CREATE) ;
+				db.execSQL(STOCK_TRANSACTIONS_BUY_STK_INDEX_CREATE) ;
+				db.execSQL(STOCK_TRANSACTIONS_BUY_STX_INDEX_CREATE) ;
+				db.execSQL(STOCK_TRANSACTIONS_SELL_STX_INDEX_CREATE) ;
+				db.execSQL(SALE_ALLOCATIONS_PURCHASE_INDEX_CREATE) ;
+				db.execSQL(SALE_ALLOCATIONS_SELL_INDEX_CREATE) ;
+			}
+		},
+		new SchemaMigrator.Step(10, "add TRANSACTION_LINKS") {
+			@Override
+			public void migrate(SQLiteDatabase db) {
+				createTransactionLinks(db) ;
+			}
+
+			/**
+			 * Links the next batch of transactions to their holdings. INSERT OR IGNORE skips those an interrupted run 
+			 * already linked.
+			 * 
+			 * Takes seconds on a long history, so it must never run on the UI thread - MainActivity leaves the upgrade to 
+			 * its UpgradingDbTask, see isUpgradeNeeded().
+			 */
+			@Override
+			public long migrateBatch(SQLiteDatabase db, long afterId, int batchSize) {
+				Cursor c = db.rawQuery("SELECT MAX(" + COL_STX_ID + ") FROM (SELECT " + COL_STX_ID + " FROM " + TBL_STOCK_TRANSACTIONS + 
+						" WHERE " + COL_STX_ID + " > ? ORDER BY " + COL_STX_ID + " LIMIT " + batchSize + ")", new String[] { String.valueOf(afterId) }) ;
+				long lastId ;
+				try {
+					lastId = c.moveToFirst() && ! c.isNull(0) ? c.getLong(0) : SchemaMigrator.NO_MORE_ROWS ;
+				} finally {
+					c.close() ;
+				}
+				if(lastId == SchemaMigrator.NO_MORE_ROWS)
+					return lastId ;
+
+				Object[] range = new Object[] { afterId, lastId } ;
+				db.execSQL(TRANSACTION_LINKS_INSERT +
+						"FROM " + TBL_STOCK_TRANSACTIONS + " stx, " + TBL_STOCK_TRANSACTIONS_BUY + " buy, " + TBL_STOCK_HOLDINGS + " stk " +
+						"WHERE stx." + COL_STX_ID + " > ? AND stx." + COL_STX_ID + " <= ? " +
+						"AND buy." + COL_BUY_STX_ID + " = stx." + COL_STX_ID + " AND stk." + COL_STK_ID + " = buy." + COL_BUY_STK_ID, range) ;
+				db.execSQL(TRANSACTION_LINKS_INSERT +
+						"FROM " + TBL_STOCK_TRANSACTIONS + " stx, " + TBL_STOCK_TRANSACTIONS_SELL + " sell, " + TBL_SALE_ALLOCATIONS + " sal, " + TBL_STOCK_HOLDINGS + " stk " +
+						"WHERE stx." + COL_STX_ID + " > ? AND stx." + COL_STX_ID + " <= ? " +
+						"AND sell." + COL_SEL_STX_ID + " = stx." + COL_STX_ID + " AND sal." + COL_SAL_SELL_ID + " = sell." + COL_SEL_ID + 
+						" AND stk." + COL_STK_ID + " = sal." + COL_SAL_PURCHASED_STK_ID, range) ;
+				return lastId ;
+			}
+		}
+	) ;
+
+	private static void createTransactionLinks(SQLiteDatabase db) {
+		db.execSQL(TRANSACTION_LINKS_TABLE_CREATE) ;
+		db.execSQL(TRANSACTION_LINKS_PORTFOLIO_INDEX_CREATE) ;
+		db.execSQL(TRANSACTION_LINKS_HOLDING_INDEX_CREATE) ;
+		db.execSQL(TRANSACTION_LINKS_BUY_TRIGGER_CREATE) ;
+		db.execSQL(TRANSACTION_LINKS_SALE_TRIGGER_CREATE) ;
+		db.execSQL(TRANSACTION_LINKS_HOLDING_UPDATE_TRIGGER_CREATE) ;
+		db.execSQL(TRANSACTION_LINKS_HOLDING_DELETE_TRIGGER_CREATE) ;
+		db.execSQL(TRANSACTION_LINKS_TRANSACTION_DELETE_TRIGGER_CREATE) ;
+	}
+
+	/**
+	 * Upgrades from version 5 on step by step via sMigrator, keeping the user's portfolios. Each step commits on its own, 
+	 * so an upgrade cut short resumes from where it got to.
+	 * 
+	 * Versions before 5 predate the steps, and their schemas are long gone, so those databases are still dropped and 
+	 * recreated. UpgradingDbTask then reseeds STOCK_REF.
+	 */
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		db.execSQL("DROP TABLE IF EXISTS " + TBL_STOCK_REF) ;
+		if(sMigrator.canUpgrade(oldVersion, newVersion)) {
+			sMigrator.upgrade(db, oldVersion, newVersion) ;
+			return ;
+		}
+
+		Log.w(TAG, "onUpgrade(): no upgrade path from version " + oldVersion + " to " + newVersion + " - recreating the database") ;
+		db.execSQL("DROP TABLE IF EXISTS " + TBL_TRANSACTION_LINKS) ;
+		db.execSQL("DROP TABLE IF EXISTS " + TBL_PRICE_QUOTE) ;
+		db.execSQL("DROP TABLE IF EXISTS " + TBL_STOCK_REF_FTS) ;
+		db.execSQL("DROP TABLE IF EXISTS " + TBL_STOCK_REF) ;		// Drops the STOCK_REF_FTS triggers too
+		db.execSQL("DROP TABLE IF EXISTS " + TBL_SECTOR_REF) ;
 		db.execSQL("DROP TABLE IF EXISTS " + TBL_PORTFOLIO_REF) ;
 		db.execSQL("DROP TABLE IF EXISTS " + TBL_STOCK_HOLDINGS) ;
 		db.execSQL("DROP TABLE IF EXISTS " + TBL_SALE_ALLOCATIONS) ;
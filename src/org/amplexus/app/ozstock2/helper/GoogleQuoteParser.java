@@ -0,0 +1,271 @@
+package org.amplexus.app.ozstock2.helper;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.amplexus.app.ozstock2.values.StockPriceQuote;
+
+/**
+ * A streaming parser for the google finance quote response.
+ *
+ * Google returns a JSON array of quote objects prefixed with "//". Rather than buffering the whole response and building a
+ * JSONArray DOM, this parser reads the HTTP stream a block at a time and emits each quote to a QuoteHandler as soon as its
+ * closing brace is read. Only the fields StockPriceQuote holds are decoded - field names are matched against char arrays 
+ * and numbers are parsed straight out of the buffer by QuoteNumberParser, so the only String created per quote is the 
+ * ticker. The values of every other field are skipped.
+ *
+ * We can't use android.util.JsonReader because it needs API level 11 and we support API level 10.
+ *
+ * A parser instance reuses its buffers and is not thread safe - use one per thread.
+ *
+ * @author craig
+ */
+public class GoogleQuoteParser {
+
+	private static final int BUFFER_SIZE = 8192 ;
+
+	/*
+	 * Google's name for each quote field, indexed by the field's bit position in QuoteFieldSet
+	 */
+	private static final char[][] FIELD_NAMES = {
+		"l".toCharArray(), "c".toCharArray(), "cp".toCharArray(), "op".toCharArray(), 
+		"hi".toCharArray(), "lo".toCharArray(), "vo".toCharArray(), "mc".toCharArray(), 
+		"hi52".toCharArray(), "lo52".toCharArray(), "pe".toCharArray(), "eps".toCharArray() 
+	} ;
+	private static final int FIELD_UNKNOWN = -1 ;
+
+	private Reader mReader ;
+	private final char[] mBuffer = new char[BUFFER_SIZE] ;	// Characters read from mReader but not yet consumed
+	private int mPos ;										// The next character to be consumed in mBuffer
+	private int mLimit ;									// The number of valid characters in mBuffer
+
+	private char[] mValue = new char[64] ;					// The current key or string value - grows as required
+	private int mValueLength ;
+
+	/**
+	 * Parses the quote array from the reader, passing each quote to the handler.
+	 *
+	 * @param reader the response body
+	 * @param fieldSet the QuoteFieldSet fields to decode - any others are skipped
+	 * @param handler receives each quote
+	 * @return the number of quotes parsed
+	 * @throws IOException if the stream could not be read or is not a quote array
+	 */
+	public int parse(Reader reader, int fieldSet, QuoteProvider.QuoteHandler handler) throws IOException {
+		mReader = reader ;
+		mPos = 0 ;
+		mLimit = 0 ;
+
+		int count = 0 ;
+		try {
+			int c = nextNonWhitespace() ;
+			if(c == '/') {
+				/*
+				 * Skip the "//" google puts in front of the JSON
+				 */
+				expect('/') ;
+				c = nextNonWhitespace() ;
+			}
+			if(c == -1)
+				return 0 ;
+			if(c != '[')
+				throw syntaxError("expected '['") ;
+
+			c = nextNonWhitespace() ;
+			while(c != ']') {
+				if(c != '{')
+					throw syntaxError("expected '{'") ;
+				StockPriceQuote quote = readQuote(fieldSet) ;
+				if(quote.getTicker() != null && StockPriceQuote.isSet(quote.getLastPrice())) {
+					handler.onQuote(quote) ;
+					count++ ;
+				}
+				c = nextNonWhitespace() ;
+				if(c == ',')
+					c = nextNonWhitespace() ;
+			}
+		} finally {
+			mReader = null ;
+		}
+		return count ;
+	}
+
+	/**
+	 * Reads the members of a quote object. The opening brace has already been consumed.
+	 */
+	private StockPriceQuote readQuote(int fieldSet) throws IOException {
+		StockPriceQuote quote = new StockPriceQuote() ;
+		int c = nextNonWhitespace() ;
+		while(c != '}') {
+			if(c != '"')
+				throw syntaxError("expected a field name") ;
+			readString() ;
+			boolean isTicker = mValueLength == 1 && mValue[0] == 't' ;
+			int field = isTicker ? FIELD_UNKNOWN : toField(mValue, mValueLength, fieldSet) ;
+
+			if(nextNonWhitespace() != ':')
+				throw syntaxError("expected ':'") ;
+
+			c = nextNonWhitespace() ;
+			if(c == '"' && (isTicker || field != FIELD_UNKNOWN)) {
+				readString() ;
+				if(isTicker)
+					quote.setTicker(new String(mValue, 0, mValueLength)) ;
+				else
+					QuoteFieldSet.set(quote, field, QuoteNumberParser.parse(mValue, 0, mValueLength)) ;
+			} else {
+				skipValue(c) ;
+			}
+
+			c = nextNonWhitespace() ;
+			if(c == ',')
+				c = nextNonWhitespace() ;
+		}
+		return quote ;
+	}
+
+	/**
+	 * @return the QuoteFieldSet bit for the field name in buf, or FIELD_UNKNOWN if it isn't one of the fields in fieldSet
+	 */
+	private static int toField(char[] buf, int length, int fieldSet) {
+		for(int i = 0; i < FIELD_NAMES.length; i++) {
+			int field = 1 << i ;
+			char[] name = FIELD_NAMES[i] ;
+			if(name.length != length || (fieldSet & field) == 0)
+				continue ;
+			int j = 0 ;
+			while(j < length && name[j] == buf[j])
+				j++ ;
+			if(j == length)
+				return field ;
+		}
+		return FIELD_UNKNOWN ;
+	}
+
+	/**
+	 * Reads a string into mValue. The opening quote has already been consumed.
+	 */
+	private void readString() throws IOException {
+		mValueLength = 0 ;
+		while(true) {
+			int c = read() ;
+			if(c == -1)
+				throw syntaxError("unterminated string") ;
+			if(c == '"')
+				return ;
+			if(c == '\\') {
+				c = read() ;
+				switch(c) {
+				case 'n': c = '\n' ; break ;
+				case 't': c = '\t' ; break ;
+				case 'r': c = '\r' ; break ;
+				case 'b': c = '\b' ; break ;
+				case 'f': c = '\f' ; break ;
+				case 'u':
+					int code = 0 ;
+					for(int i = 0; i < 4; i++) {
+						int h = read() ;
+						if(h == -1)
+							throw syntaxError("unterminated string") ;
+						int digit = Character.digit((char)h, 16) ;
+						if(digit < 0)
+							throw syntaxError("bad \\u escape") ;
+						code = (code << 4) + digit ;
+					}
+					c = code ;
+					break ;
+				case -1:
+					throw syntaxError("unterminated string") ;
+				default:
+					break ;		// \" \\ \/
+				}
+			}
+			if(mValueLength == mValue.length) {
+				char[] grown = new char[mValue.length * 2] ;
+				System.arraycopy(mValue, 0, grown, 0, mValueLength) ;
+				mValue = grown ;
+			}
+			mValue[mValueLength++] = (char)c ;
+		}
+	}
+
+	/**
+	 * Skips over a value we're not interested in. The first character of the value has already been consumed.
+	 */
+	private void skipValue(int c) throws IOException {
+		if(c == '"') {
+			while((c = read()) != '"') {
+				if(c == '\\')
+					c = read() ;
+				if(c == -1)
+					throw syntaxError("unterminated string") ;
+			}
+		} else if(c == '{' || c == '[') {
+			int depth = 1 ;
+			while(depth > 0) {
+				c = read() ;
+				if(c == -1)
+					throw syntaxError("unterminated object") ;
+				else if(c == '"')
+					skipValue(c) ;
+				else if(c == '{' || c == '[')
+					depth++ ;
+				else if(c == '}' || c == ']')
+					depth-- ;
+			}
+		} else {
+			/*
+			 * A bare number, true, false or null - consume up to the next delimiter
+			 */
+			while(true) {
+				c = peek() ;
+				if(c == -1 || c == ',' || c == '}' || c == ']' || isWhitespace(c))
+					return ;
+				mPos++ ;
+			}
+		}
+	}
+
+	private void expect(char expected) throws IOException {
+		if(read() != expected)
+			throw syntaxError("expected '" + expected + "'") ;
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		int c ;
+		do {
+			c = read() ;
+		} while(c != -1 && isWhitespace(c)) ;
+		return c ;
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t' ;
+	}
+
+	private int peek() throws IOException {
+		if(mPos == mLimit && !fill())
+			return -1 ;
+		return mBuffer[mPos] ;
+	}
+
+	private int read() throws IOException {
+		if(mPos == mLimit && !fill())
+			return -1 ;
+		return mBuffer[mPos++] ;
+	}
+
+	private boolean fill() throws IOException {
+		mPos = 0 ;
+		mLimit = mReader.read(mBuffer, 0, mBuffer.length) ;
+		if(mLimit <= 0) {
+			mLimit = 0 ;
+			return false ;
+		}
+		return true ;
+	}
+
+	private IOException syntaxError(String message) {
+		return new IOException("Malformed quote response: " + message) ;
+	}
+}
@@ -0,0 +1,170 @@
+package org.amplexus.app.ozstock2.helper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Calendar;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.HttpConnectionParams;
+
+import android.util.Log;
+
+/**
+ * Fetches quotes from google finance - or from anything that speaks the same protocol, such as a StubQuoteServer.
+ * 
+ * Requests go through the shared, connection pooling HttpClient so the connection to google is kept alive and reused 
+ * between blocks and between refreshes. The response is streamed through a GoogleQuoteParser as it arrives.
+ * 
+ * @author craig
+ */
+public class GoogleQuoteProvider implements QuoteProvider {
+
+	private static final String TAG = GoogleQuoteProvider.class.getSimpleName() ;
+
+	public static final String NAME = "google" ;									// Recorded against each price we store
+
+	public static final String	GOOGLE_URL = "http://www.google.com/finance/info" ;
+	public static final String	QUOTE_URL_PATH = "/finance/info" ;					// The same, relative to the host
+	private static final String	BASIC_QUERY = "?q=" ;								// Just the QuoteFieldSet.BASIC fields
+	private static final String	FULL_QUERY = "?infotype=infoquoteall&q=" ;			// Every field - roughly three times the size
+	private static final String	GOOGLE_URL_SEPARATOR = "," ;						// Tickers are separated by commas
+	private static final int	GOOGLE_MAX_STOCKS_PER_REQUEST = 100 ;				// Google won't let us send more than 100 tickers at a time
+
+	private final String mName ;
+	private final String mUrl ;
+	private int mConnectTimeoutMillis = HttpClientHelper.DEFAULT_CONNECT_TIMEOUT_MILLIS ;
+	private int mReadTimeoutMillis = HttpClientHelper.DEFAULT_READ_TIMEOUT_MILLIS ;
+
+	/**
+	 * Fetches quotes from google finance.
+	 */
+	public GoogleQuoteProvider() {
+		this(NAME, GOOGLE_URL) ;
+	}
+
+	/**
+	 * Fetches quotes from a google compatible server.
+	 * 
+	 * @param name the name recorded against each price
+	 * @param url the quote URL, without the query
+	 */
+	public GoogleQuoteProvider(String name, String url) {
+		mName = name ;
+		mUrl = url ;
+	}
+
+	/**
+	 * @param connectTimeoutMillis how long to wait for a connection to be established
+	 * @param readTimeoutMillis how long to wait for more of the response to arrive
+	 */
+	public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+		mConnectTimeoutMillis = connectTimeoutMillis ;
+		mReadTimeoutMillis = readTimeoutMillis ;
+	}
+
+	public String getName() {
+		return mName ;
+	}
+
+	public int getMaxTickersPerRequest() {
+		return GOOGLE_MAX_STOCKS_PER_REQUEST ;
+	}
+
+	/**
+	 * Sends the HTTP request and streams the response through a GoogleQuoteParser.
+	 * 
+	 * The response is parsed as it arrives rather than being buffered, so each quote is handed to the handler as soon as it has
+	 * been read.
+	 * 
+	 * Google is only asked for infotype=infoquoteall if fields beyond QuoteFieldSet.BASIC are wanted.
+	 */
+	public int fetchQuotes(List<String> tickers, int fieldSet, QuoteHandler handler) throws IOException {
+		HttpGet httpGet = new HttpGet(toQuoteURL(tickers, fieldSet));
+		HttpConnectionParams.setConnectionTimeout(httpGet.getParams(), mConnectTimeoutMillis) ;
+		HttpConnectionParams.setSoTimeout(httpGet.getParams(), mReadTimeoutMillis) ;
+		
+		HttpResponse response = HttpClientHelper.getHttpClient().execute(httpGet);
+		StatusLine statusLine = response.getStatusLine();
+		int statusCode = statusLine.getStatusCode();
+		HttpEntity entity = response.getEntity();
+		if (statusCode != 200) {
+			if(entity != null)
+				entity.consumeContent() ;
+			throw new IOException("Failed to download quotes: " + statusLine) ;
+		}
+
+		CountingInputStream content = new CountingInputStream(entity.getContent());
+		boolean parsed = false ;
+		try {
+			long startMillis = Calendar.getInstance().getTimeInMillis() ;
+			int count = new GoogleQuoteParser().parse(new InputStreamReader(content, "UTF-8"), fieldSet, handler) ;
+			QuoteFetchMetrics.bytesReceived.addAndGet(content.mCount) ;
+			Log.i(TAG, "fetchQuotes(): parsed " + count + " quotes (" + content.mCount + " bytes) from " + mName + " in " + (Calendar.getInstance().getTimeInMillis() - startMillis) + "ms") ;
+			parsed = true ;
+			return count ;
+		} finally {
+			/*
+			 * Reading the trailing bytes releases the connection back to the pool for reuse - but don't hand a half read 
+			 * connection back to the pool.
+			 */
+			if(parsed)
+				entity.consumeContent() ;
+			else
+				httpGet.abort() ;
+		}
+	}
+
+	/**
+	 * Takes the list of stock codes and generates a URL that can be used to query their stock prices.
+	 * 
+	 * @param stockList the list of stock codes
+	 * @param fieldSet the QuoteFieldSet fields wanted
+	 * @return the quote URL
+	 */
+	private String toQuoteURL(List<String> stockList, int fieldSet) {
+		StringBuilder builder = new StringBuilder(mUrl);
+		builder.append(QuoteFieldSet.contains(QuoteFieldSet.BASIC, fieldSet) ? BASIC_QUERY : FULL_QUERY) ;
+		
+		boolean firstTime = true ;
+		for(String stock : stockList) {
+			if(!firstTime)
+				builder.append(GOOGLE_URL_SEPARATOR) ;
+			firstTime = false ;
+			builder.append("ASX:").append(stock) ;
+		}
+		return builder.toString() ;
+	}
+
+	/**
+	 * Counts the bytes of the response body as the parser reads them.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		long mCount ;
+
+		CountingInputStream(InputStream in) {
+			super(in) ;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read() ;
+			if(b >= 0)
+				mCount++ ;
+			return b ;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int n = super.read(buffer, offset, length) ;
+			if(n > 0)
+				mCount += n ;
+			return n ;
+		}
+	}
+}
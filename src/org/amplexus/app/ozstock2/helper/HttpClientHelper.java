@@ -0,0 +1,69 @@
+package org.amplexus.app.ozstock2.helper;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+/**
+ * Holds the process-wide HttpClient.
+ * 
+ * Creating a DefaultHttpClient per request throws away the connection - and the TCP (and possibly TLS) handshake - every 
+ * time. The shared client pools its connections in a ThreadSafeClientConnManager so they are kept alive and reused across 
+ * the blocks of a refresh and across refreshes, and so it can be used from several threads at once.
+ * 
+ * Every request has a connect and read timeout so a dead connection can't hang the caller forever.
+ * 
+ * Always consume or close the response entity so the connection is returned to the pool.
+ * 
+ * @author craig
+ */
+public class HttpClientHelper {
+
+	private static final int MAX_TOTAL_CONNECTIONS = 8 ;
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 4 ;
+
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10 * 1000 ;	// Can be overridden per request
+	public static final int DEFAULT_READ_TIMEOUT_MILLIS = 15 * 1000 ;
+	private static final long POOL_TIMEOUT_MILLIS = 10 * 1000 ;			// How long to wait for a pooled connection to come free
+
+	private static HttpClient sHttpClient ;
+
+	private HttpClientHelper() {
+	}
+
+	/**
+	 * @return the shared, connection pooling HttpClient
+	 */
+	public static synchronized HttpClient getHttpClient() {
+		if(sHttpClient == null) {
+			HttpParams params = new BasicHttpParams() ;
+			HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1) ;
+			HttpProtocolParams.setContentCharset(params, "UTF-8") ;
+			HttpConnectionParams.setConnectionTimeout(params, DEFAULT_CONNECT_TIMEOUT_MILLIS) ;
+			HttpConnectionParams.setSoTimeout(params, DEFAULT_READ_TIMEOUT_MILLIS) ;
+			ConnManagerParams.setTimeout(params, POOL_TIMEOUT_MILLIS) ;
+			ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS) ;
+			ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE)) ;
+
+			SchemeRegistry schemeRegistry = new SchemeRegistry() ;
+			schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80)) ;
+			schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443)) ;
+
+			ClientConnectionManager connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry) ;
+			sHttpClient = new DefaultHttpClient(connectionManager, params) ;
+		}
+		return sHttpClient ;
+	}
+}
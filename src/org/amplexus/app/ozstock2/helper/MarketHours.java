@@ -0,0 +1,249 @@
+package org.amplexus.app.ozstock2.helper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TimeZone;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Knows when the ASX is trading, in Sydney time.
+ * 
+ * A trading day runs:
+ * 
+ * - 07:00 to 10:00		pre-open - orders are queued but nothing trades, so prices don't move
+ * - 10:00 to 16:00		open - prices move (16:00 is 14:10 on early close days)
+ * - 16:00 to 16:10		closing auction - sets the closing prices
+ * - 16:15				post-close snapshot - one last fetch picks up the closing prices
+ * 
+ * Weekends are closed, and so are the holidays in the ASXHolidays.txt asset, which also lists the early close days. The
+ * asset only lists the years ASX has published - every weekday of a year it doesn't list is taken to be a normal trading
+ * day, and a warning is logged the first time each such year is asked about.
+ * 
+ * Price refreshes are only worth doing while the market is open, plus once for the close - see getNextRefreshTime() and 
+ * isRefreshDue().
+ * 
+ * @author craig
+ */
+public class MarketHours {
+
+	private static final String TAG = MarketHours.class.getSimpleName() ;
+
+	public static final String ASX_HOLIDAYS_ASSET_FILENAME = "ASXHolidays.txt" ;
+	public static final TimeZone MARKET_TIME_ZONE = TimeZone.getTimeZone("Australia/Sydney") ;
+
+	private static final int OPEN_MINUTES = 10 * 60 ;						// Minutes past midnight
+	private static final int CLOSE_MINUTES = 16 * 60 ;
+	private static final int SNAPSHOT_DELAY_MINUTES = 15 ;					// From the close to the post-close snapshot, after the closing auction
+	private static final int CLOSED_ALL_DAY = -1 ;
+	private static final int MAX_DAYS_AHEAD = 14 ;							// No run of non-trading days is longer than this
+	private static final long REFRESH_SLOP_MILLIS = 10 * 1000 ;				// Alarms aren't exact - a refresh this early still counts as due
+
+	private static MarketHours sInstance ;
+
+	/*
+	 * Holidays and early closes, keyed by yyyymmdd. The value is CLOSED_ALL_DAY or the early close time in minutes past midnight.
+	 */
+	private final HashMap<Integer, Integer> mSpecialDays ;
+	private final HashSet<Integer> mListedYears = new HashSet<Integer>() ;		// The years the asset has dates for
+	private final HashSet<Integer> mUnlistedYearsLogged = new HashSet<Integer>() ;
+
+	MarketHours(HashMap<Integer, Integer> specialDays) {
+		mSpecialDays = specialDays ;
+		for(Integer date : specialDays.keySet())
+			mListedYears.add(date / 10000) ;
+	}
+
+	/**
+	 * @return the market calendar, read from the ASXHolidays.txt asset on first use
+	 */
+	public static synchronized MarketHours getInstance(Context context) {
+		if(sInstance == null) {
+			HashMap<Integer, Integer> specialDays = new HashMap<Integer, Integer>() ;
+			InputStream is = null ;
+			try {
+				is = context.getAssets().open(ASX_HOLIDAYS_ASSET_FILENAME) ;
+				readSpecialDays(is, specialDays) ;
+			} catch (IOException e) {
+				Log.e(TAG, "getInstance(): failed to read " + ASX_HOLIDAYS_ASSET_FILENAME + " - assuming there are no holidays", e) ;
+			} finally {
+				if(is != null) {
+					try {
+						is.close() ;
+					} catch (IOException e) {
+						// Nothing more we can do
+					}
+				}
+			}
+			Log.i(TAG, "getInstance(): read " + specialDays.size() + " holidays and early closes") ;
+			sInstance = new MarketHours(specialDays) ;
+		}
+		return sInstance ;
+	}
+
+	/**
+	 * Reads lines of "yyyy-MM-dd" (a holiday) or "yyyy-MM-dd HH:mm" (an early close). Anything after a '#' is a comment.
+	 */
+	static void readSpecialDays(InputStream is, HashMap<Integer, Integer> specialDays) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8")) ;
+		String line ;
+		while((line = reader.readLine()) != null) {
+			int commentStart = line.indexOf('#') ;
+			if(commentStart >= 0)
+				line = line.substring(0, commentStart) ;
+			line = line.trim() ;
+			if(line.length() == 0)
+				continue ;
+			try {
+				int date = Integer.parseInt(line.substring(0, 4) + line.substring(5, 7) + line.substring(8, 10)) ;
+				int closeMinutes = CLOSED_ALL_DAY ;
+				String time = line.substring(10).trim() ;
+				if(time.length() > 0)
+					closeMinutes = Integer.parseInt(time.substring(0, 2)) * 60 + Integer.parseInt(time.substring(3, 5)) ;
+				specialDays.put(date, closeMinutes) ;
+			} catch (RuntimeException e) {
+				Log.w(TAG, "readSpecialDays(): ignoring bad line: " + line) ;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the market trades at all on the day containing timeMillis
+	 */
+	public boolean isTradingDay(long timeMillis) {
+		return getCloseMinutes(toMarketCalendar(timeMillis)) != CLOSED_ALL_DAY ;
+	}
+
+	/**
+	 * @return true if the market is open and prices are moving at timeMillis
+	 */
+	public boolean isMarketOpen(long timeMillis) {
+		Calendar cal = toMarketCalendar(timeMillis) ;
+		int closeMinutes = getCloseMinutes(cal) ;
+		if(closeMinutes == CLOSED_ALL_DAY)
+			return false ;
+		int minutes = cal.get(Calendar.HOUR_OF_DAY) * 60 + cal.get(Calendar.MINUTE) ;
+		return minutes >= OPEN_MINUTES && minutes < closeMinutes ;
+	}
+
+	/**
+	 * @return the time of the most recent post-close snapshot at or before timeMillis, or 0 if there wasn't one recently
+	 */
+	public long getLastSnapshotTime(long timeMillis) {
+		Calendar cal = toMarketCalendar(timeMillis) ;
+		for(int day = 0; day <= MAX_DAYS_AHEAD; day++) {
+			int closeMinutes = getCloseMinutes(cal) ;
+			if(closeMinutes != CLOSED_ALL_DAY) {
+				long snapshotMillis = atMinutes(cal, closeMinutes + SNAPSHOT_DELAY_MINUTES) ;
+				if(snapshotMillis <= timeMillis)
+					return snapshotMillis ;
+			}
+			cal.add(Calendar.DAY_OF_MONTH, -1) ;
+		}
+		return 0 ;
+	}
+
+	/**
+	 * Decides whether a refresh is worth doing.
+	 * 
+	 * @param nowMillis the current time
+	 * @param lastRefreshMillis when prices were last fetched
+	 * @param intervalMillis the refresh interval while the market is open
+	 * @return true if we haven't fetched since the last close, or if the market is open and the interval has passed
+	 */
+	public boolean isRefreshDue(long nowMillis, long lastRefreshMillis, long intervalMillis) {
+		if(lastRefreshMillis < getLastSnapshotTime(nowMillis))
+			return true ;
+		return isMarketOpen(nowMillis) && nowMillis - lastRefreshMillis > intervalMillis - REFRESH_SLOP_MILLIS ;
+	}
+
+	/**
+	 * Works out when the next refresh should happen.
+	 * 
+	 * - While the market is open - every intervalMillis, until the close
+	 * - After the close - at the post-close snapshot time, or straight away if we've missed it
+	 * - Otherwise - at the next open
+	 * 
+	 * @param nowMillis the current time
+	 * @param lastRefreshMillis when prices were last fetched
+	 * @param intervalMillis the refresh interval while the market is open
+	 * @return the time of the next refresh
+	 */
+	public long getNextRefreshTime(long nowMillis, long lastRefreshMillis, long intervalMillis) {
+		if(lastRefreshMillis < getLastSnapshotTime(nowMillis))
+			return nowMillis ;
+
+		Calendar cal = toMarketCalendar(nowMillis) ;
+		int closeMinutes = getCloseMinutes(cal) ;
+		if(closeMinutes != CLOSED_ALL_DAY) {
+			long openMillis = atMinutes(cal, OPEN_MINUTES) ;
+			long closeMillis = atMinutes(cal, closeMinutes) ;
+			long snapshotMillis = atMinutes(cal, closeMinutes + SNAPSHOT_DELAY_MINUTES) ;
+			if(nowMillis < openMillis)
+				return openMillis ;
+			if(nowMillis < closeMillis) {
+				long nextMillis = Math.max(nowMillis, lastRefreshMillis + intervalMillis) ;
+				return nextMillis < closeMillis ? nextMillis : snapshotMillis ;
+			}
+			if(nowMillis < snapshotMillis)
+				return snapshotMillis ;
+		}
+
+		/*
+		 * Silent until the next open
+		 */
+		for(int day = 0; day < MAX_DAYS_AHEAD; day++) {
+			cal.add(Calendar.DAY_OF_MONTH, 1) ;
+			if(getCloseMinutes(cal) != CLOSED_ALL_DAY)
+				return atMinutes(cal, OPEN_MINUTES) ;
+		}
+		return nowMillis + MAX_DAYS_AHEAD * 24 * 60 * 60 * 1000L ;
+	}
+
+	/**
+	 * @return the close time in minutes past midnight on the calendar's day, or CLOSED_ALL_DAY
+	 */
+	private int getCloseMinutes(Calendar cal) {
+		int dayOfWeek = cal.get(Calendar.DAY_OF_WEEK) ;
+		if(dayOfWeek == Calendar.SATURDAY || dayOfWeek == Calendar.SUNDAY)
+			return CLOSED_ALL_DAY ;
+		int year = cal.get(Calendar.YEAR) ;
+		if(! mListedYears.contains(year)) {
+			logUnlistedYear(year) ;
+			return CLOSE_MINUTES ;
+		}
+		Integer special = mSpecialDays.get(year * 10000 + (cal.get(Calendar.MONTH) + 1) * 100 + cal.get(Calendar.DAY_OF_MONTH)) ;
+		return special != null ? special : CLOSE_MINUTES ;
+	}
+
+	private void logUnlistedYear(int year) {
+		synchronized(mUnlistedYearsLogged) {
+			if(mUnlistedYearsLogged.add(year))
+				Log.w(TAG, "getCloseMinutes(): " + ASX_HOLIDAYS_ASSET_FILENAME + " has no dates for " + year + " - treating every weekday as a trading day") ;
+		}
+	}
+
+	private static Calendar toMarketCalendar(long timeMillis) {
+		Calendar cal = Calendar.getInstance(MARKET_TIME_ZONE) ;
+		cal.setTimeInMillis(timeMillis) ;
+		return cal ;
+	}
+
+	/**
+	 * @return the time on the calendar's day at the given minutes past midnight, Sydney time
+	 */
+	private static long atMinutes(Calendar cal, int minutes) {
+		Calendar at = (Calendar)cal.clone() ;
+		at.set(Calendar.HOUR_OF_DAY, minutes / 60) ;
+		at.set(Calendar.MINUTE, minutes % 60) ;
+		at.set(Calendar.SECOND, 0) ;
+		at.set(Calendar.MILLISECOND, 0) ;
+		return at.getTimeInMillis() ;
+	}
+}
@@ -0,0 +1,41 @@
+package org.amplexus.app.ozstock2.helper;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how often each path through a price refresh is taken, for the lifetime of the process.
+ * 
+ * FinanceService logs these after every refresh so we can see how often requests are coalesced, time out, are retried or 
+ * are turned away by the circuit breaker.
+ * 
+ * @author craig
+ */
+public class QuoteFetchMetrics {
+
+	public static final AtomicLong refreshes = new AtomicLong() ;			// Refreshes that went to the provider
+	public static final AtomicLong coalescedRequests = new AtomicLong() ;	// Requests answered by a refresh started for another request
+	public static final AtomicLong blockRequests = new AtomicLong() ;		// HTTP requests for a block of quotes, including retries
+	public static final AtomicLong blockRetries = new AtomicLong() ;		// Block requests that were retries
+	public static final AtomicLong blockTimeouts = new AtomicLong() ;		// Block requests that timed out connecting or reading
+	public static final AtomicLong blockFailures = new AtomicLong() ;		// Blocks that failed after every retry
+	public static final AtomicLong bytesReceived = new AtomicLong() ;		// Quote response bytes read
+	public static final AtomicLong failedRefreshes = new AtomicLong() ;		// Refreshes that got no quotes at all
+	public static final AtomicLong circuitOpened = new AtomicLong() ;		// Times the circuit breaker opened
+	public static final AtomicLong cachedRefreshes = new AtomicLong() ;		// Refreshes answered from cached prices because the breaker was open
+
+	private QuoteFetchMetrics() {
+	}
+
+	public static String summary() {
+		return "refreshes=" + refreshes.get() 
+			+ " coalesced=" + coalescedRequests.get() 
+			+ " blockRequests=" + blockRequests.get() 
+			+ " retries=" + blockRetries.get() 
+			+ " timeouts=" + blockTimeouts.get() 
+			+ " blockFailures=" + blockFailures.get() 
+			+ " bytes=" + bytesReceived.get() 
+			+ " failedRefreshes=" + failedRefreshes.get() 
+			+ " circuitOpened=" + circuitOpened.get() 
+			+ " servedFromCache=" + cachedRefreshes.get() ;
+	}
+}
@@ -0,0 +1,93 @@
+package org.amplexus.app.ozstock2.helper;
+
+import org.amplexus.app.ozstock2.values.StockPriceQuote;
+
+/**
+ * Bit masks naming the StockPriceQuote fields to request, parse and store.
+ * 
+ * Background refreshes only need the last price, and google sends a much smaller response when it isn't asked for 
+ * infotype=infoquoteall - so LAST_PRICE_ONLY is the default and FULL is reserved for screens that display the rest.
+ * 
+ * A field set is a plain int so it can travel in an Intent extra and be merged with |.
+ * 
+ * @author craig
+ */
+public class QuoteFieldSet {
+
+	/*
+	 * One bit per field, in the order of DatabaseOpenHelper.PQ_FIELD_COLUMNS
+	 */
+	public static final int LAST_PRICE = 1 << 0 ;
+	public static final int CHANGE = 1 << 1 ;
+	public static final int CHANGE_PERCENT = 1 << 2 ;
+	public static final int OPEN = 1 << 3 ;
+	public static final int HIGH = 1 << 4 ;
+	public static final int LOW = 1 << 5 ;
+	public static final int VOLUME = 1 << 6 ;
+	public static final int MARKET_CAP = 1 << 7 ;
+	public static final int HIGH_52 = 1 << 8 ;
+	public static final int LOW_52 = 1 << 9 ;
+	public static final int PE = 1 << 10 ;
+	public static final int EPS = 1 << 11 ;
+	public static final int FIELD_COUNT = 12 ;
+
+	public static final int LAST_PRICE_ONLY = LAST_PRICE ;							// Background refreshes
+	public static final int BASIC = LAST_PRICE | CHANGE | CHANGE_PERCENT ;			// What google sends without infotype=infoquoteall
+	public static final int FULL = (1 << FIELD_COUNT) - 1 ;							// Everything StockPriceQuote holds
+
+	private QuoteFieldSet() {
+	}
+
+	/**
+	 * @return true if every field in fields is in fieldSet
+	 */
+	public static boolean contains(int fieldSet, int fields) {
+		return (fieldSet & fields) == fields ;
+	}
+
+	/**
+	 * @param quote the quote
+	 * @param field a single field bit
+	 * @return the field's value
+	 */
+	public static double get(StockPriceQuote quote, int field) {
+		switch(field) {
+		case LAST_PRICE:		return quote.getLastPrice() ;
+		case CHANGE:			return quote.getChange() ;
+		case CHANGE_PERCENT:	return quote.getChangePercent() ;
+		case OPEN:				return quote.getOpen() ;
+		case HIGH:				return quote.getHigh() ;
+		case LOW:				return quote.getLow() ;
+		case VOLUME:			return quote.getVolume() ;
+		case MARKET_CAP:		return quote.getMarketCap() ;
+		case HIGH_52:			return quote.getHigh52() ;
+		case LOW_52:			return quote.getLow52() ;
+		case PE:				return quote.getPe() ;
+		case EPS:				return quote.getEps() ;
+		default:				throw new IllegalArgumentException("Not a single quote field: " + field) ;
+		}
+	}
+
+	/**
+	 * @param quote the quote
+	 * @param field a single field bit
+	 * @param value the field's new value
+	 */
+	public static void set(StockPriceQuote quote, int field, double value) {
+		switch(field) {
+		case LAST_PRICE:		quote.setLastPrice(value) ; break ;
+		case CHANGE:			quote.setChange(value) ; break ;
+		case CHANGE_PERCENT:	quote.setChangePercent(value) ; break ;
+		case OPEN:				quote.setOpen(value) ; break ;
+		case HIGH:				quote.setHigh(value) ; break ;
+		case LOW:				quote.setLow(value) ; break ;
+		case VOLUME:			quote.setVolume(value) ; break ;
+		case MARKET_CAP:		quote.setMarketCap(value) ; break ;
+		case HIGH_52:			quote.setHigh52(value) ; break ;
+		case LOW_52:			quote.setLow52(value) ; break ;
+		case PE:				quote.setPe(value) ; break ;
+		case EPS:				quote.setEps(value) ; break ;
+		default:				throw new IllegalArgumentException("Not a single quote field: " + field) ;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package org.amplexus.app.ozstock2.helper;
+
+/**
+ * Parses the numbers in a quote response straight out of a char buffer, without creating a String.
+ * 
+ * Handles the forms the quote providers use:
+ * 
+ * - "33.90", "1,234.50"			plain decimals, with or without thousands separators
+ * - "+0.31", "-0.31"				signed changes
+ * - "8.70M", "180.48B", "950K"		volumes and market caps with a K/M/B/T multiplier
+ * - "0.92%"						percentages - the % is ignored
+ * 
+ * Anything else - including the empty strings the providers send for values they don't have - parses to Double.NaN.
+ * 
+ * @author craig
+ */
+public class QuoteNumberParser {
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8 } ;
+	private static final int MAX_DIGITS = 18 ;				// Any more and the mantissa could overflow a long
+
+	private QuoteNumberParser() {
+	}
+
+	/**
+	 * @param buf holds the number
+	 * @param offset the first char of the number
+	 * @param length the number of chars
+	 * @return the number, or Double.NaN if it is empty or malformed
+	 */
+	public static double parse(char[] buf, int offset, int length) {
+		long mantissa = 0 ;
+		int scale = 0 ;						// Digits after the decimal point
+		int digits = 0 ;
+		double multiplier = 1 ;
+		boolean negative = false ;
+		boolean seenPoint = false ;
+		boolean seenSuffix = false ;
+		int end = offset + length ;
+		for(int i = offset; i < end; i++) {
+			char c = buf[i] ;
+			if(seenSuffix) {
+				/*
+				 * Only a % or whitespace may follow the multiplier
+				 */
+				if(c != '%' && c != ' ')
+					return Double.NaN ;
+			} else if(c >= '0' && c <= '9') {
+				if(digits < MAX_DIGITS) {
+					mantissa = mantissa * 10 + (c - '0') ;
+					if(seenPoint)
+						scale++ ;
+				} else if(!seenPoint) {
+					multiplier *= 10 ;		// Drop the precision we can't hold but keep the magnitude
+				}
+				digits++ ;
+			} else if(c == '.' && !seenPoint) {
+				seenPoint = true ;
+			} else if((c == '-' || c == '+') && digits == 0 && !seenPoint) {
+				negative = c == '-' ;
+			} else if(c == ',' || c == ' ' || c == '%') {
+				continue ;
+			} else if(digits > 0 && (c == 'K' || c == 'k')) {
+				multiplier *= 1e3 ;
+				seenSuffix = true ;
+			} else if(digits > 0 && (c == 'M' || c == 'm')) {
+				multiplier *= 1e6 ;
+				seenSuffix = true ;
+			} else if(digits > 0 && (c == 'B' || c == 'b')) {
+				multiplier *= 1e9 ;
+				seenSuffix = true ;
+			} else if(digits > 0 && (c == 'T' || c == 't')) {
+				multiplier *= 1e12 ;
+				seenSuffix = true ;
+			} else {
+				return Double.NaN ;
+			}
+		}
+		if(digits == 0)
+			return Double.NaN ;
+
+		double value = scale < POWERS_OF_TEN.length ? mantissa / POWERS_OF_TEN[scale] : mantissa / Math.pow(10, scale) ;
+		if(multiplier != 1)
+			value *= multiplier ;
+		return negative ? -value : value ;
+	}
+}
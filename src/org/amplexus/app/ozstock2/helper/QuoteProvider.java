@@ -0,0 +1,47 @@
+package org.amplexus.app.ozstock2.helper;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.amplexus.app.ozstock2.values.StockPriceQuote;
+
+/**
+ * A source of stock price quotes.
+ * 
+ * FinanceService splits the tickers it wants into blocks of at most getMaxTickersPerRequest() and asks the provider for 
+ * each block, possibly from several threads at once - so implementations must be thread safe.
+ * 
+ * @author craig
+ */
+public interface QuoteProvider {
+
+	/**
+	 * Receives each quote as it is read from the provider.
+	 */
+	public interface QuoteHandler {
+		public void onQuote(StockPriceQuote quote) ;
+	}
+
+	/**
+	 * @return the name recorded against each price from this provider - eg "google"
+	 */
+	public String getName() ;
+
+	/**
+	 * @return the most tickers the provider will accept in a single request
+	 */
+	public int getMaxTickersPerRequest() ;
+
+	/**
+	 * Fetches the quotes for a block of tickers, passing each quote to the handler as it arrives.
+	 * 
+	 * Providers should request and parse no more than the fields asked for - fields that aren't fetched are left as NaN.
+	 * 
+	 * @param tickers no more than getMaxTickersPerRequest() ASX stock codes
+	 * @param fieldSet the QuoteFieldSet fields wanted
+	 * @param handler receives each quote
+	 * @return the number of quotes fetched
+	 * @throws IOException if the quotes could not be fetched
+	 */
+	public int fetchQuotes(List<String> tickers, int fieldSet, QuoteHandler handler) throws IOException ;
+}
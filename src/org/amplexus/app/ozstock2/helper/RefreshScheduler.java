@@ -0,0 +1,92 @@
+package org.amplexus.app.ozstock2.helper;
+
+import java.util.Date;
+
+import org.amplexus.app.ozstock2.MainActivity;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Schedules the alarms that trigger price refreshes, following the market hours.
+ * 
+ * Rather than a repeating alarm that fires around the clock, we set a single one-shot alarm for the next time a refresh 
+ * is worth doing (see MarketHours.getNextRefreshTime()): every interval while the market is open, once after the close, 
+ * then nothing until the next open. Whichever AlarmReceiver gets the alarm calls scheduleNext() to set the one after. 
+ * Activities that aren't running don't get the alarm, so the chain is re-armed when one is created: MainActivity.onCreate()
+ * calls schedule() through calibrateAlarm(), which also stores the interval (throttled if the battery is low), and 
+ * PortfolioActivity.onCreate() calls scheduleNext() with the interval last stored.
+ * 
+ * The alarm broadcasts ACTION_REFRESH_ALARM. It uses AlarmManager.RTC so we don't wake the phone if it's sleeping.
+ * 
+ * @author craig
+ */
+public class RefreshScheduler {
+
+	private static final String TAG = RefreshScheduler.class.getSimpleName() ;
+
+	public static final String ACTION_REFRESH_ALARM = "ozstock.alarm.receiver" ;
+
+	/*
+	 * The interval in use - the preferred interval, possibly throttled because the battery is low
+	 */
+	public static final String SHARED_PREFS_EFFECTIVE_INTERVAL_MINS_ATTR = "effectivePriceFetchIntervalMinutes" ;
+
+	private static final long MIN_DELAY_MILLIS = 15 * 1000 ;		// Don't fire again immediately - let the refresh that's under way finish
+
+	private RefreshScheduler() {
+	}
+
+	/**
+	 * Remembers the refresh interval and sets the alarm for the next refresh.
+	 * 
+	 * @param context the context
+	 * @param intervalMinutes the refresh interval while the market is open
+	 */
+	public static void schedule(Context context, int intervalMinutes) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context) ;
+		SharedPreferences.Editor prefsEditor = prefs.edit() ;
+		prefsEditor.putInt(SHARED_PREFS_EFFECTIVE_INTERVAL_MINS_ATTR, intervalMinutes) ;
+		prefsEditor.commit() ;
+
+		scheduleNext(context, false) ;
+	}
+
+	/**
+	 * Sets the alarm for the next refresh, replacing any alarm already set.
+	 * 
+	 * @param context the context
+	 * @param refreshing true if a refresh has just been requested - the next one is then scheduled from now rather than 
+	 * from when prices were last fetched, which the refresh under way hasn't updated yet
+	 */
+	public static void scheduleNext(Context context, boolean refreshing) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context) ;
+		int intervalMinutes = prefs.getInt(SHARED_PREFS_EFFECTIVE_INTERVAL_MINS_ATTR, 
+				prefs.getInt(MainActivity.SHARED_PREFS_PRICE_FETCH_INTERVAL_MINS_ATTR, MainActivity.DEFAULT_PRICE_FETCH_INTERVAL_MINS)) ;
+		long lastPriceTimeMillis = prefs.getLong(MainActivity.SHARED_PREFS_LAST_PRICE_TIME_ATTR, 0L) ;
+
+		long nowMillis = System.currentTimeMillis() ;
+		if(refreshing)
+			lastPriceTimeMillis = nowMillis ;
+		long nextMillis = MarketHours.getInstance(context).getNextRefreshTime(nowMillis, lastPriceTimeMillis, intervalMinutes * 60 * 1000L) ;
+		nextMillis = Math.max(nextMillis, nowMillis + MIN_DELAY_MILLIS) ;
+
+		AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE) ;
+
+		/*
+		 * WARNING: "new Intent(context, AlarmReceiver.class)" does NOT work with *programatically* registered broadcast receivers
+		 */
+		Intent intent = new Intent(ACTION_REFRESH_ALARM) ;
+		PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT) ;
+
+		alarmMgr.cancel(pendingIntent) ;
+		alarmMgr.set(AlarmManager.RTC, nextMillis, pendingIntent) ;
+
+		Log.i(TAG, "scheduleNext(): next refresh at " + new Date(nextMillis) + " (interval " + intervalMinutes + " minutes)") ;
+	}
+}
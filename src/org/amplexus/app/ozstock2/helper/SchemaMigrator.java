@@ -0,0 +1,179 @@
+package org.amplexus.app.ozstock2.helper;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Upgrades the database one version at a time through an ordered list of steps, each taking the schema from version N
+ * to N+1 without touching the user's data.
+ *
+ * Each step commits in its own transaction, along with the database version it leaves behind. If the app dies part way
+ * through an upgrade, the steps already done stay done and the next open carries on from the first step that didn't
+ * commit.
+ *
+ * A step that has to rewrite a large table - eg every transaction a user has recorded over the years - can do it a batch
+ * of rows at a time via Step.migrateBatch(). Each batch commits on its own, so the rollback journal only ever holds one
+ * batch and the work done survives a crash.
+ *
+ * Every step and batch is timed and logged.
+ *
+ * @author craig
+ */
+public class SchemaMigrator {
+
+	private static final String TAG = SchemaMigrator.class.getSimpleName() ;
+
+	public static final long NO_MORE_ROWS = -1 ;	// Returned by Step.migrateBatch() when the step is complete
+	public static final int BATCH_SIZE = 1000 ;		// Rows per batch transaction
+
+	/**
+	 * One upgrade step, from getFromVersion() to getFromVersion() + 1.
+	 */
+	public static abstract class Step {
+		private final int mFromVersion ;
+		private final String mDescription ;
+
+		/**
+		 * @param fromVersion the version this step upgrades from
+		 * @param description used in log messages
+		 */
+		public Step(int fromVersion, String description) {
+			mFromVersion = fromVersion ;
+			mDescription = description ;
+		}
+
+		public int getFromVersion() {
+			return mFromVersion ;
+		}
+
+		public String getDescription() {
+			return mDescription ;
+		}
+
+		/**
+		 * Makes the schema changes. Runs in the same transaction as the first batch.
+		 *
+		 * A step with batches is run again from the start if the app dies between batches, so its schema changes must
+		 * cope with having already been made - eg CREATE ... IF NOT EXISTS, or hasColumn() before ALTER TABLE.
+		 */
+		public abstract void migrate(SQLiteDatabase db) ;
+
+		/**
+		 * Transforms the next batch of rows. Called repeatedly, each time in a new transaction, until it returns
+		 * NO_MORE_ROWS. The database version is only bumped along with the last batch, so batches must skip rows an
+		 * earlier, interrupted run has already done.
+		 *
+		 * By default a step has no rows to transform.
+		 *
+		 * @param afterId the highest row id handled by the previous batch, 0 for the first batch
+		 * @param batchSize the most rows to handle
+		 * @return the highest row id handled, or NO_MORE_ROWS if there were none left
+		 */
+		public long migrateBatch(SQLiteDatabase db, long afterId, int batchSize) {
+			return NO_MORE_ROWS ;
+		}
+	}
+
+	private final Step[] mSteps ;
+
+	/**
+	 * @param steps one per version, oldest first, with no gaps
+	 */
+	public SchemaMigrator(Step... steps) {
+		for(int i = 1; i < steps.length; i++) {
+			if(steps[i].getFromVersion() != steps[0].getFromVersion() + i)
+				throw new IllegalArgumentException("Step " + steps[i].getDescription() + " upgrades from version " + steps[i].getFromVersion() + ", expected " + (steps[0].getFromVersion() + i)) ;
+		}
+		mSteps = steps ;
+	}
+
+	/**
+	 * @return true if there's a step for every version from oldVersion up to newVersion
+	 */
+	public boolean canUpgrade(int oldVersion, int newVersion) {
+		return mSteps.length > 0
+				&& oldVersion >= mSteps[0].getFromVersion()
+				&& newVersion <= mSteps[mSteps.length - 1].getFromVersion() + 1 ;
+	}
+
+	/**
+	 * Runs the steps from oldVersion up to newVersion, each in its own transaction.
+	 *
+	 * SQLiteOpenHelper calls onUpgrade() inside a transaction of its own, which would hold every step until the whole
+	 * upgrade was done. So if there's one open here, it's committed first (it has nothing in it yet) and a fresh one is
+	 * opened again afterwards for SQLiteOpenHelper to set the final version in and end.
+	 *
+	 * @throws IllegalArgumentException if canUpgrade() is false
+	 */
+	public void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		if(! canUpgrade(oldVersion, newVersion))
+			throw new IllegalArgumentException("No upgrade path from version " + oldVersion + " to " + newVersion) ;
+
+		Log.i(TAG, "upgrade(): from version " + oldVersion + " to " + newVersion) ;
+		long startMillis = System.currentTimeMillis() ;
+		boolean inTransaction = db.inTransaction() ;
+		if(inTransaction) {
+			db.setTransactionSuccessful() ;
+			db.endTransaction() ;
+		}
+		try {
+			for(int version = oldVersion; version < newVersion; version++)
+				runStep(db, mSteps[version - mSteps[0].getFromVersion()]) ;
+		} finally {
+			if(inTransaction)
+				db.beginTransaction() ;
+		}
+		Log.i(TAG, "upgrade(): reached version " + newVersion + " in " + (System.currentTimeMillis() - startMillis) + "ms") ;
+	}
+
+	private void runStep(SQLiteDatabase db, Step step) {
+		int toVersion = step.getFromVersion() + 1 ;
+		long startMillis = System.currentTimeMillis() ;
+		long afterId = 0 ;
+		int transactions = 0 ;
+		boolean done = false ;
+		while(! done) {
+			long batchStartMillis = System.currentTimeMillis() ;
+			long lastId ;
+			db.beginTransaction() ;
+			try {
+				if(transactions == 0)
+					step.migrate(db) ;
+				lastId = step.migrateBatch(db, afterId, BATCH_SIZE) ;
+				done = lastId == NO_MORE_ROWS ;
+				if(! done && lastId <= afterId)
+					throw new IllegalStateException("Step " + step.getDescription() + " made no progress after row " + afterId) ;
+				if(done)
+					db.setVersion(toVersion) ;
+				db.setTransactionSuccessful() ;
+			} finally {
+				db.endTransaction() ;
+			}
+			transactions++ ;
+			if(! done) {
+				Log.i(TAG, "runStep(): " + step.getDescription() + ": ids " + (afterId + 1) + " to " + lastId + " in " + (System.currentTimeMillis() - batchStartMillis) + "ms") ;
+				afterId = lastId ;
+			}
+		}
+		Log.i(TAG, "runStep(): version " + step.getFromVersion() + " to " + toVersion + " (" + step.getDescription() + ") in "
+				+ transactions + " batches, " + (System.currentTimeMillis() - startMillis) + "ms") ;
+	}
+
+	/**
+	 * @return true if the table has the column - for making ALTER TABLE ... ADD COLUMN safe to run again
+	 */
+	public static boolean hasColumn(SQLiteDatabase db, String table, String column) {
+		Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null) ;
+		try {
+			int nameIndex = c.getColumnIndexOrThrow("name") ;
+			while(c.moveToNext()) {
+				if(column.equalsIgnoreCase(c.getString(nameIndex)))
+					return true ;
+			}
+			return false ;
+		} finally {
+			c.close() ;
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package org.amplexus.app.ozstock2.helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import org.amplexus.app.ozstock2.values.StockRef;
+
+/**
+ * A trigram index of the company names in STOCK_REF, for finding companies by a partial or misspelt name - eg "westpak"
+ * or "bhp biliton" - that StockRefIndex's prefix match misses.
+ *
+ * Each word of a name is padded with two spaces in front and one behind and cut into overlapping three letter
+ * trigrams, eg "  W", " WE", "WES", "EST", "STP", "TPA", "PAC", "AC ". Each distinct trigram has a posting list of the
+ * companies with it in their name. A search counts, for each company, how many of the input's trigrams its name shares
+ * by walking the input's posting lists, then ranks the companies by:
+ *
+ * - the proportion of the input's trigrams found in the name, so a misspelt word still scores well against a long name,
+ *   then
+ * - the proportion of all the trigrams in the input and the name that are shared, so shorter, closer names come first,
+ *   then
+ * - code.
+ *
+ * The cost of a search is the total length of the input's posting lists, not the number of companies. Only the best
+ * few matches are kept while scoring, so nothing is sorted.
+ *
+ * Unlike StockRefIndex, the index is updated in place: sync() only re-indexes the companies that were listed, delisted or
+ * renamed since the last sync. All methods are synchronized.
+ *
+ * @author craig
+ */
+public class StockNameTrigramIndex {
+
+	public static final float MIN_SIMILARITY = 0.5f ;	// The least proportion of the input's trigrams a name must share to be returned
+
+	private static final int PAD_FRONT = 2 ;			// Spaces in front of each word...
+	private static final int PAD_BACK = 1 ;				// ...and behind it, so the start of a word counts for more than the end
+
+	/*
+	 * The companies, by slot. A deleted company's slot is put on mFreeSlots and reused.
+	 */
+	private long[] mIds = new long[0] ;
+	private String[] mCodes = new String[0] ;			// Upper case, or null for a free slot
+	private String[] mNames = new String[0] ;
+	private int[] mTrigramCounts = new int[0] ;			// The number of distinct trigrams in each name
+	private int mSlotCount ;							// Slots in use or free - the rest of the arrays are spare capacity
+	private int[] mFreeSlots = new int[16] ;
+	private int mFreeSlotCount ;
+	private final HashMap<String, Integer> mSlotsByCode = new HashMap<String, Integer>() ;
+
+	/*
+	 * The slots of the companies with each trigram in their name, keyed by the trigram's three characters packed into a
+	 * long - see trigrams()
+	 */
+	private final HashMap<Long, Postings> mPostings = new HashMap<Long, Postings>() ;
+
+	/**
+	 * A growable list of slots. Order doesn't matter, so removal swaps the last slot into the gap.
+	 */
+	private static class Postings {
+		int[] slots = new int[4] ;
+		int size ;
+
+		void add(int slot) {
+			if(size == slots.length)
+				slots = Arrays.copyOf(slots, size * 2) ;
+			slots[size++] = slot ;
+		}
+
+		void remove(int slot) {
+			for(int i = 0; i < size; i++) {
+				if(slots[i] == slot) {
+					slots[i] = slots[--size] ;
+					return ;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes the index hold exactly the companies in the list, re-indexing only those that are new or renamed and removing
+	 * those that aren't in the list.
+	 *
+	 * @param stockRefList the complete company list, eg from BusinessLogicHelper.getAllStockRef() - if a code appears
+	 * more than once, the last one wins
+	 * @return the number of companies added, renamed or removed
+	 */
+	public synchronized int sync(List<StockRef> stockRefList) {
+		int changed = 0 ;
+		HashMap<String, StockRef> listed = new HashMap<String, StockRef>(stockRefList.size() * 2) ;
+		for(StockRef stockRef : stockRefList)
+			listed.put(normalise(stockRef.getStockCode()), stockRef) ;
+
+		for(int slot = 0; slot < mSlotCount; slot++) {
+			if(mCodes[slot] != null && ! listed.containsKey(mCodes[slot])) {
+				removeSlot(slot) ;
+				changed++ ;
+			}
+		}
+		for(StockRef stockRef : listed.values()) {
+			if(put(stockRef))
+				changed++ ;
+		}
+		return changed ;
+	}
+
+	/**
+	 * Adds a company, or re-indexes it if its name has changed.
+	 *
+	 * @return true if the index changed
+	 */
+	public synchronized boolean put(StockRef stockRef) {
+		String code = normalise(stockRef.getStockCode()) ;
+		String name = stockRef.getStockName() == null ? "" : stockRef.getStockName() ;
+		Integer existing = mSlotsByCode.get(code) ;
+		if(existing != null) {
+			int slot = existing ;
+			mIds[slot] = stockRef.getId() ;
+			if(mNames[slot].equals(name))
+				return false ;
+			removeSlot(slot) ;
+		}
+
+		int slot = mFreeSlotCount > 0 ? mFreeSlots[--mFreeSlotCount] : newSlot() ;
+		long[] trigrams = trigrams(name) ;
+		mIds[slot] = stockRef.getId() ;
+		mCodes[slot] = code ;
+		mNames[slot] = name ;
+		mTrigramCounts[slot] = trigrams.length ;
+		mSlotsByCode.put(code, slot) ;
+		for(int i = 0; i < trigrams.length; i++) {
+			Long key = trigrams[i] ;
+			Postings postings = mPostings.get(key) ;
+			if(postings == null) {
+				postings = new Postings() ;
+				mPostings.put(key, postings) ;
+			}
+			postings.add(slot) ;
+		}
+		return true ;
+	}
+
+	/**
+	 * @return true if the company was in the index
+	 */
+	public synchronized boolean remove(String stockCode) {
+		Integer slot = mSlotsByCode.get(normalise(stockCode)) ;
+		if(slot == null)
+			return false ;
+		removeSlot(slot) ;
+		return true ;
+	}
+
+	public synchronized void clear() {
+		mIds = new long[0] ;
+		mCodes = new String[0] ;
+		mNames = new String[0] ;
+		mTrigramCounts = new int[0] ;
+		mSlotCount = 0 ;
+		mFreeSlotCount = 0 ;
+		mSlotsByCode.clear() ;
+		mPostings.clear() ;
+	}
+
+	/**
+	 * @return the number of companies in the index
+	 */
+	public synchronized int size() {
+		return mSlotsByCode.size() ;
+	}
+
+	/**
+	 * Finds the companies whose names are most like the input.
+	 *
+	 * @param inputText what the user has typed
+	 * @param limit the most matches to return
+	 * @return up to limit companies sharing at least MIN_SIMILARITY of the input's trigrams, best first
+	 */
+	public synchronized ArrayList<StockRef> search(String inputText, int limit) {
+		long[] trigrams = trigrams(inputText == null ? "" : inputText) ;
+		ArrayList<StockRef> stockRefList = new ArrayList<StockRef>() ;
+		if(trigrams.length == 0 || limit <= 0)
+			return stockRefList ;
+
+		/*
+		 * Count the trigrams each company shares with the input
+		 */
+		int[] shared = new int[mSlotCount] ;
+		for(int i = 0; i < trigrams.length; i++) {
+			Postings postings = mPostings.get(trigrams[i]) ;
+			if(postings == null)
+				continue ;
+			for(int j = 0; j < postings.size; j++)
+				shared[postings.slots[j]]++ ;
+		}
+
+		/*
+		 * Keep the best limit companies, best first
+		 */
+		int minShared = (int)Math.ceil(trigrams.length * MIN_SIMILARITY) ;
+		int[] best = new int[limit] ;
+		int count = 0 ;
+		for(int slot = 0; slot < mSlotCount; slot++) {
+			if(shared[slot] < minShared || shared[slot] == 0)
+				continue ;
+			if(count == limit && ! isBetter(slot, best[count - 1], shared, trigrams.length))
+				continue ;
+			int i = count < limit ? count++ : count - 1 ;
+			while(i > 0 && isBetter(slot, best[i - 1], shared, trigrams.length)) {
+				best[i] = best[i - 1] ;
+				i-- ;
+			}
+			best[i] = slot ;
+		}
+
+		for(int i = 0; i < count; i++) {
+			StockRef stockRef = new StockRef() ;
+			stockRef.setId(mIds[best[i]]) ;
+			stockRef.setStockCode(mCodes[best[i]]) ;
+			stockRef.setStockName(mNames[best[i]]) ;
+			stockRefList.add(stockRef) ;
+		}
+		return stockRefList ;
+	}
+
+	/**
+	 * @return true if company a ranks above company b - see the class comment
+	 */
+	private boolean isBetter(int a, int b, int[] shared, int inputTrigramCount) {
+		if(shared[a] != shared[b])
+			return shared[a] > shared[b] ;		// The same denominator, so no need to divide
+		/*
+		 * shared / (input + name - shared), compared by cross multiplying
+		 */
+		long unionA = inputTrigramCount + mTrigramCounts[a] - shared[a] ;
+		long unionB = inputTrigramCount + mTrigramCounts[b] - shared[b] ;
+		if(unionA != unionB)
+			return unionA < unionB ;
+		return mCodes[a].compareTo(mCodes[b]) < 0 ;
+	}
+
+	private int newSlot() {
+		if(mSlotCount == mCodes.length) {
+			int capacity = Math.max(16, mSlotCount * 2) ;
+			mIds = Arrays.copyOf(mIds, capacity) ;
+			mCodes = Arrays.copyOf(mCodes, capacity) ;
+			mNames = Arrays.copyOf(mNames, capacity) ;
+			mTrigramCounts = Arrays.copyOf(mTrigramCounts, capacity) ;
+		}
+		return mSlotCount++ ;
+	}
+
+	private void removeSlot(int slot) {
+		long[] trigrams = trigrams(mNames[slot]) ;
+		for(int i = 0; i < trigrams.length; i++) {
+			Long key = trigrams[i] ;
+			Postings postings = mPostings.get(key) ;
+			postings.remove(slot) ;
+			if(postings.size == 0)
+				mPostings.remove(key) ;
+		}
+		mSlotsByCode.remove(mCodes[slot]) ;
+		mCodes[slot] = null ;
+		mNames[slot] = null ;
+		mTrigramCounts[slot] = 0 ;
+		if(mFreeSlotCount == mFreeSlots.length)
+			mFreeSlots = Arrays.copyOf(mFreeSlots, mFreeSlotCount * 2) ;
+		mFreeSlots[mFreeSlotCount++] = slot ;
+	}
+
+	/**
+	 * Cuts the words of the text - runs of letters and digits, ignoring case - into trigrams.
+	 *
+	 * @return the distinct trigrams, each packed into a long as three 16 bit characters, sorted
+	 */
+	static long[] trigrams(String text) {
+		String s = text.toUpperCase(Locale.US) ;
+		long[] trigrams = new long[16] ;
+		int count = 0 ;
+		int i = 0 ;
+		while(i < s.length()) {
+			while(i < s.length() && ! Character.isLetterOrDigit(s.charAt(i)))
+				i++ ;
+			int start = i ;
+			while(i < s.length() && Character.isLetterOrDigit(s.charAt(i)))
+				i++ ;
+			if(start == i)
+				break ;
+			/*
+			 * Slide a three character window along the padded word
+			 */
+			long window = 0 ;
+			for(int j = start - PAD_FRONT; j < i + PAD_BACK; j++) {
+				char c = j >= start && j < i ? s.charAt(j) : ' ' ;
+				window = ((window << 16) | c) & 0xFFFFFFFFFFFFL ;
+				if(j - (start - PAD_FRONT) >= 2) {
+					if(count == trigrams.length)
+						trigrams = Arrays.copyOf(trigrams, count * 2) ;
+					trigrams[count++] = window ;
+				}
+			}
+		}
+
+		Arrays.sort(trigrams, 0, count) ;
+		int distinct = 0 ;
+		for(int j = 0; j < count; j++) {
+			if(distinct == 0 || trigrams[j] != trigrams[distinct - 1])
+				trigrams[distinct++] = trigrams[j] ;
+		}
+		return Arrays.copyOf(trigrams, distinct) ;
+	}
+
+	private static String normalise(String s) {
+		return s == null ? "" : s.toUpperCase(Locale.US) ;
+	}
+}
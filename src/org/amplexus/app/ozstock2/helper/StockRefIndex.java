@@ -0,0 +1,371 @@
+package org.amplexus.app.ozstock2.helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.amplexus.app.ozstock2.values.StockRef;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+/**
+ * An in-memory index of the STOCK_REF table for the stock ticker autocomplete.
+ *
+ * Built once from the company list, it answers "which companies match what the user has typed so far" without going to
+ * the database:
+ *
+ * - A prefix trie over the stock codes. The companies are sorted by code, so every trie node covers a contiguous range
+ *   of them and a prefix lookup is one walk down the trie - no scan.
+ * - A token index over the words of the company names - every word paired with its company, sorted by word. The words
+ *   starting with a prefix are a contiguous run found by binary search.
+ *
+ * Code matches come first, in code order, followed by companies with a name word starting with the input. If the input
+ * is several words, every one of them must start a word of the name, eg "comm bank" finds COMMONWEALTH BANK OF AUSTRALIA.
+ * Matching ignores case.
+ *
+ * Both indexes are flat arrays rather than an object per node, and the index is never modified once built, so it can
+ * be shared between threads without locking.
+ *
+ * @author craig
+ */
+public class StockRefIndex {
+
+	/*
+	 * The columns of the cursors returned by query() - the same as a STOCK_REF query, so they can be handed straight to
+	 * the autocomplete adapters.
+	 */
+	public static final String[] CURSOR_COLUMNS = {
+		DatabaseOpenHelper.COL_SREF_ID, DatabaseOpenHelper.COL_SREF_STOCK_CODE, DatabaseOpenHelper.COL_SREF_STOCK_NAME
+	} ;
+
+	private final long[] mIds ;					// The companies, sorted by code
+	private final String[] mCodes ;				// Upper case
+	private final String[] mNames ;
+
+	/*
+	 * The code trie. Node 0 is the root. A node's children are stored next to each other, sorted by character, so they
+	 * can be binary searched.
+	 */
+	private final char[] mNodeChars ;			// The character leading to each node
+	private final int[] mNodeFirstChild ;
+	private final int[] mNodeChildCount ;
+	private final int[] mNodeFirst ;			// The range of companies whose code starts with the node's prefix
+	private final int[] mNodeEnd ;
+
+	/*
+	 * The name token index, sorted by token then company
+	 */
+	private final String[] mTokens ;			// Upper case
+	private final int[] mTokenCompanies ;		// Indexes into mIds, mCodes and mNames
+
+	/**
+	 * Builds the index.
+	 *
+	 * @param stockRefList the company list, eg from BusinessLogicHelper.getAllStockRef() - if a code appears more than
+	 * once, the first one wins
+	 */
+	public StockRefIndex(List<StockRef> stockRefList) {
+		/*
+		 * Sort the companies by code and drop duplicate codes
+		 */
+		String[] codes = new String[stockRefList.size()] ;
+		int[] positions = new int[codes.length] ;
+		for(int i = 0; i < codes.length; i++) {
+			codes[i] = normalise(stockRefList.get(i).getStockCode()) ;
+			positions[i] = i ;
+		}
+		sort(codes, positions) ;
+		int count = 0 ;
+		for(int i = 0; i < codes.length; i++) {
+			if(count == 0 || ! codes[i].equals(codes[count - 1])) {
+				codes[count] = codes[i] ;
+				positions[count++] = positions[i] ;
+			}
+		}
+		mIds = new long[count] ;
+		mCodes = Arrays.copyOf(codes, count) ;
+		mNames = new String[count] ;
+		for(int i = 0; i < count; i++) {
+			StockRef stockRef = stockRefList.get(positions[i]) ;
+			mIds[i] = stockRef.getId() ;
+			mNames[i] = stockRef.getStockName() == null ? "" : stockRef.getStockName() ;
+		}
+
+		/*
+		 * Build the trie a level at a time, so each node's children end up next to each other. There's at most one node
+		 * per character of every code, plus the root.
+		 */
+		int maxNodes = 1 ;
+		for(int i = 0; i < count; i++)
+			maxNodes += mCodes[i].length() ;
+		char[] nodeChars = new char[maxNodes] ;
+		int[] nodeFirstChild = new int[maxNodes] ;
+		int[] nodeChildCount = new int[maxNodes] ;
+		int[] nodeFirst = new int[maxNodes] ;
+		int[] nodeEnd = new int[maxNodes] ;
+		int[] nodeDepth = new int[maxNodes] ;
+		nodeEnd[0] = count ;
+		int nodeCount = 1 ;
+		for(int node = 0; node < nodeCount; node++) {
+			int depth = nodeDepth[node] ;
+			nodeFirstChild[node] = nodeCount ;
+			int i = nodeFirst[node] ;
+			while(i < nodeEnd[node] && mCodes[i].length() == depth)
+				i++ ;		// Codes that end at this node sort first
+			while(i < nodeEnd[node]) {
+				char c = mCodes[i].charAt(depth) ;
+				int child = nodeCount++ ;
+				nodeChars[child] = c ;
+				nodeDepth[child] = depth + 1 ;
+				nodeFirst[child] = i ;
+				while(i < nodeEnd[node] && mCodes[i].charAt(depth) == c)
+					i++ ;
+				nodeEnd[child] = i ;
+				nodeChildCount[node]++ ;
+			}
+		}
+		mNodeChars = Arrays.copyOf(nodeChars, nodeCount) ;
+		mNodeFirstChild = Arrays.copyOf(nodeFirstChild, nodeCount) ;
+		mNodeChildCount = Arrays.copyOf(nodeChildCount, nodeCount) ;
+		mNodeFirst = Arrays.copyOf(nodeFirst, nodeCount) ;
+		mNodeEnd = Arrays.copyOf(nodeEnd, nodeCount) ;
+
+		/*
+		 * Build the token index
+		 */
+		ArrayList<String> tokens = new ArrayList<String>() ;
+		int[] tokenCompanies = new int[count * 4] ;
+		for(int i = 0; i < count; i++) {
+			String name = normalise(mNames[i]) ;
+			int start = nextTokenStart(name, 0) ;
+			while(start < name.length()) {
+				int end = tokenEnd(name, start) ;
+				if(tokens.size() == tokenCompanies.length)
+					tokenCompanies = Arrays.copyOf(tokenCompanies, tokenCompanies.length * 2) ;
+				tokenCompanies[tokens.size()] = i ;
+				tokens.add(name.substring(start, end)) ;
+				start = nextTokenStart(name, end) ;
+			}
+		}
+		mTokens = tokens.toArray(new String[tokens.size()]) ;
+		mTokenCompanies = Arrays.copyOf(tokenCompanies, mTokens.length) ;
+		sort(mTokens, mTokenCompanies) ;
+	}
+
+	/**
+	 * Sorts the keys, carrying the values along. The sort is stable, so equal keys stay in the order they were given.
+	 * 
+	 * A merge sort of the two arrays side by side - several times quicker than sorting an array of indexes through a 
+	 * Comparator, which boxes every index.
+	 */
+	private static void sort(String[] keys, int[] values) {
+		mergeSort(keys, values, keys.clone(), values.clone(), 0, keys.length) ;
+	}
+
+	/**
+	 * Sorts [lo, hi) of srcKeys / srcValues into keys / values. The two pairs of arrays start out identical and swap roles
+	 * at each level, so nothing is copied back.
+	 */
+	private static void mergeSort(String[] keys, int[] values, String[] srcKeys, int[] srcValues, int lo, int hi) {
+		if(hi - lo < 2)
+			return ;
+		int mid = (lo + hi) >>> 1 ;
+		mergeSort(srcKeys, srcValues, keys, values, lo, mid) ;
+		mergeSort(srcKeys, srcValues, keys, values, mid, hi) ;
+		int i = lo ;
+		int j = mid ;
+		for(int k = lo; k < hi; k++) {
+			if(j >= hi || (i < mid && srcKeys[i].compareTo(srcKeys[j]) <= 0)) {
+				keys[k] = srcKeys[i] ;
+				values[k] = srcValues[i++] ;
+			} else {
+				keys[k] = srcKeys[j] ;
+				values[k] = srcValues[j++] ;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of companies in the index
+	 */
+	public int size() {
+		return mCodes.length ;
+	}
+
+	/**
+	 * Finds the companies matching the input.
+	 *
+	 * @param inputText what the user has typed - an empty string matches every company
+	 * @param limit the most matches to return
+	 * @return indexes of the matching companies, best first - see getId(), getCode() and getName()
+	 */
+	public int[] search(String inputText, int limit) {
+		String input = normalise(inputText == null ? "" : inputText.trim()) ;
+		int[] matches = new int[Math.min(limit, mCodes.length)] ;
+		int count = 0 ;
+
+		/*
+		 * Codes starting with the input
+		 */
+		int node = findNode(input) ;
+		if(node >= 0) {
+			for(int i = mNodeFirst[node]; i < mNodeEnd[node] && count < matches.length; i++)
+				matches[count++] = i ;
+		}
+
+		/*
+		 * Names with a word starting with each word of the input
+		 */
+		int start = nextTokenStart(input, 0) ;
+		if(count < matches.length && start < input.length()) {
+			int end = tokenEnd(input, start) ;
+			String first = input.substring(start, end) ;
+			String rest = input.substring(end) ;
+			for(int t = lowerBound(first); t < mTokens.length && count < matches.length && mTokens[t].startsWith(first); t++) {
+				int company = mTokenCompanies[t] ;
+				if(! contains(matches, count, company) && nameMatches(company, rest))
+					matches[count++] = company ;
+			}
+		}
+
+		return count == matches.length ? matches : Arrays.copyOf(matches, count) ;
+	}
+
+	/**
+	 * Finds the companies matching the input, as a cursor with the same columns as a STOCK_REF query - see CURSOR_COLUMNS.
+	 *
+	 * @param inputText what the user has typed - an empty string matches every company
+	 * @param limit the most matches to return
+	 * @return the matching companies, best first
+	 */
+	public Cursor query(String inputText, int limit) {
+		int[] matches = search(inputText, limit) ;
+		MatrixCursor cursor = new MatrixCursor(CURSOR_COLUMNS, matches.length) ;
+		for(int i = 0; i < matches.length; i++)
+			cursor.addRow(new Object[] { mIds[matches[i]], mCodes[matches[i]], mNames[matches[i]] }) ;
+		return cursor ;
+	}
+
+	/**
+	 * Finds the companies matching the input, as a list.
+	 *
+	 * @param inputText what the user has typed - an empty string matches every company
+	 * @param limit the most matches to return
+	 * @return the matching companies, best first
+	 */
+	public ArrayList<StockRef> find(String inputText, int limit) {
+		int[] matches = search(inputText, limit) ;
+		ArrayList<StockRef> stockRefList = new ArrayList<StockRef>(matches.length) ;
+		for(int i = 0; i < matches.length; i++) {
+			StockRef stockRef = new StockRef() ;
+			stockRef.setId(mIds[matches[i]]) ;
+			stockRef.setStockCode(mCodes[matches[i]]) ;
+			stockRef.setStockName(mNames[matches[i]]) ;
+			stockRefList.add(stockRef) ;
+		}
+		return stockRefList ;
+	}
+
+	public long getId(int company) {
+		return mIds[company] ;
+	}
+
+	public String getCode(int company) {
+		return mCodes[company] ;
+	}
+
+	public String getName(int company) {
+		return mNames[company] ;
+	}
+
+	/**
+	 * @return the trie node for the prefix, or -1 if no code starts with it
+	 */
+	private int findNode(String prefix) {
+		int node = 0 ;
+		for(int depth = 0; depth < prefix.length(); depth++) {
+			char c = prefix.charAt(depth) ;
+			int lo = mNodeFirstChild[node] ;
+			int hi = lo + mNodeChildCount[node] - 1 ;
+			node = -1 ;
+			while(lo <= hi) {
+				int mid = (lo + hi) >>> 1 ;
+				if(mNodeChars[mid] < c)
+					lo = mid + 1 ;
+				else if(mNodeChars[mid] > c)
+					hi = mid - 1 ;
+				else {
+					node = mid ;
+					break ;
+				}
+			}
+			if(node < 0)
+				return -1 ;
+		}
+		return node ;
+	}
+
+	/**
+	 * @return the index of the first token not less than the prefix
+	 */
+	private int lowerBound(String prefix) {
+		int lo = 0 ;
+		int hi = mTokens.length ;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1 ;
+			if(mTokens[mid].compareTo(prefix) < 0)
+				lo = mid + 1 ;
+			else
+				hi = mid ;
+		}
+		return lo ;
+	}
+
+	/**
+	 * @return true if every word of the input starts a word of the company's name
+	 */
+	private boolean nameMatches(int company, String input) {
+		String name = null ;
+		for(int start = nextTokenStart(input, 0); start < input.length(); ) {
+			int end = tokenEnd(input, start) ;
+			if(name == null)
+				name = normalise(mNames[company]) ;
+			boolean found = false ;
+			for(int n = nextTokenStart(name, 0); n < name.length() && ! found; ) {
+				int nameEnd = tokenEnd(name, n) ;
+				found = nameEnd - n >= end - start && name.regionMatches(n, input, start, end - start) ;
+				n = nextTokenStart(name, nameEnd) ;
+			}
+			if(! found)
+				return false ;
+			start = nextTokenStart(input, end) ;
+		}
+		return true ;
+	}
+
+	private static boolean contains(int[] values, int count, int value) {
+		for(int i = 0; i < count; i++) {
+			if(values[i] == value)
+				return true ;
+		}
+		return false ;
+	}
+
+	private static int nextTokenStart(String s, int from) {
+		while(from < s.length() && ! Character.isLetterOrDigit(s.charAt(from)))
+			from++ ;
+		return from ;
+	}
+
+	private static int tokenEnd(String s, int from) {
+		while(from < s.length() && Character.isLetterOrDigit(s.charAt(from)))
+			from++ ;
+		return from ;
+	}
+
+	private static String normalise(String s) {
+		return s == null ? "" : s.toUpperCase(Locale.US) ;
+	}
+}
@@ -0,0 +1,347 @@
+package org.amplexus.app.ozstock2.helper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * A local HTTP server that answers quote requests the way google finance does.
+ * 
+ * Point a GoogleQuoteProvider at getUrl() to exercise the whole refresh pipeline - chunking, pooled keep-alive 
+ * connections, streaming parse and the PRICE_QUOTE writes - without a network connection and without hammering google. 
+ * The response latency is configurable so slow networks can be simulated, and prices can either be fixed or take a small 
+ * random walk on each request so there are always some changed prices to write.
+ * 
+ * Only GET requests for QUOTE_URL_PATH are understood. As with google, the extra fields are only sent if the request asks 
+ * for infotype=infoquoteall. Connections are kept alive unless the client asks otherwise.
+ * 
+ * @author craig
+ */
+public class StubQuoteServer {
+
+	private static final String TAG = StubQuoteServer.class.getSimpleName() ;
+
+	public static final String NAME = "stub" ;										// Recorded against each price we store
+
+	private static final int IDLE_CONNECTION_TIMEOUT_MILLIS = 30 * 1000 ;			// Close kept alive connections that go quiet
+
+	private static StubQuoteServer sInstance ;
+
+	private ServerSocket mServerSocket ;
+	private ExecutorService mConnectionExecutor ;									// One thread per open connection
+	private volatile boolean mRunning ;
+
+	private volatile int mLatencyMillis ;											// Delay before each response is sent
+	private volatile int mLatencyJitterMillis ;										// Up to this much extra delay, chosen at random
+	private volatile boolean mRandomWalk = true ;									// Move every price a little on each request
+
+	private final HashMap<String, Double> mPrices = new HashMap<String, Double>() ;	// The last price served for each ticker
+	private final Random mRandom = new Random() ;
+	private final AtomicInteger mRequestCount = new AtomicInteger() ;
+	private final AtomicInteger mConnectionCount = new AtomicInteger() ;
+
+	public StubQuoteServer() {
+		/*
+		 * Canned prices, as per the sample response in FinanceService
+		 */
+		mPrices.put("BHP", 33.90) ;
+		mPrices.put("RIO", 64.46) ;
+	}
+
+	/**
+	 * @return the server shared by the app, started on first use
+	 * @throws IOException if the server could not be started
+	 */
+	public static synchronized StubQuoteServer getInstance() throws IOException {
+		if(sInstance == null) {
+			StubQuoteServer server = new StubQuoteServer() ;
+			server.start() ;
+			sInstance = server ;
+		}
+		return sInstance ;
+	}
+
+	/**
+	 * Starts listening on an ephemeral port on the loopback interface.
+	 * 
+	 * @return the port
+	 * @throws IOException if the socket could not be opened
+	 */
+	public synchronized int start() throws IOException {
+		if(mRunning)
+			return mServerSocket.getLocalPort() ;
+
+		mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")) ;
+		mConnectionExecutor = Executors.newCachedThreadPool() ;
+		mRunning = true ;
+
+		Thread acceptThread = new Thread(new Runnable() {
+			public void run() {
+				acceptConnections() ;
+			}
+		}, TAG) ;
+		acceptThread.setDaemon(true) ;
+		acceptThread.start() ;
+
+		Log.i(TAG, "start(): listening on port " + mServerSocket.getLocalPort()) ;
+		return mServerSocket.getLocalPort() ;
+	}
+
+	/**
+	 * Stops listening and closes every open connection.
+	 */
+	public synchronized void stop() {
+		if(!mRunning)
+			return ;
+		mRunning = false ;
+		try {
+			mServerSocket.close() ;
+		} catch (IOException e) {
+			Log.w(TAG, "stop(): failed to close server socket", e) ;
+		}
+		mConnectionExecutor.shutdownNow() ;
+		Log.i(TAG, "stop(): served " + mRequestCount.get() + " requests over " + mConnectionCount.get() + " connections") ;
+	}
+
+	/**
+	 * @return the quote URL to hand to a GoogleQuoteProvider
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort() + GoogleQuoteProvider.QUOTE_URL_PATH ;
+	}
+
+	/**
+	 * @param latencyMillis the delay before each response is sent
+	 * @param jitterMillis up to this much extra delay is added at random
+	 */
+	public void setLatency(int latencyMillis, int jitterMillis) {
+		mLatencyMillis = latencyMillis ;
+		mLatencyJitterMillis = jitterMillis ;
+	}
+
+	/**
+	 * @param randomWalk true to move every price a little on each request, false to always serve the same prices
+	 */
+	public void setRandomWalk(boolean randomWalk) {
+		mRandomWalk = randomWalk ;
+	}
+
+	/**
+	 * @return the number of quote requests served
+	 */
+	public int getRequestCount() {
+		return mRequestCount.get() ;
+	}
+
+	/**
+	 * @return the number of connections accepted - much less than getRequestCount() if keep-alive is working
+	 */
+	public int getConnectionCount() {
+		return mConnectionCount.get() ;
+	}
+
+	private void acceptConnections() {
+		while(mRunning) {
+			try {
+				final Socket socket = mServerSocket.accept() ;
+				mConnectionCount.incrementAndGet() ;
+				mConnectionExecutor.execute(new Runnable() {
+					public void run() {
+						serveConnection(socket) ;
+					}
+				}) ;
+			} catch (IOException e) {
+				if(mRunning)
+					Log.e(TAG, "acceptConnections(): accept failed", e) ;
+			}
+		}
+	}
+
+	/**
+	 * Serves requests from one connection until the client closes it, asks for it to be closed or it goes idle.
+	 */
+	private void serveConnection(Socket socket) {
+		try {
+			socket.setSoTimeout(IDLE_CONNECTION_TIMEOUT_MILLIS) ;
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1")) ;
+			OutputStream out = socket.getOutputStream() ;
+
+			while(mRunning) {
+				String requestLine = in.readLine() ;
+				if(requestLine == null)
+					break ;
+				if(requestLine.length() == 0)
+					continue ;
+
+				/*
+				 * HTTP/1.1 connections are persistent unless the client says otherwise - HTTP/1.0 ones aren't unless it asks
+				 */
+				boolean keepAlive = requestLine.endsWith("HTTP/1.1") ;
+				String header ;
+				while((header = in.readLine()) != null && header.length() > 0) {
+					String lowerHeader = header.toLowerCase() ;
+					if(lowerHeader.startsWith("connection:"))
+						keepAlive = lowerHeader.indexOf("keep-alive") >= 0 ;
+				}
+
+				String[] parts = requestLine.split(" ") ;
+				if(parts.length < 2 || !parts[0].equals("GET") || !parts[1].startsWith("/finance/info")) {
+					writeResponse(out, "404 Not Found", "", keepAlive) ;
+				} else {
+					simulateLatency() ;
+					writeResponse(out, "200 OK", toQuoteResponse(parts[1]), keepAlive) ;
+					mRequestCount.incrementAndGet() ;
+				}
+				if(!keepAlive)
+					break ;
+			}
+		} catch (SocketTimeoutException e) {
+			/*
+			 * The client left the connection idle - just close it
+			 */
+		} catch (IOException e) {
+			if(mRunning)
+				Log.w(TAG, "serveConnection(): " + e.getMessage()) ;
+		} catch (InterruptedException e) {
+			/*
+			 * We're being stopped
+			 */
+		} finally {
+			try {
+				socket.close() ;
+			} catch (IOException e) {
+				// Nothing more we can do
+			}
+		}
+	}
+
+	private void simulateLatency() throws InterruptedException {
+		int delayMillis = mLatencyMillis ;
+		if(mLatencyJitterMillis > 0) {
+			synchronized(mRandom) {
+				delayMillis += mRandom.nextInt(mLatencyJitterMillis) ;
+			}
+		}
+		if(delayMillis > 0)
+			Thread.sleep(delayMillis) ;
+	}
+
+	private void writeResponse(OutputStream out, String status, String body, boolean keepAlive) throws IOException {
+		byte[] bodyBytes = body.getBytes("UTF-8") ;
+		StringBuilder headers = new StringBuilder() ;
+		headers.append("HTTP/1.1 ").append(status).append("\r\n") ;
+		headers.append("Content-Type: text/javascript; charset=utf-8\r\n") ;
+		headers.append("Content-Length: ").append(bodyBytes.length).append("\r\n") ;
+		headers.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n") ;
+		headers.append("\r\n") ;
+
+		/*
+		 * Send the headers and body in one write - two small writes trip over Nagle and delayed ACKs and add ~40ms
+		 */
+		byte[] headerBytes = headers.toString().getBytes("ISO-8859-1") ;
+		byte[] responseBytes = new byte[headerBytes.length + bodyBytes.length] ;
+		System.arraycopy(headerBytes, 0, responseBytes, 0, headerBytes.length) ;
+		System.arraycopy(bodyBytes, 0, responseBytes, headerBytes.length, bodyBytes.length) ;
+		out.write(responseBytes) ;
+		out.flush() ;
+	}
+
+	/**
+	 * Builds a google style response for the tickers in the request's q parameter, eg "q=ASX:BHP,ASX:RIO".
+	 */
+	private String toQuoteResponse(String path) throws IOException {
+		String tickers = "" ;
+		boolean infoQuoteAll = false ;
+		int queryStart = path.indexOf('?') ;
+		if(queryStart >= 0) {
+			for(String param : path.substring(queryStart + 1).split("&")) {
+				if(param.startsWith("q="))
+					tickers = URLDecoder.decode(param.substring(2), "UTF-8") ;
+				else if(param.equals("infotype=infoquoteall"))
+					infoQuoteAll = true ;
+			}
+		}
+
+		StringBuilder builder = new StringBuilder("// [\n") ;
+		boolean firstTime = true ;
+		for(String ticker : tickers.split(",")) {
+			if(ticker.startsWith("ASX:"))
+				ticker = ticker.substring(4) ;
+			if(ticker.length() == 0)
+				continue ;
+
+			double[] prices = nextPrice(ticker) ;
+			double previousPrice = prices[0] ;
+			double lastPrice = prices[1] ;
+			double change = lastPrice - previousPrice ;
+			double changePercent = previousPrice == 0 ? 0 : change * 100 / previousPrice ;
+
+			if(!firstTime)
+				builder.append(",") ;
+			firstTime = false ;
+			builder.append("{\n") ;
+			builder.append("\"id\": \"").append(Math.abs(ticker.hashCode())).append("\"\n") ;
+			builder.append(",\"t\" : \"").append(ticker).append("\"\n") ;
+			builder.append(",\"e\" : \"ASX\"\n") ;
+			builder.append(",\"l\" : \"").append(format(lastPrice)).append("\"\n") ;
+			builder.append(",\"l_cur\" : \"A$").append(format(lastPrice)).append("\"\n") ;
+			builder.append(",\"c\" : \"").append(change >= 0 ? "+" : "").append(format(change)).append("\"\n") ;
+			builder.append(",\"cp\" : \"").append(format(changePercent)).append("\"\n") ;
+			if(infoQuoteAll) {
+				builder.append(",\"op\" : \"").append(format(previousPrice)).append("\"\n") ;
+				builder.append(",\"hi\" : \"").append(format(Math.max(previousPrice, lastPrice))).append("\"\n") ;
+				builder.append(",\"lo\" : \"").append(format(Math.min(previousPrice, lastPrice))).append("\"\n") ;
+				builder.append(",\"vo\" : \"1.23M\"\n") ;
+				builder.append(",\"avvo\" : \"\"\n") ;
+				builder.append(",\"hi52\" : \"").append(format(lastPrice * 1.4)).append("\"\n") ;
+				builder.append(",\"lo52\" : \"").append(format(lastPrice * 0.8)).append("\"\n") ;
+				builder.append(",\"mc\" : \"4.56B\"\n") ;
+				builder.append(",\"pe\" : \"12.34\"\n") ;
+				builder.append(",\"fwpe\" : \"\"\n") ;
+				builder.append(",\"beta\" : \"\"\n") ;
+				builder.append(",\"eps\" : \"").append(format(lastPrice / 12.34)).append("\"\n") ;
+				builder.append(",\"name\" : \"").append(ticker).append(" Stub Limited\"\n") ;
+				builder.append(",\"type\" : \"Company\"\n") ;
+			}
+			builder.append("}\n") ;
+		}
+		builder.append("]\n") ;
+		return builder.toString() ;
+	}
+
+	/**
+	 * Returns the previous and new price for the ticker. Unknown tickers start at a price derived from their code so repeated 
+	 * runs see the same prices.
+	 */
+	private double[] nextPrice(String ticker) {
+		synchronized(mPrices) {
+			Double previous = mPrices.get(ticker) ;
+			double previousPrice = previous != null ? previous : 0.5 + Math.abs(ticker.hashCode() % 10000) / 100.0 ;
+			double lastPrice = previousPrice ;
+			if(mRandomWalk) {
+				synchronized(mRandom) {
+					lastPrice = Math.max(0.01, Math.round(previousPrice * (1 + mRandom.nextGaussian() * 0.01) * 100) / 100.0) ;
+				}
+			}
+			mPrices.put(ticker, lastPrice) ;
+			return new double[] { previousPrice, lastPrice } ;
+		}
+	}
+
+	private static String format(double value) {
+		return String.valueOf(Math.round(value * 100) / 100.0) ;
+	}
+}
@@ -0,0 +1,335 @@
+package org.amplexus.app.ozstock2.helper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.amplexus.app.ozstock2.values.StockPriceQuote;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Today's price history for each ticker, kept in memory.
+ * 
+ * FinanceService records a tick for every quote it fetches. Each ticker gets a fixed capacity ring buffer backed by a 
+ * long[] of timestamps and a float[] of prices, so recording a tick allocates nothing and a day's worth of ticks for a 
+ * ticker costs 12 bytes each. Once a buffer is full the oldest ticks are overwritten - but the day's open is kept 
+ * separately so "change since open" stays right.
+ * 
+ * Only the current trading day (in Sydney time) is kept - the first tick of a new day clears the ticker's buffer, and that 
+ * tick becomes the day's open.
+ * 
+ * The history is checkpointed to a file in the app's private storage after each refresh and read back the first time 
+ * getInstance() is called, so it survives the process being killed.
+ * 
+ * Thread safe.
+ * 
+ * @author craig
+ */
+public class TickHistory {
+
+	private static final String TAG = TickHistory.class.getSimpleName() ;
+
+	public static final int DEFAULT_CAPACITY = 512 ;						// Comfortably more than a trading day of one minute refreshes
+
+	private static final String CHECKPOINT_FILENAME = "tick_history.dat" ;
+	private static final int CHECKPOINT_VERSION = 1 ;
+	private static final long DAY_MILLIS = 24 * 60 * 60 * 1000 ;
+	private static final TimeZone MARKET_TIME_ZONE = TimeZone.getTimeZone("Australia/Sydney") ;
+
+	private static TickHistory sInstance ;
+
+	private final HashMap<String, TickBuffer> mBuffers = new HashMap<String, TickBuffer>() ;
+	private final int mCapacity ;
+	private final File mCheckpointFile ;
+
+	/**
+	 * A ring buffer of ticks for one ticker. Ticks are in time order, oldest at mStart.
+	 */
+	private static class TickBuffer {
+		final long[] mTimes ;
+		final float[] mPrices ;
+		int mStart ;										// The index of the oldest tick
+		int mSize ;											// The number of ticks held
+		float mOpenPrice ;									// The first price recorded today, which may have been overwritten
+
+		TickBuffer(int capacity) {
+			mTimes = new long[capacity] ;
+			mPrices = new float[capacity] ;
+		}
+
+		/**
+		 * @return the array index of the i'th oldest tick
+		 */
+		int index(int i) {
+			int index = mStart + i ;
+			return index < mTimes.length ? index : index - mTimes.length ;
+		}
+
+		void add(long timeMillis, float price) {
+			if(mSize == 0)
+				mOpenPrice = price ;
+			if(mSize < mTimes.length) {
+				int index = index(mSize) ;
+				mTimes[index] = timeMillis ;
+				mPrices[index] = price ;
+				mSize++ ;
+			} else {
+				/*
+				 * Full - overwrite the oldest
+				 */
+				mTimes[mStart] = timeMillis ;
+				mPrices[mStart] = price ;
+				mStart = index(1) ;
+			}
+		}
+
+		void clear() {
+			mStart = 0 ;
+			mSize = 0 ;
+		}
+
+		/**
+		 * @return the position (0 = oldest) of the first tick at or after timeMillis, or mSize if there is none
+		 */
+		int firstAtOrAfter(long timeMillis) {
+			int low = 0 ;
+			int high = mSize ;
+			while(low < high) {
+				int mid = (low + high) >>> 1 ;
+				if(mTimes[index(mid)] < timeMillis)
+					low = mid + 1 ;
+				else
+					high = mid ;
+			}
+			return low ;
+		}
+	}
+
+	private TickHistory(File checkpointFile, int capacity) {
+		mCheckpointFile = checkpointFile ;
+		mCapacity = capacity ;
+	}
+
+	/**
+	 * @return the app's tick history, restored from the last checkpoint on first use
+	 */
+	public static synchronized TickHistory getInstance(Context context) {
+		if(sInstance == null) {
+			sInstance = new TickHistory(new File(context.getFilesDir(), CHECKPOINT_FILENAME), DEFAULT_CAPACITY) ;
+			sInstance.restore() ;
+		}
+		return sInstance ;
+	}
+
+	/**
+	 * Records a tick for each quote.
+	 * 
+	 * @param quoteList the quotes from a refresh
+	 * @param timeMillis when the quotes were fetched
+	 */
+	public synchronized void record(List<StockPriceQuote> quoteList, long timeMillis) {
+		for(StockPriceQuote quote : quoteList) {
+			if(quote.getTicker() != null && StockPriceQuote.isSet(quote.getLastPrice()))
+				record(quote.getTicker(), timeMillis, (float)quote.getLastPrice()) ;
+		}
+	}
+
+	/**
+	 * Records a tick. Ticks older than the ticker's latest tick are ignored.
+	 */
+	public synchronized void record(String ticker, long timeMillis, float price) {
+		TickBuffer buffer = mBuffers.get(ticker) ;
+		if(buffer == null) {
+			buffer = new TickBuffer(mCapacity) ;
+			mBuffers.put(ticker, buffer) ;
+		} else if(buffer.mSize > 0) {
+			long lastMillis = buffer.mTimes[buffer.index(buffer.mSize - 1)] ;
+			if(timeMillis < lastMillis)
+				return ;
+			if(toMarketDay(timeMillis) != toMarketDay(lastMillis))
+				buffer.clear() ;
+		}
+		buffer.add(timeMillis, price) ;
+	}
+
+	/**
+	 * Copies the ticks between fromMillis (inclusive) and toMillis (exclusive) into the arrays, oldest first.
+	 * 
+	 * @param ticker the stock code
+	 * @param fromMillis the start of the range
+	 * @param toMillis the end of the range
+	 * @param times receives the tick times
+	 * @param prices receives the tick prices - must be the same length as times
+	 * @return the number of ticks copied, never more than times.length
+	 */
+	public synchronized int getRange(String ticker, long fromMillis, long toMillis, long[] times, float[] prices) {
+		TickBuffer buffer = mBuffers.get(ticker) ;
+		if(buffer == null)
+			return 0 ;
+		int count = 0 ;
+		for(int i = buffer.firstAtOrAfter(fromMillis); i < buffer.mSize && count < times.length; i++) {
+			int index = buffer.index(i) ;
+			if(buffer.mTimes[index] >= toMillis)
+				break ;
+			times[count] = buffer.mTimes[index] ;
+			prices[count] = buffer.mPrices[index] ;
+			count++ ;
+		}
+		return count ;
+	}
+
+	/**
+	 * @return the number of ticks held for the ticker
+	 */
+	public synchronized int getTickCount(String ticker) {
+		TickBuffer buffer = mBuffers.get(ticker) ;
+		return buffer == null ? 0 : buffer.mSize ;
+	}
+
+	/**
+	 * @return the first price recorded today, or NaN if there is none
+	 */
+	public synchronized float getOpenPrice(String ticker) {
+		TickBuffer buffer = mBuffers.get(ticker) ;
+		if(buffer == null || buffer.mSize == 0)
+			return Float.NaN ;
+		return buffer.mOpenPrice ;
+	}
+
+	/**
+	 * @return the latest price recorded, or NaN if there is none
+	 */
+	public synchronized float getLatestPrice(String ticker) {
+		TickBuffer buffer = mBuffers.get(ticker) ;
+		if(buffer == null || buffer.mSize == 0)
+			return Float.NaN ;
+		return buffer.mPrices[buffer.index(buffer.mSize - 1)] ;
+	}
+
+	/**
+	 * @return the latest price less the first price recorded today, or NaN if there are no ticks
+	 */
+	public synchronized float getChangeSinceOpen(String ticker) {
+		return getLatestPrice(ticker) - getOpenPrice(ticker) ;
+	}
+
+	/**
+	 * @return the change since open as a percentage of the open price, or NaN if there are no ticks
+	 */
+	public synchronized float getChangePercentSinceOpen(String ticker) {
+		float openPrice = getOpenPrice(ticker) ;
+		if(openPrice == 0)
+			return Float.NaN ;
+		return (getLatestPrice(ticker) - openPrice) * 100 / openPrice ;
+	}
+
+	/**
+	 * Writes the history to the checkpoint file. The file is written under a temporary name and then renamed over the old 
+	 * one, so a crash part way through leaves the previous checkpoint intact.
+	 */
+	public synchronized void checkpoint() {
+		long startMillis = System.currentTimeMillis() ;
+		File tempFile = new File(mCheckpointFile.getPath() + ".tmp") ;
+		DataOutputStream out = null ;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile))) ;
+			out.writeInt(CHECKPOINT_VERSION) ;
+			out.writeInt(mBuffers.size()) ;
+			for(Map.Entry<String, TickBuffer> entry : mBuffers.entrySet()) {
+				TickBuffer buffer = entry.getValue() ;
+				out.writeUTF(entry.getKey()) ;
+				out.writeInt(buffer.mSize) ;
+				out.writeFloat(buffer.mOpenPrice) ;
+				for(int i = 0; i < buffer.mSize; i++) {
+					int index = buffer.index(i) ;
+					out.writeLong(buffer.mTimes[index]) ;
+					out.writeFloat(buffer.mPrices[index]) ;
+				}
+			}
+			out.close() ;
+			out = null ;
+			if(!tempFile.renameTo(mCheckpointFile))
+				throw new IOException("Failed to rename " + tempFile + " to " + mCheckpointFile) ;
+			Log.i(TAG, "checkpoint(): wrote " + mBuffers.size() + " tickers in " + (System.currentTimeMillis() - startMillis) + "ms") ;
+		} catch (IOException e) {
+			Log.e(TAG, "checkpoint(): failed to write tick history", e) ;
+		} finally {
+			if(out != null) {
+				try {
+					out.close() ;
+				} catch (IOException e) {
+					// Nothing more we can do
+				}
+				tempFile.delete() ;
+			}
+		}
+	}
+
+	/**
+	 * Reads the history back from the checkpoint file, if there is one. Ticks from an earlier day are dropped.
+	 */
+	private synchronized void restore() {
+		long startMillis = System.currentTimeMillis() ;
+		long today = toMarketDay(startMillis) ;
+		DataInputStream in = null ;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mCheckpointFile))) ;
+			if(in.readInt() != CHECKPOINT_VERSION) {
+				Log.w(TAG, "restore(): ignoring checkpoint written by a different version") ;
+				return ;
+			}
+			int tickerCount = in.readInt() ;
+			for(int t = 0; t < tickerCount; t++) {
+				String ticker = in.readUTF() ;
+				int size = in.readInt() ;
+				float openPrice = in.readFloat() ;
+				for(int i = 0; i < size; i++) {
+					long timeMillis = in.readLong() ;
+					float price = in.readFloat() ;
+					if(toMarketDay(timeMillis) == today)
+						record(ticker, timeMillis, price) ;
+				}
+				TickBuffer buffer = mBuffers.get(ticker) ;
+				if(buffer != null && buffer.mSize == size)
+					buffer.mOpenPrice = openPrice ;		// Every tick was from today, so the open still stands
+			}
+			Log.i(TAG, "restore(): read " + tickerCount + " tickers in " + (System.currentTimeMillis() - startMillis) + "ms") ;
+		} catch (FileNotFoundException e) {
+			/*
+			 * No checkpoint yet
+			 */
+		} catch (EOFException e) {
+			Log.w(TAG, "restore(): checkpoint is truncated - keeping what could be read") ;
+		} catch (IOException e) {
+			Log.e(TAG, "restore(): failed to read tick history", e) ;
+		} finally {
+			if(in != null) {
+				try {
+					in.close() ;
+				} catch (IOException e) {
+					// Nothing more we can do
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of days since the epoch in Sydney time
+	 */
+	private static long toMarketDay(long timeMillis) {
+		return (timeMillis + MARKET_TIME_ZONE.getOffset(timeMillis)) / DAY_MILLIS ;
+	}
+}
@@ -0,0 +1,64 @@
+package org.amplexus.app.ozstock2.values;
+
+/**
+ * The units held in one GICS industry group, with their cost and current value.
+ * 
+ * @author craig
+ */
+public class SectorExposure implements java.io.Serializable {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+	long sectorId ;				// The SECTOR_REF id, or 0 for holdings in unclassified stocks
+	String sectorName ;
+	int stockCount ;			// The number of different stocks held in the sector
+	long units ;				// The units held
+	double cost ;				// What the units held cost
+	double value ;				// What the units held are worth at the last quoted price
+	
+	public long getSectorId() {
+		return sectorId;
+	}
+	public void setSectorId(long sectorId) {
+		this.sectorId = sectorId;
+	}
+	public String getSectorName() {
+		return sectorName;
+	}
+	public void setSectorName(String sectorName) {
+		this.sectorName = sectorName;
+	}
+	public int getStockCount() {
+		return stockCount;
+	}
+	public void setStockCount(int stockCount) {
+		this.stockCount = stockCount;
+	}
+	public long getUnits() {
+		return units;
+	}
+	public void setUnits(long units) {
+		this.units = units;
+	}
+	public double getCost() {
+		return cost;
+	}
+	public void setCost(double cost) {
+		this.cost = cost;
+	}
+	public double getValue() {
+		return value;
+	}
+	public void setValue(double value) {
+		this.value = value;
+	}
+
+	/**
+	 * @return the unrealised profit, or loss if negative
+	 */
+	public double getProfitLoss() {
+		return value - cost ;
+	}
+}
@@ -3,10 +3,28 @@ package org.amplexus.app.ozstock2.values;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+/**
+ * A quote for one stock, as returned by the quote provider.
+ * 
+ * The numbers are primitives so thousands of quotes can be parsed per refresh without boxing. A field the provider didn't 
+ * supply is Double.NaN - see isSet().
+ */
 public class StockPriceQuote implements Parcelable {
 
 	private String ticker ;
-	private Double lastPrice ;
+	private long quoteTime ;
+	private double lastPrice = Double.NaN ;		// l
+	private double change = Double.NaN ;		// c - signed, eg +0.31
+	private double changePercent = Double.NaN ;	// cp
+	private double open = Double.NaN ;			// op
+	private double high = Double.NaN ;			// hi
+	private double low = Double.NaN ;			// lo
+	private double volume = Double.NaN ;		// vo - 8.70M is 8700000
+	private double marketCap = Double.NaN ;		// mc - 180.48B is 180480000000
+	private double high52 = Double.NaN ;		// hi52
+	private double low52 = Double.NaN ;			// lo52
+	private double pe = Double.NaN ;			// pe
+	private double eps = Double.NaN ;			// eps
 
     public static final Parcelable.Creator<StockPriceQuote> CREATOR = new Parcelable.Creator<StockPriceQuote>() {
 		public StockPriceQuote createFromParcel(Parcel in) {
@@ -23,18 +41,98 @@ public class StockPriceQuote implements Parcelable {
 	public StockPriceQuote(Parcel in) {
 		readFromParcel(in) ;
 	}
+
+	/**
+	 * @return true if the provider supplied the value
+	 */
+	public static boolean isSet(double value) {
+		return !Double.isNaN(value) ;
+	}
+
 	public String getTicker() {
 		return ticker;
 	}
 	public void setTicker(String ticker) {
 		this.ticker = ticker;
 	}
-	public Double getLastPrice() {
+	public long getQuoteTime() {
+		return quoteTime;
+	}
+	public void setQuoteTime(long quoteTime) {
+		this.quoteTime = quoteTime;
+	}
+	public double getLastPrice() {
 		return lastPrice;
 	}
-	public void setLastPrice(Double lastPrice) {
+	public void setLastPrice(double lastPrice) {
 		this.lastPrice = lastPrice;
 	}
+	public double getChange() {
+		return change;
+	}
+	public void setChange(double change) {
+		this.change = change;
+	}
+	public double getChangePercent() {
+		return changePercent;
+	}
+	public void setChangePercent(double changePercent) {
+		this.changePercent = changePercent;
+	}
+	public double getOpen() {
+		return open;
+	}
+	public void setOpen(double open) {
+		this.open = open;
+	}
+	public double getHigh() {
+		return high;
+	}
+	public void setHigh(double high) {
+		this.high = high;
+	}
+	public double getLow() {
+		return low;
+	}
+	public void setLow(double low) {
+		this.low = low;
+	}
+	public double getVolume() {
+		return volume;
+	}
+	public void setVolume(double volume) {
+		this.volume = volume;
+	}
+	public double getMarketCap() {
+		return marketCap;
+	}
+	public void setMarketCap(double marketCap) {
+		this.marketCap = marketCap;
+	}
+	public double getHigh52() {
+		return high52;
+	}
+	public void setHigh52(double high52) {
+		this.high52 = high52;
+	}
+	public double getLow52() {
+		return low52;
+	}
+	public void setLow52(double low52) {
+		this.low52 = low52;
+	}
+	public double getPe() {
+		return pe;
+	}
+	public void setPe(double pe) {
+		this.pe = pe;
+	}
+	public double getEps() {
+		return eps;
+	}
+	public void setEps(double eps) {
+		this.eps = eps;
+	}
 
 	@Override
 	public int describeContents() {
@@ -43,11 +141,35 @@ public class StockPriceQuote implements Parcelable {
 	@Override
 	public void writeToParcel(Parcel dest, int flags) {
 		dest.writeString(ticker);
+		dest.writeLong(quoteTime);
 		dest.writeDouble(lastPrice);
+		dest.writeDouble(change);
+		dest.writeDouble(changePercent);
+		dest.writeDouble(open);
+		dest.writeDouble(high);
+		dest.writeDouble(low);
+		dest.writeDouble(volume);
+		dest.writeDouble(marketCap);
+		dest.writeDouble(high52);
+		dest.writeDouble(low52);
+		dest.writeDouble(pe);
+		dest.writeDouble(eps);
 	}
 	
 	private void readFromParcel(Parcel in) {
 		ticker = in.readString() ;
+		quoteTime = in.readLong() ;
 		lastPrice = in.readDouble() ;
+		change = in.readDouble() ;
+		changePercent = in.readDouble() ;
+		open = in.readDouble() ;
+		high = in.readDouble() ;
+		low = in.readDouble() ;
+		volume = in.readDouble() ;
+		marketCap = in.readDouble() ;
+		high52 = in.readDouble() ;
+		low52 = in.readDouble() ;
+		pe = in.readDouble() ;
+		eps = in.readDouble() ;
 	}
 }
@@ -6,9 +6,17 @@ public class StockRef implements java.io.Serializable {
 	 * 
 	 */
 	private static final long serialVersionUID = 1L;
+	long id ;					// The STOCK_REF _id
 	String stockCode ;
 	String stockName ;
+	String industryGroup ;		// The GICS industry group, or null if unclassified
     
+	public long getId() {
+		return id;
+	}
+	public void setId(long id) {
+		this.id = id;
+	}
 	public String getStockCode() {
 		return stockCode;
 	}
@@ -21,4 +29,10 @@ public class StockRef implements java.io.Serializable {
 	public void setStockName(String stockName) {
 		this.stockName = stockName;
 	}
+	public String getIndustryGroup() {
+		return industryGroup;
+	}
+	public void setIndustryGroup(String industryGroup) {
+		this.industryGroup = industryGroup;
+	}
 }
@@ -0,0 +1,55 @@
+package org.amplexus.app.ozstock2.values;
+
+/**
+ * The changes made to the STOCK_REF table when it was synced with a new company list.
+ * 
+ * @author craig
+ */
+public class StockRefSyncResult implements java.io.Serializable {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+	int inserted ;				// Newly listed companies
+	int updated ;				// Companies whose name or industry group changed
+	int deleted ;				// Companies no longer listed
+	int unchanged ;
+	
+	public int getInserted() {
+		return inserted;
+	}
+	public void setInserted(int inserted) {
+		this.inserted = inserted;
+	}
+	public int getUpdated() {
+		return updated;
+	}
+	public void setUpdated(int updated) {
+		this.updated = updated;
+	}
+	public int getDeleted() {
+		return deleted;
+	}
+	public void setDeleted(int deleted) {
+		this.deleted = deleted;
+	}
+	public int getUnchanged() {
+		return unchanged;
+	}
+	public void setUnchanged(int unchanged) {
+		this.unchanged = unchanged;
+	}
+
+	/**
+	 * @return true if the sync changed anything
+	 */
+	public boolean isChanged() {
+		return inserted > 0 || updated > 0 || deleted > 0 ;
+	}
+
+	@Override
+	public String toString() {
+		return "inserted=" + inserted + " updated=" + updated + " deleted=" + deleted + " unchanged=" + unchanged ;
+	}
+}